@@ -17,13 +17,16 @@
 package com.intel.icecp.bundle;
 
 import java.util.Collections;
+import java.util.Spliterator;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 /**
  * Represent a tree-like structure of things that can be "finished". Once a is finished, all of its children are
  * finished; symmetrically, when its children are finished, it is finished. Default implementations are provided for
  * ease of implementation but note that the default behavior is to assume that the bundle is a "leaf", i.e. has no
- * children.
+ * children. The parallel variants traverse the children on the common {@link java.util.concurrent.ForkJoinPool}; for
+ * them to split evenly, implementations should override {@link #spliterator()} to return a sized spliterator.
  *
  */
 public interface Bundle<T extends Bundle> {
@@ -43,18 +46,62 @@ public interface Bundle<T extends Bundle> {
         return Collections.EMPTY_LIST;
     }
 
+    /**
+     * Implementations holding their children in memory should return a sized spliterator over a snapshot of the
+     * children: it splits evenly for parallel traversal and is not affected by concurrent changes to the bundle.
+     *
+     * @return a spliterator over all the children; by default this is the (possibly unsized) spliterator of {@link
+     * #children()}
+     */
+    default Spliterator<T> spliterator() {
+        return children().spliterator();
+    }
+
+    /**
+     * @return a sequential stream of all the children
+     */
+    default Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return a parallel stream of all the children
+     */
+    default Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
     /**
      * Mark this bundle and all of its children as finished
      */
     default void markFinished() {
         if (hasChildren())
-            StreamSupport.stream(children().spliterator(), false).forEach(Bundle::markFinished);
+            stream().forEach(Bundle::markFinished);
+    }
+
+    /**
+     * Mark this bundle and all of its children as finished, traversing the children in parallel; leaves are marked
+     * with {@link #markFinished()}
+     */
+    default void markFinishedInParallel() {
+        if (hasChildren())
+            parallelStream().forEach(Bundle::markFinishedInParallel);
+        else
+            markFinished();
     }
 
     /**
      * @return true if the bundle is finished, i.e. it contains no unfinished children
      */
     default boolean isFinished() {
-        return !hasChildren() || StreamSupport.stream(children().spliterator(), false).allMatch(Bundle::isFinished);
+        return !hasChildren() || stream().allMatch(Bundle::isFinished);
+    }
+
+    /**
+     * @return true if the bundle is finished, traversing the children in parallel; leaves are checked with {@link
+     * #isFinished()}
+     */
+    default boolean isFinishedInParallel() {
+        return hasChildren() ? parallelStream().allMatch(Bundle::isFinishedInParallel) : isFinished();
     }
 }
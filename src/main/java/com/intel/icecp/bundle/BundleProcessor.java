@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process all the unfinished items of a bundle on a pool of workers: each item is passed to an {@link ItemHandler},
+ * marked finished if the handler succeeds, and committed through {@link StoredBatch#commit()} every {@code
+ * commitInterval} finished items of a batch and once all items of the batch have been processed.
+ * <p>
+ * The worker pool is configurable: pass a {@link ThreadFactory} (e.g. one creating virtual threads on JVMs that
+ * support them) or a complete {@link ExecutorService}. Items are processed in no particular order; see {@link
+ * PartitionedProcessor} when order matters.
+ *
+ * @param <T> the type of message stored in the storage module
+ */
+public class BundleProcessor<T> implements AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private final ExecutorService workers;
+    private final int commitInterval;
+
+    /**
+     * Constructor
+     *
+     * @param threads the number of worker threads
+     * @param commitInterval the number of finished items of a batch after which the batch is committed; if zero or
+     * less, batches are only committed once all of their items are processed
+     */
+    public BundleProcessor(int threads, int commitInterval) {
+        this(threads, Executors.defaultThreadFactory(), commitInterval);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threads the number of worker threads
+     * @param threadFactory the factory for creating the worker threads
+     * @param commitInterval see {@link #BundleProcessor(int, int)}
+     */
+    public BundleProcessor(int threads, ThreadFactory threadFactory, int commitInterval) {
+        this(Executors.newFixedThreadPool(threads, threadFactory), commitInterval);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param workers the executor to run the handlers on; it is shut down when this processor is closed
+     * @param commitInterval see {@link #BundleProcessor(int, int)}
+     */
+    public BundleProcessor(ExecutorService workers, int commitInterval) {
+        this.workers = workers;
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Process all unfinished items of the bundle and wait for their completion
+     *
+     * @param bundle the bundle to process
+     * @param handler the handler to pass each item to
+     * @return the statistics of this run
+     * @throws InterruptedException if interrupted while waiting for the items to be processed
+     */
+    public ProcessingStats process(StoredBundle<T> bundle, ItemHandler<T> handler) throws InterruptedException {
+        ProcessingStats stats = new ProcessingStats();
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (StoredBatch<T> batch : bundle.children()) {
+            batches.add(process(batch, handler, stats));
+        }
+
+        try {
+            CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()])).get();
+        } catch (ExecutionException e) {
+            // handlers and commits are guarded in processItem() and commit(), so this indicates a bug
+            throw new IllegalStateException("Unexpected failure while processing " + bundle, e);
+        } finally {
+            stats.stop();
+        }
+
+        LOGGER.info("Processed {}: {}", bundle, stats);
+        return stats;
+    }
+
+    private CompletableFuture<Void> process(StoredBatch<T> batch, ItemHandler<T> handler, ProcessingStats stats) {
+        AtomicInteger finishedSinceCommit = new AtomicInteger();
+        List<CompletableFuture<Void>> items = new ArrayList<>();
+        for (StoredItem<T> item : batch.children()) {
+            if (!item.isFinished()) {
+                items.add(CompletableFuture.runAsync(() -> {
+                    if (processItem(item, handler, stats) && commitInterval > 0
+                            && finishedSinceCommit.incrementAndGet() % commitInterval == 0) {
+                        commit(batch, stats);
+                    }
+                }, workers));
+            }
+        }
+
+        return CompletableFuture.allOf(items.toArray(new CompletableFuture<?>[items.size()]))
+                .thenRun(() -> commit(batch, stats));
+    }
+
+    private boolean processItem(StoredItem<T> item, ItemHandler<T> handler, ProcessingStats stats) {
+        long start = System.nanoTime();
+        try {
+            handler.handle(item);
+            item.markFinished();
+            stats.recordSuccess(System.nanoTime() - start);
+            return true;
+        } catch (Exception e) {
+            stats.recordFailure(System.nanoTime() - start);
+            LOGGER.error("Failed to process item {}; leaving it unfinished", item.id(), e);
+            return false;
+        }
+    }
+
+    private void commit(StoredBatch<T> batch, ProcessingStats stats) {
+        try {
+            batch.commit();
+            stats.recordCommit();
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to commit batch {}", batch.id(), e);
+        }
+    }
+
+    /**
+     * Shut down the worker pool; items already submitted are still processed
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+}
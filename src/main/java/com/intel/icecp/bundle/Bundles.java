@@ -16,12 +16,28 @@
 
 package com.intel.icecp.bundle;
 
+import com.intel.icecp.bundle.lease.FileLeaseStore;
+import com.intel.icecp.bundle.lease.LeasedStoredBundle;
+import com.intel.icecp.bundle.local.LocalStoredBundle;
+import com.intel.icecp.bundle.messages.CatalogSnapshot;
+import com.intel.icecp.bundle.messages.CommitJournal;
 import com.intel.icecp.bundle.messages.MessageBundle;
+import com.intel.icecp.bundle.messages.RetrievalMode;
+import com.intel.icecp.bundle.messages.ShardedStorageClient;
 import com.intel.icecp.bundle.messages.StorageClient;
+import com.intel.icecp.bundle.messages.TieredStoredBundle;
+import com.intel.icecp.bundle.typed.Codec;
+import com.intel.icecp.bundle.typed.Memoization;
+import com.intel.icecp.bundle.typed.TypedStoredBundle;
 import com.intel.icecp.core.management.Channels;
 import com.intel.icecp.core.messages.BytesMessage;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Factory class for building bundle implementations.
@@ -30,6 +46,8 @@ import java.net.URI;
 public class Bundles {
 
     private static final int REMOTE_CALL_TIMEOUT_MS = 10000;
+    private static final int JOURNAL_FLUSH_INTERVAL_MS = 1000;
+    private static final int LEASE_DURATION_MS = 30000;
 
     /**
      * Disable instantiation
@@ -48,4 +66,162 @@ public class Bundles {
         StorageClient storage = new StorageClient(channels, REMOTE_CALL_TIMEOUT_MS);
         return new MessageBundle(storage, listenChannel);
     }
+
+    /**
+     * Build a stored bundle of messages that retrieves its messages with the given mode; use {@link
+     * RetrievalMode#LAZY} to only transfer the contents of the messages that are actually read.
+     *
+     * @param channels the channels to use for connecting to the storage module
+     * @param listenChannel the channel stored by the storage module
+     * @param mode how batches retrieve their messages
+     * @return a bundle of stored messages
+     */
+    public static StoredBundle<BytesMessage> newStoredBundle(Channels channels, URI listenChannel, RetrievalMode mode) {
+        StorageClient storage = new StorageClient(channels, REMOTE_CALL_TIMEOUT_MS);
+        return new MessageBundle(storage, listenChannel, mode);
+    }
+
+    /**
+     * Build a stored bundle of messages subscribed to its listen channel: it picks up newly published items with an
+     * incremental retrieval on its next access rather than re-retrieving its batches, and consumers can wait for new
+     * items with {@link MessageBundle#awaitNewItems(long, java.util.concurrent.TimeUnit)}
+     *
+     * @param channels the channels to use for connecting to the storage module
+     * @param listenChannel the channel stored by the storage module
+     * @return a subscribed bundle of stored messages; close it to unsubscribe
+     */
+    public static MessageBundle newSubscribedStoredBundle(Channels channels, URI listenChannel) {
+        StorageClient storage = new StorageClient(channels, REMOTE_CALL_TIMEOUT_MS);
+        MessageBundle bundle = new MessageBundle(storage, listenChannel);
+        bundle.subscribe();
+        return bundle;
+    }
+
+    /**
+     * Build a stored bundle of messages spread over several storage modules: sessions are started on the module owning
+     * the listen channel on a consistent hash ring and every command is routed to the module holding the session; see
+     * {@link ShardedStorageClient}
+     *
+     * @param channels the channels to use for connecting to the storage modules
+     * @param listenChannel the channel stored by the storage modules
+     * @param commandChannels the command channels of the storage modules
+     * @return a bundle of stored messages
+     */
+    public static StoredBundle<BytesMessage> newShardedStoredBundle(Channels channels, URI listenChannel,
+                                                                    List<URI> commandChannels) {
+        Map<String, StorageClient> shards = new LinkedHashMap<>();
+        for (URI commandChannel : commandChannels) {
+            shards.put(commandChannel.toString(), new StorageClient(channels, commandChannel, REMOTE_CALL_TIMEOUT_MS));
+        }
+        return new MessageBundle(new ShardedStorageClient(channels, shards, REMOTE_CALL_TIMEOUT_MS), listenChannel);
+    }
+
+    /**
+     * Build a stored bundle of domain objects: messages are decoded with the codec when first read and the decoded
+     * objects are kept with their items (see {@link TypedStoredBundle})
+     *
+     * @param channels the channels to use for connecting to the storage module
+     * @param listenChannel the channel stored by the storage module
+     * @param codec the codec of the message contents
+     * @param <T> the type of the domain objects
+     * @return a bundle of stored domain objects
+     */
+    public static <T> TypedStoredBundle<T> newTypedStoredBundle(Channels channels, URI listenChannel, Codec<T> codec) {
+        return newTypedStoredBundle(channels, listenChannel, codec, Memoization.STRONG);
+    }
+
+    /**
+     * Build a stored bundle of domain objects: messages are decoded with the codec when first read and the decoded
+     * objects are remembered according to the given memoization; use {@link Memoization#SOFT} or {@link
+     * Memoization#NONE} when the decoded objects are too large to keep
+     *
+     * @param channels the channels to use for connecting to the storage module
+     * @param listenChannel the channel stored by the storage module
+     * @param codec the codec of the message contents
+     * @param memoization how to remember decoded objects
+     * @param <T> the type of the domain objects
+     * @return a bundle of stored domain objects
+     */
+    public static <T> TypedStoredBundle<T> newTypedStoredBundle(Channels channels, URI listenChannel, Codec<T> codec,
+                                                                Memoization memoization) {
+        return new TypedStoredBundle<>(newStoredBundle(channels, listenChannel), codec, memoization);
+    }
+
+    /**
+     * Build a stored bundle of messages that journals commits to a local file before flushing them to the storage
+     * module in the background, so that committed messages are not reprocessed if the process dies or the storage
+     * module is unavailable; see {@link CommitJournal}
+     *
+     * @param channels the channels to use for connecting to the storage module
+     * @param listenChannel the channel stored by the storage module
+     * @param journalFile the local journal file; created if it does not exist
+     * @return a bundle of stored messages
+     * @throws IOException if the journal file cannot be opened or read
+     */
+    public static StoredBundle<BytesMessage> newJournaledStoredBundle(Channels channels, URI listenChannel, Path journalFile)
+            throws IOException {
+        StorageClient storage = new StorageClient(channels, REMOTE_CALL_TIMEOUT_MS);
+        CommitJournal journal = new CommitJournal(storage, journalFile, JOURNAL_FLUSH_INTERVAL_MS);
+        return new MessageBundle(storage, listenChannel, RetrievalMode.EAGER, journal);
+    }
+
+    /**
+     * Build a stored bundle of messages that keeps a local snapshot of its catalog (see {@link CatalogSnapshot}); on
+     * restart it resumes its previous session and only retrieves the messages that are not known to be committed
+     *
+     * @param channels the channels to use for connecting to the storage module
+     * @param listenChannel the channel stored by the storage module
+     * @param snapshotFile the local snapshot file; created when the bundle first syncs
+     * @return a bundle of stored messages
+     */
+    public static StoredBundle<BytesMessage> newWarmStartedStoredBundle(Channels channels, URI listenChannel, Path snapshotFile) {
+        StorageClient storage = new StorageClient(channels, REMOTE_CALL_TIMEOUT_MS);
+        return new MessageBundle(storage, listenChannel, RetrievalMode.EAGER, null, new CatalogSnapshot(snapshotFile));
+    }
+
+    /**
+     * Build a stored bundle of messages kept in local files, for nodes without a storage module; see {@link
+     * LocalStoredBundle}
+     *
+     * @param directory the directory to store the messages in; created if it does not exist
+     * @return a bundle of locally stored messages
+     * @throws IOException if the stored messages cannot be read
+     */
+    public static LocalStoredBundle newLocalStoredBundle(Path directory) throws IOException {
+        return new LocalStoredBundle(directory);
+    }
+
+    /**
+     * Build a stored bundle of messages served from a local tier that is replicated to and from the storage module in
+     * the background, so that processing can go on while the storage module is unavailable; see {@link
+     * TieredStoredBundle}
+     *
+     * @param channels the channels to use for connecting to the storage module
+     * @param listenChannel the channel stored by the storage module
+     * @param directory the directory of the local tier; created if it does not exist
+     * @return a bundle of stored messages
+     * @throws IOException if the local tier cannot be opened
+     */
+    public static TieredStoredBundle newTieredStoredBundle(Channels channels, URI listenChannel, Path directory)
+            throws IOException {
+        StorageClient storage = new StorageClient(channels, REMOTE_CALL_TIMEOUT_MS);
+        return new TieredStoredBundle(storage, listenChannel, directory, JOURNAL_FLUSH_INTERVAL_MS);
+    }
+
+    /**
+     * Build a view of a bundle shared by several consumer processes in which each process only sees the batches it
+     * leases, so that no batch is processed twice; the leases are kept in a directory shared by the processes (see
+     * {@link LeasedStoredBundle} and {@link FileLeaseStore})
+     *
+     * @param shared the bundle shared with the other processes, e.g. {@link #newStoredBundle(Channels, URI)}
+     * @param leaseDirectory the directory of the leases; created if it does not exist
+     * @param owner the identifier of this process; must be unique among the processes sharing the directory
+     * @param <T> the type of message stored in the storage module
+     * @return a bundle of the batches leased by this process
+     * @throws IOException if the lease directory cannot be created
+     */
+    public static <T> LeasedStoredBundle<T> newLeasedStoredBundle(StoredBundle<T> shared, Path leaseDirectory, String owner)
+            throws IOException {
+        return new LeasedStoredBundle<>(shared, new FileLeaseStore(leaseDirectory), owner, LEASE_DURATION_MS);
+    }
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * A deadline and cancellation token for a whole bundle operation (e.g. {@link Bundle#children()}, {@link
+ * StoredBatch#commit()} or {@link Bundle#markFinished()}) rather than for each of the remote calls it makes. The
+ * deadline applies to the calls made by the current thread while it is entered (see {@link #enter()}, {@link
+ * #call(Supplier)}); implementations backed by remote storage shorten their waits to the remaining time, stop
+ * waiting when the deadline is cancelled and fail once it is exceeded. Cancelling is thread-safe.
+ * <p>
+ * For example, {@code Deadline.after(5, TimeUnit.SECONDS).call(bundle::hasChildren)} answers or fails within about
+ * five seconds.
+ *
+ */
+public final class Deadline {
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+    private final long expiresAtNanos;
+    private final boolean bounded;
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private final CountDownLatch cancellation = new CountDownLatch(1);
+    private final Set<Runnable> listeners = ConcurrentHashMap.newKeySet();
+
+    private Deadline(long expiresAtNanos, boolean bounded) {
+        this.expiresAtNanos = expiresAtNanos;
+        this.bounded = bounded;
+    }
+
+    /**
+     * @param timeout the time allowed from now
+     * @param unit the unit of the timeout
+     * @return a deadline expiring after the given time
+     */
+    public static Deadline after(long timeout, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(timeout), true);
+    }
+
+    /**
+     * @return a deadline that never expires but can still be cancelled
+     */
+    public static Deadline never() {
+        return new Deadline(0, false);
+    }
+
+    /**
+     * @return the deadline entered by the current thread, or null if none
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Make this the current deadline of the calling thread until the returned scope is closed
+     *
+     * @return the scope to close, which restores the previous deadline of the thread
+     */
+    public Scope enter() {
+        Deadline previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Run an operation with this deadline entered
+     *
+     * @param operation the operation to run
+     * @param <R> the type of result
+     * @return the result of the operation
+     */
+    public <R> R call(Supplier<R> operation) {
+        Scope scope = enter();
+        try {
+            return operation.get();
+        } finally {
+            scope.close();
+        }
+    }
+
+    /**
+     * Run an operation with this deadline entered
+     *
+     * @param operation the operation to run
+     */
+    public void run(Runnable operation) {
+        Scope scope = enter();
+        try {
+            operation.run();
+        } finally {
+            scope.close();
+        }
+    }
+
+    /**
+     * Cancel the operations running under this deadline: their waits end early and they fail
+     */
+    public void cancel() {
+        if (cancelled.compareAndSet(false, true)) {
+            cancellation.countDown();
+            for (Runnable listener : listeners) {
+                if (listeners.remove(listener)) {
+                    listener.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if {@link #cancel()} was called
+     */
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * @return true if the deadline has passed
+     */
+    public boolean isExpired() {
+        return bounded && System.nanoTime() - expiresAtNanos >= 0;
+    }
+
+    /**
+     * @return true if the deadline has passed or was cancelled; operations should not start anything new
+     */
+    public boolean isDone() {
+        return isCancelled() || isExpired();
+    }
+
+    /**
+     * @param unit the unit of the result
+     * @return the time left before the deadline (zero if passed), or {@link Long#MAX_VALUE} if it never expires
+     */
+    public long remaining(TimeUnit unit) {
+        if (!bounded)
+            return Long.MAX_VALUE;
+        return unit.convert(Math.max(0, expiresAtNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param timeout a timeout of a single wait
+     * @param unit the unit of the timeout
+     * @return the timeout shortened to the time left before the deadline
+     */
+    public long clamp(long timeout, TimeUnit unit) {
+        return Math.min(timeout, remaining(unit));
+    }
+
+    /**
+     * Wait until the deadline is cancelled, at most the given time (shortened to the time left)
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the deadline was cancelled
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitCancellation(long timeout, TimeUnit unit) throws InterruptedException {
+        return cancellation.await(clamp(timeout, unit), unit);
+    }
+
+    /**
+     * Run an action when the deadline is cancelled (right away if it already is), e.g. to cancel an outstanding
+     * remote call
+     *
+     * @param action the action to run
+     * @return the scope to close once the action is no longer needed
+     */
+    public Scope onCancel(Runnable action) {
+        listeners.add(action);
+        if (isCancelled() && listeners.remove(action)) {
+            action.run();
+        }
+        return () -> listeners.remove(action);
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{" + (isCancelled() ? "cancelled" : bounded ? remaining(TimeUnit.MILLISECONDS) + " ms left"
+                : "unbounded") + "}";
+    }
+
+    /**
+     * A scope that ends when closed; unlike {@link AutoCloseable} closing never fails
+     */
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
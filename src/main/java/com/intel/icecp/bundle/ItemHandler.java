@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle;
+
+/**
+ * Process a single stored item; see {@link BundleProcessor}.
+ *
+ * @param <T> the type of message stored in the storage module
+ */
+@FunctionalInterface
+public interface ItemHandler<T> {
+
+    /**
+     * Process the item; the item is marked finished only if this returns normally
+     *
+     * @param item the item to process
+     * @throws Exception if the item could not be processed; it will be left unfinished
+     */
+    void handle(StoredItem<T> item) throws Exception;
+}
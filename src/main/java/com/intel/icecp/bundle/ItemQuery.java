@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Restrict the items retrieved from a batch or bundle (see {@link StoredBatch#query(ItemQuery)}): a timestamp window,
+ * an ID range, tags that items must (or must not) carry and a maximum number of items. Queries are immutable; start
+ * from {@link #all()} and narrow it down, e.g. {@code ItemQuery.all().between(from, to).limit(100)}.
+ * <p>
+ * Implementations push queries down to the underlying storage when they can and always check the timestamp window,
+ * ID range and limit locally, in case the storage ignored them. Items do not expose their tags, so tags can only be
+ * filtered by the underlying storage.
+ *
+ */
+public final class ItemQuery {
+    private static final ItemQuery ALL = new ItemQuery(Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE,
+            Collections.emptySet(), Collections.emptySet(), Long.MAX_VALUE);
+    private final long fromTimestamp;
+    private final long toTimestamp;
+    private final long fromId;
+    private final long toId;
+    private final Set<String> includedTags;
+    private final Set<String> excludedTags;
+    private final long limit;
+
+    private ItemQuery(long fromTimestamp, long toTimestamp, long fromId, long toId, Set<String> includedTags,
+                      Set<String> excludedTags, long limit) {
+        this.fromTimestamp = fromTimestamp;
+        this.toTimestamp = toTimestamp;
+        this.fromId = fromId;
+        this.toId = toId;
+        this.includedTags = includedTags;
+        this.excludedTags = excludedTags;
+        this.limit = limit;
+    }
+
+    /**
+     * @return a query matching all items
+     */
+    public static ItemQuery all() {
+        return ALL;
+    }
+
+    /**
+     * @param from the first timestamp (in ms), inclusive
+     * @param to the last timestamp (in ms), inclusive
+     * @return a query also restricted to items with a timestamp in the given window
+     */
+    public ItemQuery between(long from, long to) {
+        return new ItemQuery(from, to, fromId, toId, includedTags, excludedTags, limit);
+    }
+
+    /**
+     * @param first the first item ID, inclusive
+     * @param last the last item ID, inclusive
+     * @return a query also restricted to items with an ID in the given range
+     */
+    public ItemQuery idRange(long first, long last) {
+        return new ItemQuery(fromTimestamp, toTimestamp, first, last, includedTags, excludedTags, limit);
+    }
+
+    /**
+     * @param tags tags, at least one of which items must carry
+     * @return a query also restricted to items carrying one of the given tags
+     */
+    public ItemQuery withAnyTag(Collection<String> tags) {
+        return new ItemQuery(fromTimestamp, toTimestamp, fromId, toId, union(includedTags, tags), excludedTags, limit);
+    }
+
+    /**
+     * @param tags tags that items must not carry
+     * @return a query also restricted to items carrying none of the given tags
+     */
+    public ItemQuery withoutTags(Collection<String> tags) {
+        return new ItemQuery(fromTimestamp, toTimestamp, fromId, toId, includedTags, union(excludedTags, tags), limit);
+    }
+
+    /**
+     * @param maxItems the maximum number of items to retrieve
+     * @return a query also restricted to the given number of items
+     */
+    public ItemQuery limit(long maxItems) {
+        if (maxItems < 0)
+            throw new IllegalArgumentException("The limit cannot be negative: " + maxItems);
+        return new ItemQuery(fromTimestamp, toTimestamp, fromId, toId, includedTags, excludedTags, maxItems);
+    }
+
+    /**
+     * @param item an item
+     * @return true if the timestamp and ID of the item match the query; tags are not checked
+     */
+    public boolean matches(StoredItem<?> item) {
+        return item.timestamp() >= fromTimestamp && item.timestamp() <= toTimestamp && item.id() >= fromId
+                && item.id() <= toId;
+    }
+
+    /**
+     * @return true if the query matches all items
+     */
+    public boolean isUnrestricted() {
+        return fromTimestamp == Long.MIN_VALUE && toTimestamp == Long.MAX_VALUE && fromId == Long.MIN_VALUE
+                && toId == Long.MAX_VALUE && includedTags.isEmpty() && excludedTags.isEmpty() && limit == Long.MAX_VALUE;
+    }
+
+    public long fromTimestamp() {
+        return fromTimestamp;
+    }
+
+    public long toTimestamp() {
+        return toTimestamp;
+    }
+
+    public long fromId() {
+        return fromId;
+    }
+
+    public long toId() {
+        return toId;
+    }
+
+    public Set<String> includedTags() {
+        return includedTags;
+    }
+
+    public Set<String> excludedTags() {
+        return excludedTags;
+    }
+
+    public long limit() {
+        return limit;
+    }
+
+    private static Set<String> union(Set<String> existing, Collection<String> added) {
+        Set<String> union = new HashSet<>(existing);
+        union.addAll(added);
+        return Collections.unmodifiableSet(union);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ItemQuery{timestamps=[%d, %d], ids=[%d, %d], includedTags=%s, excludedTags=%s, limit=%d}",
+                fromTimestamp, toTimestamp, fromId, toId, includedTags, excludedTags, limit);
+    }
+}
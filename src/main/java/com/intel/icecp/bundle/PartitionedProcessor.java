@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Process the unfinished items of a bundle in parallel while preserving order per key: each item is hashed by a
+ * user-supplied key (e.g. a device ID embedded in the message) into one of N single-threaded lanes, so items of the
+ * same key are processed one at a time in item ID order while different keys are processed in parallel.
+ * <p>
+ * Items are committed through {@link StoredBatch#commit(java.util.Collection)} only for the contiguous prefix of
+ * successfully processed items of each lane: once a handler fails, the items queued behind it in the same lane are
+ * no longer passed to the handler for the rest of the run and are left unfinished, so that they are redelivered in
+ * order along with the failed one (and no item of a key is handled before an earlier one that failed).
+ *
+ * @param <T> the type of message stored in the storage module
+ */
+public class PartitionedProcessor<T> implements AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private final List<ExecutorService> lanes = new ArrayList<>();
+    private final Function<StoredItem<T>, ?> keyExtractor;
+    private final int commitInterval;
+
+    /**
+     * Constructor
+     *
+     * @param lanes the number of single-threaded lanes
+     * @param keyExtractor extract the ordering key of an item; items with equal keys are processed in order
+     * @param commitInterval the number of items of a lane's finished prefix after which they are committed; the rest
+     * is committed once all items are processed
+     */
+    public PartitionedProcessor(int lanes, Function<StoredItem<T>, ?> keyExtractor, int commitInterval) {
+        for (int i = 0; i < lanes; i++) {
+            this.lanes.add(Executors.newSingleThreadExecutor());
+        }
+        this.keyExtractor = keyExtractor;
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Process all unfinished items of the bundle and wait for their completion
+     *
+     * @param bundle the bundle to process
+     * @param handler the handler to pass each item to
+     * @return the statistics of this run
+     * @throws InterruptedException if interrupted while waiting for the items to be processed
+     */
+    public ProcessingStats process(StoredBundle<T> bundle, ItemHandler<T> handler) throws InterruptedException {
+        ProcessingStats stats = new ProcessingStats();
+        List<Lane> run = lanes.stream().map(Lane::new).collect(Collectors.toList());
+
+        List<Entry<T>> entries = new ArrayList<>();
+        for (StoredBatch<T> batch : bundle.children()) {
+            for (StoredItem<T> item : batch.children()) {
+                if (!item.isFinished()) {
+                    entries.add(new Entry<>(batch, item));
+                }
+            }
+        }
+        entries.sort(Comparator.comparingLong(e -> e.item.id()));
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Entry<T> entry : entries) {
+            Object key = keyExtractor.apply(entry.item);
+            Lane lane = run.get(Math.floorMod(key == null ? 0 : key.hashCode(), run.size()));
+            futures.add(lane.submit(entry, handler, stats));
+        }
+        run.forEach(lane -> futures.add(lane.flush(stats)));
+
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).get();
+        } catch (ExecutionException e) {
+            // handlers and commits are guarded in the lanes, so this indicates a bug
+            throw new IllegalStateException("Unexpected failure while processing " + bundle, e);
+        } finally {
+            stats.stop();
+        }
+
+        LOGGER.info("Processed {} in {} lanes: {}", bundle, run.size(), stats);
+        return stats;
+    }
+
+    /**
+     * Shut down the lanes; items already submitted are still processed
+     */
+    @Override
+    public void close() {
+        lanes.forEach(ExecutorService::shutdown);
+    }
+
+    private static class Entry<T> {
+        private final StoredBatch<T> batch;
+        private final StoredItem<T> item;
+        private boolean succeeded = false;
+
+        Entry(StoredBatch<T> batch, StoredItem<T> item) {
+            this.batch = batch;
+            this.item = item;
+        }
+    }
+
+    /**
+     * The state of a lane during a single run; apart from {@link #pending}, which is filled by the dispatching
+     * thread, it is only accessed from the lane's own thread.
+     */
+    private class Lane {
+        private final ExecutorService executor;
+        private final Queue<Entry<T>> pending = new ConcurrentLinkedQueue<>();
+        private final List<Entry<T>> finishedPrefix = new ArrayList<>();
+        private boolean failed = false;
+
+        Lane(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        CompletableFuture<Void> submit(Entry<T> entry, ItemHandler<T> handler, ProcessingStats stats) {
+            pending.add(entry);
+            return CompletableFuture.runAsync(() -> {
+                if (failed) {
+                    stats.recordSkipped();
+                    return;
+                }
+                entry.succeeded = handle(entry.item, handler, stats);
+                failed = !entry.succeeded;
+                advance(stats);
+            }, executor);
+        }
+
+        CompletableFuture<Void> flush(ProcessingStats stats) {
+            return CompletableFuture.runAsync(() -> commit(stats), executor);
+        }
+
+        private boolean handle(StoredItem<T> item, ItemHandler<T> handler, ProcessingStats stats) {
+            long start = System.nanoTime();
+            try {
+                handler.handle(item);
+                stats.recordSuccess(System.nanoTime() - start);
+                return true;
+            } catch (Exception e) {
+                stats.recordFailure(System.nanoTime() - start);
+                LOGGER.error("Failed to process item {}; skipping it and the items behind it in its lane", item.id(), e);
+                return false;
+            }
+        }
+
+        private void advance(ProcessingStats stats) {
+            Entry<T> head;
+            while ((head = pending.peek()) != null && head.succeeded) {
+                finishedPrefix.add(pending.poll());
+            }
+            if (commitInterval > 0 && finishedPrefix.size() >= commitInterval) {
+                commit(stats);
+            }
+        }
+
+        private void commit(ProcessingStats stats) {
+            Map<StoredBatch<T>, List<Long>> idsByBatch = new LinkedHashMap<>();
+            finishedPrefix.forEach(e -> idsByBatch.computeIfAbsent(e.batch, b -> new ArrayList<>()).add(e.item.id()));
+
+            for (Map.Entry<StoredBatch<T>, List<Long>> batch : idsByBatch.entrySet()) {
+                try {
+                    batch.getKey().commit(batch.getValue());
+                    stats.recordCommit();
+                    finishedPrefix.removeIf(e -> e.batch == batch.getKey());
+                } catch (RuntimeException e) {
+                    LOGGER.error("Failed to commit items {} of batch {}; retrying on the next commit", batch.getValue(),
+                            batch.getKey().id(), e);
+                }
+            }
+        }
+    }
+}
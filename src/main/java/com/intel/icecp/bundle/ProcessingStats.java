@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Record the throughput and per-item latency of a processing run; see {@link BundleProcessor}. Recording is
+ * thread-safe so that all workers can share one instance.
+ *
+ */
+public class ProcessingStats {
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong endNanos = new AtomicLong();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+    void recordSuccess(long latencyNanos) {
+        processed.increment();
+        recordLatency(latencyNanos);
+    }
+
+    void recordFailure(long latencyNanos) {
+        failed.increment();
+        recordLatency(latencyNanos);
+    }
+
+    void recordSkipped() {
+        skipped.increment();
+    }
+
+    void recordCommit() {
+        commits.increment();
+    }
+
+    void stop() {
+        endNanos.compareAndSet(0, System.nanoTime());
+    }
+
+    private void recordLatency(long latencyNanos) {
+        totalLatencyNanos.add(latencyNanos);
+        maxLatencyNanos.accumulate(latencyNanos);
+    }
+
+    /**
+     * @return the number of items processed and marked finished
+     */
+    public long processed() {
+        return processed.sum();
+    }
+
+    /**
+     * @return the number of items whose handler failed; these are left unfinished
+     */
+    public long failed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the number of items not handled because an earlier item they must follow failed; these are left
+     * unfinished
+     */
+    public long skipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return the number of batch commits issued
+     */
+    public long commits() {
+        return commits.sum();
+    }
+
+    /**
+     * @return the time elapsed since the run started until it completed (or until now if still running)
+     */
+    public long elapsed(TimeUnit unit) {
+        long end = endNanos.get();
+        return unit.convert((end == 0 ? System.nanoTime() : end) - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of items processed (successfully or not) per second
+     */
+    public double throughput() {
+        long nanos = elapsed(TimeUnit.NANOSECONDS);
+        return nanos == 0 ? 0 : (processed() + failed()) * 1e9 / nanos;
+    }
+
+    /**
+     * @return the mean time spent in the handler per item
+     */
+    public long meanLatency(TimeUnit unit) {
+        long count = processed() + failed();
+        return count == 0 ? 0 : unit.convert(totalLatencyNanos.sum() / count, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the longest time spent in the handler for a single item
+     */
+    public long maxLatency(TimeUnit unit) {
+        return unit.convert(maxLatencyNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("processed=%d, failed=%d, skipped=%d, commits=%d, elapsed=%dms, throughput=%.1f/s, "
+                        + "meanLatency=%dus, maxLatency=%dus",
+                processed(), failed(), skipped(), commits(), elapsed(TimeUnit.MILLISECONDS), throughput(),
+                meanLatency(TimeUnit.MICROSECONDS), maxLatency(TimeUnit.MICROSECONDS));
+    }
+}
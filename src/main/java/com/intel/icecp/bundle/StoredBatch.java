@@ -16,6 +16,11 @@
 
 package com.intel.icecp.bundle;
 
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
 /**
  * See {@link StoredBundle} for general description.
  *
@@ -23,6 +28,12 @@ package com.intel.icecp.bundle;
  */
 public interface StoredBatch<T> extends Bundle<StoredItem<T>> {
 
+    /**
+     * Order items by timestamp, then by ID
+     */
+    Comparator<StoredItem<?>> TIMESTAMP_ORDER = Comparator.<StoredItem<?>>comparingLong(StoredItem::timestamp)
+            .thenComparingLong(StoredItem::id);
+
     /**
      * Returns unique identifier for the batch
      *
@@ -35,4 +46,50 @@ public interface StoredBatch<T> extends Bundle<StoredItem<T>> {
      * storage module)
      */
     void commit();
-}
\ No newline at end of file
+
+    /**
+     * Mark the items with the given IDs as finished and commit them to the storage module; the batch does not need to
+     * be retrieved for this, but any items of the batch already retrieved are updated accordingly
+     *
+     * @param itemIds the unique identifiers of the items to finish, see {@link StoredItem#id()}
+     */
+    void commit(Collection<Long> itemIds);
+
+    /**
+     * Mark the items with IDs in the given range as finished and commit them to the storage module; see {@link
+     * #commit(Collection)}. Only the IDs of the items of the batch are committed (item IDs may be sparse), so by
+     * default this retrieves the batch; implementations backed by remote storage should resolve the IDs without the
+     * content of the items.
+     *
+     * @param firstItemId the first item ID of the range, inclusive
+     * @param lastItemId the last item ID of the range, inclusive
+     */
+    default void commitRange(long firstItemId, long lastItemId) {
+        commit(stream().map(StoredItem::id).filter(id -> id >= firstItemId && id <= lastItemId)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Retrieve the items matching the query; by default this filters the items of the batch locally, implementations
+     * backed by remote storage should push the query down to avoid transferring the other items
+     *
+     * @param query the restrictions on the items to retrieve
+     * @return the matching items, at most {@link ItemQuery#limit()}
+     */
+    default Stream<StoredItem<T>> query(ItemQuery query) {
+        return stream().filter(query::matches).limit(query.limit());
+    }
+
+    /**
+     * Scan the items with a timestamp in the given window, in timestamp order; by default this filters and sorts the
+     * items of the batch, implementations should override it with an index lookup
+     *
+     * @param fromTimestamp the first timestamp (in ms), inclusive
+     * @param toTimestamp the last timestamp (in ms), inclusive
+     * @return the items in the window, sorted by timestamp (then by ID)
+     */
+    default Stream<StoredItem<T>> between(long fromTimestamp, long toTimestamp) {
+        return stream().filter(i -> i.timestamp() >= fromTimestamp && i.timestamp() <= toTimestamp)
+                .sorted(TIMESTAMP_ORDER);
+    }
+}
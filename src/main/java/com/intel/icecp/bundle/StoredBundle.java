@@ -16,6 +16,14 @@
 
 package com.intel.icecp.bundle;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * A specialization of {@link Bundle} to model a three-tiered storage system: bundles contain batches, batches contain
  * items. Implementations of these APIs should use the {@link #markFinished()} functionality for informing the
@@ -37,4 +45,61 @@ public interface StoredBundle<T> extends Bundle<StoredBatch<T>> {
      * @param item the item to add
      */
     void addItem(T item);
+
+    /**
+     * Mark the items with the given IDs as finished and commit them to the storage module, whichever batch they
+     * belong to; see {@link StoredBatch#commit(Collection)}
+     *
+     * @param itemIds the unique identifiers of the items to finish, see {@link StoredItem#id()}
+     */
+    void commit(Collection<Long> itemIds);
+
+    /**
+     * Mark the items with IDs in the given range as finished and commit them to the storage module; see {@link
+     * #commit(Collection)}. Only the IDs of the items of the bundle are committed (item IDs may be sparse), so by
+     * default this retrieves the bundle; implementations backed by remote storage should resolve the IDs without the
+     * content of the items.
+     *
+     * @param firstItemId the first item ID of the range, inclusive
+     * @param lastItemId the last item ID of the range, inclusive
+     */
+    default void commitRange(long firstItemId, long lastItemId) {
+        commit(stream().flatMap(StoredBatch::stream).map(StoredItem::id).filter(id -> id >= firstItemId && id <= lastItemId)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Retrieve the items matching the query from all batches, in batch order; see {@link StoredBatch#query(ItemQuery)}
+     *
+     * @param query the restrictions on the items to retrieve
+     * @return the matching items, at most {@link ItemQuery#limit()}
+     */
+    default Stream<StoredItem<T>> query(ItemQuery query) {
+        return stream().flatMap(b -> b.query(query)).limit(query.limit());
+    }
+
+    /**
+     * Scan the items of all batches with a timestamp in the given window, in global timestamp order; each batch is
+     * scanned with {@link StoredBatch#between(long, long)} and the scans are merged (see {@link
+     * TimestampMergeIterator}). The scans are only opened when the stream is consumed; the merge then holds one item
+     * per batch on top of what each scan holds (the default batch scan sorts the matching items of its batch).
+     *
+     * @param fromTimestamp the first timestamp (in ms), inclusive
+     * @param toTimestamp the last timestamp (in ms), inclusive
+     * @return the items in the window, sorted by timestamp (then by ID)
+     */
+    default Stream<StoredItem<T>> between(long fromTimestamp, long toTimestamp) {
+        Iterable<Iterator<StoredItem<T>>> scans = () -> stream()
+                .map(b -> b.between(fromTimestamp, toTimestamp).iterator()).iterator();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new TimestampMergeIterator<>(scans),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * @return the items of all batches in global timestamp order, merged from the batches without sorting them all
+     * at once (see {@link TimestampMergeIterator})
+     */
+    default Stream<StoredItem<T>> inTimestampOrder() {
+        return between(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
 }
@@ -24,6 +24,12 @@ package com.intel.icecp.bundle;
  */
 public interface StoredItem<T> extends Bundle {
 
+    /**
+     * @return the unique identifier of the stored item; this can be used to commit the item later without
+     * retrieving it again (see {@link StoredBatch#commit(java.util.Collection)})
+     */
+    long id();
+
     /**
      * @return the Unix timestamp (in ms) when the stored item was retrieved
      */
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merge sources of items that are each sorted by timestamp (see {@link StoredBatch#TIMESTAMP_ORDER}) into a single
+ * iteration in global timestamp order. Only the next item of each source is held, in a heap, so the merge itself holds
+ * one item per source (the sources may hold more) and each source is only advanced when its current item is consumed;
+ * ties between sources are broken by item ID, then by source order. Nothing is pulled until the merge is first
+ * consumed, so sources whose iterators are created on iteration (e.g. a stream of batches mapped to their scans) are
+ * not opened before then.
+ *
+ * @param <T> the type of message stored in the storage module
+ */
+public class TimestampMergeIterator<T> implements Iterator<StoredItem<T>> {
+    private final PriorityQueue<Head<T>> heap;
+    private Iterable<? extends Iterator<StoredItem<T>>> sources;
+
+    /**
+     * Constructor; the sources are iterated, and the first item of each pulled, on the first call to {@link
+     * #hasNext()} or {@link #next()}
+     *
+     * @param sources iterators over items sorted by timestamp, then ID
+     */
+    public TimestampMergeIterator(Iterable<? extends Iterator<StoredItem<T>>> sources) {
+        Comparator<Head<T>> order = Comparator.<Head<T>, StoredItem<T>>comparing(h -> h.current, StoredBatch.TIMESTAMP_ORDER)
+                .thenComparingInt(h -> h.rank);
+        this.heap = new PriorityQueue<>(order);
+        this.sources = sources;
+    }
+
+    @Override
+    public boolean hasNext() {
+        start();
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public StoredItem<T> next() {
+        start();
+        Head<T> head = heap.poll();
+        if (head == null)
+            throw new NoSuchElementException();
+
+        StoredItem<T> item = head.current;
+        if (head.source.hasNext()) {
+            head.current = head.source.next();
+            heap.add(head);
+        }
+        return item;
+    }
+
+    private void start() {
+        if (sources == null)
+            return;
+
+        int rank = 0;
+        for (Iterator<StoredItem<T>> source : sources) {
+            if (source.hasNext()) {
+                heap.add(new Head<>(source, source.next(), rank));
+            }
+            rank++;
+        }
+        sources = null;
+    }
+
+    /**
+     * A source and its current item
+     */
+    private static class Head<T> {
+        private final Iterator<StoredItem<T>> source;
+        private final int rank;
+        private StoredItem<T> current;
+
+        private Head(Iterator<StoredItem<T>> source, StoredItem<T> current, int rank) {
+            this.source = source;
+            this.current = current;
+            this.rank = rank;
+        }
+    }
+}
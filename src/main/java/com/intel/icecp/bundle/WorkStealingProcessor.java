@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Process all the unfinished items of a bundle on a work-stealing pool: the items of each batch are split in halves
+ * down to ranges of at most {@code rangeSize} items, and workers that run out of ranges steal the pending ranges of
+ * other batches, so that a huge batch is spread over all workers instead of keeping a single one busy. Each item is
+ * passed to an {@link ItemHandler} and marked finished if the handler succeeds; a batch is committed through {@link
+ * StoredBatch#commit()} once all of its ranges are processed.
+ * <p>
+ * Items are processed in no particular order; see {@link PartitionedProcessor} when order matters.
+ *
+ * @param <T> the type of message stored in the storage module
+ */
+public class WorkStealingProcessor<T> implements AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private final ForkJoinPool pool;
+    private final int rangeSize;
+
+    /**
+     * Constructor
+     *
+     * @param parallelism the number of worker threads
+     * @param rangeSize the largest number of items processed as a unit; smaller ranges balance better but cost more
+     * scheduling
+     */
+    public WorkStealingProcessor(int parallelism, int rangeSize) {
+        this(new ForkJoinPool(parallelism), rangeSize);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param pool the pool to run the handlers on; it is shut down when this processor is closed
+     * @param rangeSize see {@link #WorkStealingProcessor(int, int)}
+     */
+    public WorkStealingProcessor(ForkJoinPool pool, int rangeSize) {
+        if (rangeSize < 1)
+            throw new IllegalArgumentException("The range size must be positive: " + rangeSize);
+        this.pool = pool;
+        this.rangeSize = rangeSize;
+    }
+
+    /**
+     * Process all unfinished items of the bundle and wait for their completion
+     *
+     * @param bundle the bundle to process
+     * @param handler the handler to pass each item to
+     * @return the statistics of this run
+     * @throws InterruptedException if interrupted while waiting for the items to be processed
+     */
+    public ProcessingStats process(StoredBundle<T> bundle, ItemHandler<T> handler) throws InterruptedException {
+        ProcessingStats stats = new ProcessingStats();
+        long stealsBefore = pool.getStealCount();
+        List<RangeTask> batches = new ArrayList<>();
+        for (StoredBatch<T> batch : bundle.children()) {
+            List<StoredItem<T>> items = new ArrayList<>();
+            for (StoredItem<T> item : batch.children()) {
+                if (!item.isFinished()) {
+                    items.add(item);
+                }
+            }
+            RangeTask root = new RangeTask(null, batch, items, handler, stats, 0, items.size());
+            batches.add(root);
+            pool.execute(root);
+        }
+
+        try {
+            for (RangeTask batch : batches) {
+                batch.get();
+            }
+        } catch (ExecutionException e) {
+            // handlers and commits are guarded in processItem() and commit(), so this indicates a bug
+            throw new IllegalStateException("Unexpected failure while processing " + bundle, e);
+        } finally {
+            stats.stop();
+        }
+
+        LOGGER.info("Processed {} with {} steals: {}", bundle, pool.getStealCount() - stealsBefore, stats);
+        return stats;
+    }
+
+    private boolean processItem(StoredItem<T> item, ItemHandler<T> handler, ProcessingStats stats) {
+        long start = System.nanoTime();
+        try {
+            handler.handle(item);
+            item.markFinished();
+            stats.recordSuccess(System.nanoTime() - start);
+            return true;
+        } catch (Exception e) {
+            stats.recordFailure(System.nanoTime() - start);
+            LOGGER.error("Failed to process item {}; leaving it unfinished", item.id(), e);
+            return false;
+        }
+    }
+
+    private void commit(StoredBatch<T> batch, ProcessingStats stats) {
+        try {
+            batch.commit();
+            stats.recordCommit();
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to commit batch {}", batch.id(), e);
+        }
+    }
+
+    /**
+     * Shut down the pool; ranges already submitted are still processed
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * A range of the items of a batch; it forks its upper halves (which idle workers may steal) until it is small
+     * enough to process, and the range covering the whole batch commits the batch once all of its sub-ranges have
+     * completed.
+     */
+    private class RangeTask extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final StoredBatch<T> batch;
+        private final List<StoredItem<T>> items;
+        private final ItemHandler<T> handler;
+        private final ProcessingStats stats;
+        private final int from;
+        private final int to;
+
+        RangeTask(RangeTask parent, StoredBatch<T> batch, List<StoredItem<T>> items, ItemHandler<T> handler,
+                  ProcessingStats stats, int from, int to) {
+            super(parent);
+            this.batch = batch;
+            this.items = items;
+            this.handler = handler;
+            this.stats = stats;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void compute() {
+            int end = to;
+            while (end - from > rangeSize) {
+                int middle = (from + end) >>> 1;
+                addToPendingCount(1);
+                new RangeTask(this, batch, items, handler, stats, middle, end).fork();
+                end = middle;
+            }
+            for (int i = from; i < end; i++) {
+                processItem(items.get(i), handler, stats);
+            }
+            tryComplete();
+        }
+
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            if (getCompleter() == null) {
+                commit(batch, stats);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.lease;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link LeaseStore} kept in a local (or shared network) directory: each leased batch has a small file holding its
+ * owner, fencing token and expiration, and every operation runs under an exclusive lock on a lock file of the
+ * directory so that processes sharing the directory see consistent leases. Expirations are compared against the clock
+ * of the process running the operation, so the processes should run on the same host or have synchronized clocks.
+ * <p>
+ * Released leases keep their file (with no owner) so that tokens keep increasing; the file is deleted when the batch
+ * is removed.
+ *
+ */
+public class FileLeaseStore implements LeaseStore {
+    private static final ConcurrentMap<Path, Object> MONITORS = new ConcurrentHashMap<>();
+    private static final String LOCK_FILE_NAME = "leases.lock";
+    private static final String SUFFIX = ".lease";
+    private static final String NO_OWNER = "";
+    private final Path directory;
+    private final Object monitor;
+    private final LongSupplier clock;
+
+    /**
+     * Constructor
+     *
+     * @param directory the directory of the lease files; created if it does not exist
+     * @throws IOException if the directory cannot be created
+     */
+    public FileLeaseStore(Path directory) throws IOException {
+        this(directory, System::currentTimeMillis);
+    }
+
+    FileLeaseStore(Path directory, LongSupplier clock) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory.toRealPath();
+        // file locks are held by the whole JVM, stores of the same directory in one process must also exclude each other
+        this.monitor = MONITORS.computeIfAbsent(this.directory, d -> new Object());
+        this.clock = clock;
+    }
+
+    @Override
+    public Lease claim(long batchId, String owner, long durationMs) {
+        return locked(batchId, current -> {
+            long now = clock.getAsLong();
+            if (current != null && !current.owner().equals(NO_OWNER) && !current.owner().equals(owner)
+                    && !current.isExpiredAt(now)) {
+                return null;
+            }
+            long token = current == null ? 1 : current.owner().equals(owner) ? current.token() : current.token() + 1;
+            return write(new Lease(batchId, owner, token, now + durationMs));
+        });
+    }
+
+    @Override
+    public Lease renew(Lease lease, long durationMs) {
+        return locked(lease.batchId(), current -> {
+            if (!isCurrent(lease, current)) {
+                return null;
+            }
+            return write(new Lease(lease.batchId(), lease.owner(), lease.token(), clock.getAsLong() + durationMs));
+        });
+    }
+
+    @Override
+    public Lease steal(long batchId, String owner, long durationMs) {
+        return locked(batchId, current -> {
+            long token = current == null ? 1 : current.token() + 1;
+            return write(new Lease(batchId, owner, token, clock.getAsLong() + durationMs));
+        });
+    }
+
+    @Override
+    public void release(Lease lease) {
+        locked(lease.batchId(), current -> isCurrent(lease, current) ?
+                write(new Lease(lease.batchId(), NO_OWNER, lease.token(), 0)) : null);
+    }
+
+    @Override
+    public void remove(long batchId) {
+        locked(batchId, current -> {
+            Files.deleteIfExists(file(batchId));
+            return null;
+        });
+    }
+
+    @Override
+    public Lease current(long batchId) {
+        return locked(batchId, current -> current == null || current.owner().equals(NO_OWNER) ? null : current);
+    }
+
+    private static boolean isCurrent(Lease lease, Lease current) {
+        return current != null && current.token() == lease.token() && current.owner().equals(lease.owner());
+    }
+
+    /**
+     * Run an operation on the lease of a batch while holding the lock of the directory
+     */
+    private Lease locked(long batchId, LeaseOperation operation) {
+        synchronized (monitor) {
+            try (FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                // closing the channel releases the lock
+                channel.lock();
+                return operation.apply(read(batchId));
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to access the lease of batch " + batchId + " in " + directory, e);
+            }
+        }
+    }
+
+    private Lease read(long batchId) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file(batchId));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        return new Lease(batchId, in.readUTF(), in.readLong(), in.readLong());
+    }
+
+    private Lease write(Lease lease) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(lease.owner());
+            out.writeLong(lease.token());
+            out.writeLong(lease.expiresAt());
+            Path path = file(lease.batchId());
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(temporary, bytes.toByteArray());
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write " + lease, e);
+        }
+        return lease;
+    }
+
+    private Path file(long batchId) {
+        return directory.resolve(batchId + SUFFIX);
+    }
+
+    @FunctionalInterface
+    private interface LeaseOperation {
+        Lease apply(Lease current) throws IOException;
+    }
+}
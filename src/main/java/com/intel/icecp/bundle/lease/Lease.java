@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.lease;
+
+/**
+ * A time-limited claim of a process (the owner) on a batch. The token increases every time the batch changes hands
+ * so that a former owner cannot renew or act on a lease that expired or was stolen in the meantime.
+ *
+ */
+public final class Lease {
+    private final long batchId;
+    private final String owner;
+    private final long token;
+    private final long expiresAt;
+
+    /**
+     * Constructor
+     *
+     * @param batchId the unique identifier of the leased batch, see {@link com.intel.icecp.bundle.StoredBatch#id()}
+     * @param owner the identifier of the owning process
+     * @param token the fencing token of the lease
+     * @param expiresAt the Unix timestamp (in ms) after which the lease can be claimed by another owner
+     */
+    public Lease(long batchId, String owner, long token, long expiresAt) {
+        this.batchId = batchId;
+        this.owner = owner;
+        this.token = token;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @return the unique identifier of the leased batch
+     */
+    public long batchId() {
+        return batchId;
+    }
+
+    /**
+     * @return the identifier of the owning process
+     */
+    public String owner() {
+        return owner;
+    }
+
+    /**
+     * @return the fencing token of the lease; a lease is only valid while its token is the current one of the batch
+     */
+    public long token() {
+        return token;
+    }
+
+    /**
+     * @return the Unix timestamp (in ms) after which the lease can be claimed by another owner
+     */
+    public long expiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @param now the current Unix timestamp (in ms)
+     * @return true if the lease has expired at the given time
+     */
+    public boolean isExpiredAt(long now) {
+        return now >= expiresAt;
+    }
+
+    @Override
+    public String toString() {
+        return "Lease{batch=" + batchId + ", owner=" + owner + ", token=" + token + ", expiresAt=" + expiresAt + "}";
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.lease;
+
+/**
+ * Coordinates the ownership of batches between processes with leases (see {@link Lease}). Implementations must make
+ * each operation atomic across all the processes sharing the store. Failures to reach the store are reported with
+ * {@link IllegalStateException}s.
+ *
+ */
+public interface LeaseStore {
+
+    /**
+     * Claim a batch that is not leased or whose lease has expired; the owner of a still valid lease may claim it
+     * again, which renews it
+     *
+     * @param batchId the unique identifier of the batch
+     * @param owner the identifier of the claiming process
+     * @param durationMs the duration of the lease
+     * @return the new lease, or null if the batch is leased by another owner
+     */
+    Lease claim(long batchId, String owner, long durationMs);
+
+    /**
+     * Extend a lease that is still the current one of its batch; a lease that has expired but was not claimed by
+     * another owner in the meantime can still be renewed
+     *
+     * @param lease the lease to extend
+     * @param durationMs the new duration of the lease, from now
+     * @return the renewed lease, or null if the lease was lost to another owner
+     */
+    Lease renew(Lease lease, long durationMs);
+
+    /**
+     * Take over a batch regardless of its current lease, e.g. to rebalance the work away from an overloaded or stuck
+     * owner; the previous owner loses the lease at its next renewal
+     *
+     * @param batchId the unique identifier of the batch
+     * @param owner the identifier of the stealing process
+     * @param durationMs the duration of the lease
+     * @return the new lease
+     */
+    Lease steal(long batchId, String owner, long durationMs);
+
+    /**
+     * Give up a lease so that other owners can claim the batch right away; does nothing if the lease was already lost
+     *
+     * @param lease the lease to give up
+     */
+    void release(Lease lease);
+
+    /**
+     * Forget a batch once it is finished; no owner needs to claim it again
+     *
+     * @param batchId the unique identifier of the batch
+     */
+    void remove(long batchId);
+
+    /**
+     * @param batchId the unique identifier of the batch
+     * @return the current lease of the batch (possibly expired), or null if the batch is not leased
+     */
+    Lease current(long batchId);
+}
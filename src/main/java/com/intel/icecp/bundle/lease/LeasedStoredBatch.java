@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.lease;
+
+import com.intel.icecp.bundle.ItemQuery;
+import com.intel.icecp.bundle.StoredBatch;
+import com.intel.icecp.bundle.StoredItem;
+
+import java.util.Collection;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+
+/**
+ * A batch of a {@link LeasedStoredBundle}; commits and finish marks are only forwarded to the shared batch while the
+ * lease is held.
+ *
+ */
+class LeasedStoredBatch<T> implements StoredBatch<T> {
+    private final LeasedStoredBundle<T> bundle;
+    private final StoredBatch<T> shared;
+
+    LeasedStoredBatch(LeasedStoredBundle<T> bundle, StoredBatch<T> shared) {
+        this.bundle = bundle;
+        this.shared = shared;
+    }
+
+    @Override
+    public long id() {
+        return shared.id();
+    }
+
+    @Override
+    public boolean hasChildren() {
+        return shared.hasChildren();
+    }
+
+    @Override
+    public Iterable<StoredItem<T>> children() {
+        return shared.children();
+    }
+
+    @Override
+    public Spliterator<StoredItem<T>> spliterator() {
+        return shared.spliterator();
+    }
+
+    @Override
+    public void markFinished() {
+        bundle.checkLease(id());
+        shared.markFinished();
+        bundle.committed(shared);
+    }
+
+    @Override
+    public void markFinishedInParallel() {
+        bundle.checkLease(id());
+        shared.markFinishedInParallel();
+        bundle.committed(shared);
+    }
+
+    @Override
+    public boolean isFinished() {
+        return shared.isFinished();
+    }
+
+    @Override
+    public boolean isFinishedInParallel() {
+        return shared.isFinishedInParallel();
+    }
+
+    @Override
+    public void commit() {
+        bundle.checkLease(id());
+        shared.commit();
+        bundle.committed(shared);
+    }
+
+    @Override
+    public void commit(Collection<Long> itemIds) {
+        bundle.checkLease(id());
+        shared.commit(itemIds);
+        bundle.committed(shared);
+    }
+
+    @Override
+    public void commitRange(long firstItemId, long lastItemId) {
+        bundle.checkLease(id());
+        shared.commitRange(firstItemId, lastItemId);
+        bundle.committed(shared);
+    }
+
+    @Override
+    public Stream<StoredItem<T>> query(ItemQuery query) {
+        return shared.query(query);
+    }
+
+    @Override
+    public Stream<StoredItem<T>> between(long fromTimestamp, long toTimestamp) {
+        return shared.between(fromTimestamp, toTimestamp);
+    }
+}
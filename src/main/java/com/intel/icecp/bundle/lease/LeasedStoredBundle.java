@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.lease;
+
+import com.intel.icecp.bundle.StoredBatch;
+import com.intel.icecp.bundle.StoredBundle;
+import com.intel.icecp.bundle.StoredItem;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * A view of a bundle shared by several consumer processes: each process only sees the batches it holds a lease on
+ * (see {@link LeaseStore}), so that batches are processed by one process at a time. Listing the batches claims the
+ * ones that are not leased or whose lease has expired, e.g. because their owner died; held leases are renewed in the
+ * background and before every commit, and a commit fails with an {@link IllegalStateException} if the lease was lost
+ * in the meantime (it expired and was claimed, or was stolen, by another owner). The lease of a batch is removed once
+ * the batch is finished.
+ *
+ * @param <T> the type of message stored in the storage module
+ */
+public class LeasedStoredBundle<T> implements StoredBundle<T>, AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private final StoredBundle<T> shared;
+    private final LeaseStore store;
+    private final String owner;
+    private final long leaseDurationMs;
+    private final Map<Long, Lease> held = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService renewer;
+
+    /**
+     * Constructor; starts renewing the held leases every third of their duration
+     *
+     * @param shared the bundle shared with the other processes
+     * @param store the store of the leases, shared with the other processes
+     * @param owner the identifier of this process; must be unique among the processes sharing the store
+     * @param leaseDurationMs the duration of the leases; a batch is available to other processes this long after its
+     * owner stopped renewing it
+     */
+    public LeasedStoredBundle(StoredBundle<T> shared, LeaseStore store, String owner, long leaseDurationMs) {
+        this.shared = shared;
+        this.store = store;
+        this.owner = owner;
+        this.leaseDurationMs = leaseDurationMs;
+        this.renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lease-renewer-" + owner);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, leaseDurationMs / 3);
+        renewer.scheduleWithFixedDelay(this::renewQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a new batch in the shared bundle and claim it
+     *
+     * @return the new batch, or null if the shared bundle could not create it
+     */
+    @Override
+    public StoredBatch<T> newBatch() {
+        StoredBatch<T> batch = shared.newBatch();
+        if (batch == null)
+            return null;
+
+        claim(batch.id());
+        return new LeasedStoredBatch<>(this, batch);
+    }
+
+    @Override
+    public void addItem(T item) {
+        shared.addItem(item);
+    }
+
+    /**
+     * Commit the given items; all of them must belong to batches leased by this process
+     *
+     * @param itemIds the unique identifiers of the items to finish, see {@link StoredItem#id()}
+     * @throws IllegalStateException if some of the items do not belong to a batch leased by this process
+     */
+    @Override
+    public void commit(Collection<Long> itemIds) {
+        Set<Long> remaining = new HashSet<>(itemIds);
+        for (StoredBatch<T> batch : shared.children()) {
+            if (remaining.isEmpty())
+                break;
+            if (held.containsKey(batch.id())) {
+                List<Long> ids = batch.stream().map(StoredItem::id).filter(remaining::remove).collect(Collectors.toList());
+                if (!ids.isEmpty()) {
+                    new LeasedStoredBatch<>(this, batch).commit(ids);
+                }
+            }
+        }
+        if (!remaining.isEmpty())
+            throw new IllegalStateException("The following items are not in a batch leased by " + owner + ": " + remaining);
+    }
+
+    @Override
+    public boolean hasChildren() {
+        return !claimed().isEmpty();
+    }
+
+    /**
+     * @return the batches of the shared bundle leased by this process, claiming the available ones
+     */
+    @Override
+    public Iterable<StoredBatch<T>> children() {
+        return claimed();
+    }
+
+    /**
+     * @return the batches leased by this process, claiming the available ones as for {@link #children()}
+     */
+    @Override
+    public Spliterator<StoredBatch<T>> spliterator() {
+        return Spliterators.spliterator(claimed().toArray(), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    /**
+     * Take over a batch even if another process holds its lease, e.g. to rebalance the work away from a stuck
+     * process; the other process fails to commit the batch from then on
+     *
+     * @param batchId the unique identifier of the batch
+     */
+    public void steal(long batchId) {
+        Lease lease = store.steal(batchId, owner, leaseDurationMs);
+        held.put(batchId, lease);
+        LOGGER.info("Stole the lease on batch {}", batchId);
+    }
+
+    /**
+     * @return the unique identifiers of the batches leased by this process
+     */
+    public Set<Long> leasedBatches() {
+        return new HashSet<>(held.keySet());
+    }
+
+    /**
+     * Stop renewing, release the held leases so that other processes can claim the batches right away and close the
+     * shared bundle if it needs closing
+     *
+     * @throws IllegalStateException if the shared bundle cannot be closed
+     */
+    @Override
+    public void close() {
+        renewer.shutdown();
+        try {
+            renewer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Lease lease : held.values()) {
+            try {
+                store.release(lease);
+            } catch (IllegalStateException e) {
+                LOGGER.warn("Unable to release {}, it will expire", lease, e);
+            }
+        }
+        held.clear();
+        if (shared instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) shared).close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while closing the shared bundle", e);
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to close the shared bundle", e);
+            }
+        }
+    }
+
+    /**
+     * Renew the lease of a batch before acting on it
+     *
+     * @param batchId the unique identifier of the batch
+     * @throws IllegalStateException if the lease was lost to another owner
+     */
+    void checkLease(long batchId) {
+        Lease lease = held.get(batchId);
+        Lease renewed = lease == null ? null : store.renew(lease, leaseDurationMs);
+        if (renewed == null) {
+            held.remove(batchId);
+            throw new IllegalStateException("Batch " + batchId + " is not leased by " + owner);
+        }
+        held.put(batchId, renewed);
+    }
+
+    /**
+     * Forget the lease of a finished batch
+     *
+     * @param batch the batch just committed
+     */
+    void committed(StoredBatch<T> batch) {
+        if (batch.isFinished() && held.remove(batch.id()) != null) {
+            store.remove(batch.id());
+        }
+    }
+
+    /**
+     * Renew the held leases, forgetting the ones lost to other owners
+     */
+    void renew() {
+        for (Lease lease : held.values()) {
+            Lease renewed = store.renew(lease, leaseDurationMs);
+            if (renewed == null) {
+                held.remove(lease.batchId());
+                LOGGER.warn("Lost the lease on batch {}", lease.batchId());
+            } else {
+                held.put(lease.batchId(), renewed);
+            }
+        }
+    }
+
+    private void renewQuietly() {
+        try {
+            renew();
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to renew leases, will retry", e);
+        }
+    }
+
+    private List<StoredBatch<T>> claimed() {
+        List<StoredBatch<T>> claimed = new ArrayList<>();
+        for (StoredBatch<T> batch : shared.children()) {
+            if (claim(batch.id())) {
+                claimed.add(new LeasedStoredBatch<>(this, batch));
+            }
+        }
+        return claimed;
+    }
+
+    private boolean claim(long batchId) {
+        Lease lease = held.get(batchId);
+        if (lease != null && !lease.isExpiredAt(System.currentTimeMillis()))
+            return true;
+
+        lease = store.claim(batchId, owner, leaseDurationMs);
+        if (lease == null) {
+            held.remove(batchId);
+            return false;
+        }
+        held.put(batchId, lease);
+        return true;
+    }
+}
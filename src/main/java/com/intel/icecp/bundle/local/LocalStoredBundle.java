@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.local;
+
+import com.intel.icecp.bundle.StoredBatch;
+import com.intel.icecp.bundle.StoredBundle;
+import com.intel.icecp.core.messages.BytesMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+
+/**
+ * Store bundles of batches of messages in local files, for nodes without a storage module. Items are appended to
+ * segment files (see {@link SegmentLog}) through a write buffer and are durable once {@link #flush()} returns (or the
+ * bundle is closed); commits are durable immediately. Segments are read through memory maps and deleted once all of
+ * their items have been committed, after which the content of those items can no longer be read.
+ * <p>
+ * Batch and item IDs are assigned locally in increasing order. Finished batches other than the current one are
+ * removed from the children of the bundle, like {@link com.intel.icecp.bundle.messages.MessageBundle} does.
+ *
+ */
+public class LocalStoredBundle implements StoredBundle<BytesMessage>, AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final long COMMITS_REWRITE_BYTES = 4L * 1024 * 1024;
+    private final SegmentLog log;
+    private final Map<Long, LocalStoredBatch> batches = new LinkedHashMap<>();
+    private final Map<Long, LocalStoredItem> items = new HashMap<>();
+    private LocalStoredBatch currentBatch;
+    private long lastBatchId = 0;
+    private long lastItemId = 0;
+
+    /**
+     * Constructor; opens (or creates) the bundle stored in the given directory
+     *
+     * @param directory the directory of the segment files
+     * @throws IOException if the stored bundle cannot be read
+     */
+    public LocalStoredBundle(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Constructor; opens (or creates) the bundle stored in the given directory
+     *
+     * @param directory the directory of the segment files
+     * @param maxSegmentBytes the size after which a segment is sealed and a new one started
+     * @throws IOException if the stored bundle cannot be read
+     */
+    public LocalStoredBundle(Path directory, long maxSegmentBytes) throws IOException {
+        this.log = new SegmentLog(directory, maxSegmentBytes);
+        log.open(new Loader());
+        currentBatch = batches.get(lastBatchId);
+        LOGGER.info("Opened local bundle in {} with {} batches and {} items", directory, batches.size(), items.size());
+    }
+
+    @Override
+    public synchronized StoredBatch<BytesMessage> newBatch() {
+        long id = lastBatchId + 1;
+        try {
+            log.appendBatch(id);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create a new batch", e);
+        }
+        lastBatchId = id;
+        currentBatch = batches.computeIfAbsent(id, i -> new LocalStoredBatch(this, i));
+        return currentBatch;
+    }
+
+    /**
+     * Add an item to the current batch, creating one if necessary; the item is buffered and becomes durable on the
+     * next {@link #flush()}
+     *
+     * @param item the item to add
+     */
+    @Override
+    public synchronized void addItem(BytesMessage item) {
+        if (currentBatch == null) {
+            newBatch();
+        }
+
+        long id = lastItemId + 1;
+        long timestamp = System.currentTimeMillis();
+        try {
+            SegmentLog.Location location = log.appendItem(currentBatch.id(), id, timestamp, item.getBytes());
+            lastItemId = id;
+            LocalStoredItem stored = new LocalStoredItem(this, id, timestamp, location);
+            items.put(id, stored);
+            currentBatch.add(stored);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to add an item to batch " + currentBatch.id(), e);
+        }
+    }
+
+    /**
+     * Make all added items durable
+     */
+    public synchronized void flush() {
+        try {
+            log.sync();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to flush the local bundle", e);
+        }
+    }
+
+    @Override
+    public synchronized void commit(Collection<Long> itemIds) {
+        List<LocalStoredItem> toCommit = itemIds.stream().map(items::get).filter(i -> i != null && !i.isCommitted())
+                .collect(Collectors.toList());
+        if (toCommit.isEmpty())
+            return;
+
+        try {
+            log.appendCommits(toCommit.stream().map(LocalStoredItem::id).collect(Collectors.toList()));
+            for (LocalStoredItem item : toCommit) {
+                item.setCommitted();
+                release(item);
+            }
+            if (log.commitsSize() > COMMITS_REWRITE_BYTES) {
+                log.rewriteCommits(items.values().stream().filter(LocalStoredItem::isCommitted).map(LocalStoredItem::id)
+                        .collect(Collectors.toList()));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to commit items " + itemIds, e);
+        }
+    }
+
+    @Override
+    public synchronized boolean hasChildren() {
+        cleanupFinishedBatches();
+        return !batches.isEmpty();
+    }
+
+    @Override
+    public synchronized Iterable<StoredBatch<BytesMessage>> children() {
+        cleanupFinishedBatches();
+        return new ArrayList<>(batches.values());
+    }
+
+    /**
+     * @return the batches still holding unfinished items; finished batches are dropped first
+     */
+    @Override
+    public synchronized Spliterator<StoredBatch<BytesMessage>> spliterator() {
+        cleanupFinishedBatches();
+        return Spliterators.spliterator(batches.values().toArray(), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    /**
+     * @return the number of segment files currently used
+     */
+    public synchronized int segmentCount() {
+        return log.segmentCount();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    /**
+     * Read the content of an item; only items still in the write buffer need the bundle monitor (to flush them), so
+     * reads do not wait for items being added or committed, only for the compaction of the segment being read
+     */
+    byte[] read(SegmentLog.Location location) {
+        try {
+            if (!location.isWritten()) {
+                synchronized (this) {
+                    return log.read(location);
+                }
+            }
+            return log.read(location);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read item content", e);
+        }
+    }
+
+    /**
+     * Release a committed item from its segment; if this compacts the segment, the committed items it contained are
+     * forgotten since they can no longer be read
+     */
+    private void release(LocalStoredItem item) throws IOException {
+        if (log.release(item.location())) {
+            items.values().removeIf(i -> i.location().isInSameSegment(item.location()));
+        }
+    }
+
+    private void cleanupFinishedBatches() {
+        batches.values().removeIf(b -> b != currentBatch && b.isFinished());
+    }
+
+    /**
+     * Rebuild the batches and items from the log when it is opened
+     */
+    private class Loader implements SegmentLog.Visitor {
+        @Override
+        public void onBatch(long batchId) {
+            batch(batchId);
+        }
+
+        @Override
+        public void onItem(long batchId, long itemId, long timestamp, SegmentLog.Location location) {
+            LocalStoredItem item = new LocalStoredItem(LocalStoredBundle.this, itemId, timestamp, location);
+            items.put(itemId, item);
+            batch(batchId).add(item);
+            lastItemId = Math.max(lastItemId, itemId);
+        }
+
+        @Override
+        public void onHighWater(long batchId, long itemId) {
+            lastBatchId = Math.max(lastBatchId, batchId);
+            lastItemId = Math.max(lastItemId, itemId);
+        }
+
+        private LocalStoredBatch batch(long batchId) {
+            lastBatchId = Math.max(lastBatchId, batchId);
+            return batches.computeIfAbsent(batchId, i -> new LocalStoredBatch(LocalStoredBundle.this, i));
+        }
+
+        @Override
+        public void onCommit(long itemId) {
+            LocalStoredItem item = items.get(itemId);
+            if (item != null && !item.isCommitted()) {
+                item.setCommitted();
+                try {
+                    release(item);
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to compact the segment of item {}", itemId, e);
+                }
+            }
+        }
+    }
+}
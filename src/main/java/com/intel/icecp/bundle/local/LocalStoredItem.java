@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.local;
+
+import com.intel.icecp.bundle.StoredItem;
+import com.intel.icecp.core.messages.BytesMessage;
+
+/**
+ * Represent an item stored in a segment of a {@link LocalStoredBundle}; its content is read from the segment each
+ * time {@link #value()} is called.
+ *
+ */
+class LocalStoredItem implements StoredItem<BytesMessage> {
+    private final LocalStoredBundle bundle;
+    private final long id;
+    private final long timestamp;
+    private final SegmentLog.Location location;
+    private volatile boolean finished = false;
+    private volatile boolean committed = false;
+
+    LocalStoredItem(LocalStoredBundle bundle, long id, long timestamp, SegmentLog.Location location) {
+        this.bundle = bundle;
+        this.id = id;
+        this.timestamp = timestamp;
+        this.location = location;
+    }
+
+    @Override
+    public long id() {
+        return id;
+    }
+
+    @Override
+    public long timestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public BytesMessage value() {
+        return new BytesMessage(bundle.read(location));
+    }
+
+    @Override
+    public void markFinished() {
+        finished = true;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    SegmentLog.Location location() {
+        return location;
+    }
+
+    boolean isCommitted() {
+        return committed;
+    }
+
+    void setCommitted() {
+        finished = true;
+        committed = true;
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.local;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only storage of items in segment files plus a separate log of committed item IDs. Items are appended to the
+ * active segment through a write buffer so that many small items cost few system calls; once the active segment
+ * exceeds its maximum size it is sealed and a new one is started. Item contents are read back through read-only
+ * memory maps of the segments. A sealed segment whose items have all been committed is deleted (compacted).
+ * <p>
+ * Segment records are {@code [BATCH:1][batchId:8][crc:4]} and {@code [ITEM:1][batchId:8][itemId:8][timestamp:8]
+ * [length:4][payload][crc:4]}; commit records are {@code [count:4][ids:8*count][crc:4]}. Each segment starts with a
+ * {@code [HIGH_WATER:1][lastBatchId:8][lastItemId:8][crc:4]} record holding the highest IDs appended before it, so
+ * that IDs are never reused once the segments holding them are deleted (the active segment is never deleted). Torn or
+ * corrupt records at the end of a file are discarded on load. This class is not thread-safe; {@link LocalStoredBundle} serializes
+ * access to it, except for reading items already written to their segment (see {@link Location#isWritten()}), which
+ * each segment guards against its own compaction.
+ *
+ */
+class SegmentLog implements AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String COMMITS_FILE = "commits.log";
+    private static final byte BATCH = 1;
+    private static final byte ITEM = 2;
+    private static final byte HIGH_WATER = 3;
+    private static final int BATCH_RECORD_SIZE = 1 + 8 + 4;
+    private static final int ITEM_HEADER_SIZE = 1 + 8 + 8 + 8 + 4;
+    private static final int HIGH_WATER_RECORD_SIZE = 1 + 8 + 8 + 4;
+    private static final int CHECKSUM_SIZE = 4;
+    private static final int WRITE_BUFFER_BYTES = 256 * 1024;
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+    private FileChannel commits;
+    private long commitsSize;
+    private Segment active;
+    private long lastBatchId = 0;
+    private long lastItemId = 0;
+
+    /**
+     * Receive the contents of the log while it is opened
+     */
+    interface Visitor {
+        void onBatch(long batchId);
+
+        void onItem(long batchId, long itemId, long timestamp, Location location);
+
+        /**
+         * Called with the highest batch and item IDs appended before a segment, including those of deleted segments
+         */
+        void onHighWater(long lastBatchId, long lastItemId);
+
+        /**
+         * Called after all items have been visited
+         */
+        void onCommit(long itemId);
+    }
+
+    /**
+     * Locate the payload of an item in a segment
+     */
+    static class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        boolean isInSameSegment(Location other) {
+            return segment == other.segment;
+        }
+
+        /**
+         * @return true if the item was written to its segment, false if it is still in the write buffer
+         */
+        boolean isWritten() {
+            return offset + length <= segment.size;
+        }
+    }
+
+    SegmentLog(Path directory, long maxSegmentBytes) {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * Open (or create) the log, passing its contents to the visitor
+     *
+     * @param visitor the receiver of the stored batches, items and commits
+     * @throws IOException if the log cannot be read
+     */
+    void open(Visitor visitor) throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(sequence, new Segment(sequence, file));
+            }
+        }
+        for (Segment segment : segments.values()) {
+            load(segment, visitor);
+            segment.sealed = true;
+        }
+
+        if (segments.isEmpty()) {
+            roll();
+        } else {
+            active = segments.lastEntry().getValue();
+            active.sealed = false;
+        }
+
+        commits = FileChannel.open(directory.resolve(COMMITS_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        loadCommits(visitor);
+
+        // segments holding no items at all (e.g. only batch records) are never released by a commit
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment.sealed && segment.live <= 0) {
+                compact(segment);
+            }
+        }
+    }
+
+    void appendBatch(long batchId) throws IOException {
+        ByteBuffer record = reserve(BATCH_RECORD_SIZE);
+        int start = record.position();
+        record.put(BATCH).putLong(batchId);
+        putChecksum(record, start);
+        lastBatchId = Math.max(lastBatchId, batchId);
+    }
+
+    Location appendItem(long batchId, long itemId, long timestamp, byte[] payload) throws IOException {
+        ByteBuffer record = reserve(ITEM_HEADER_SIZE + payload.length + CHECKSUM_SIZE);
+        int start = record.position();
+        long offset = active.size + (record == writeBuffer ? start : 0) + ITEM_HEADER_SIZE;
+        record.put(ITEM).putLong(batchId).putLong(itemId).putLong(timestamp).putInt(payload.length).put(payload);
+        putChecksum(record, start);
+        if (record != writeBuffer) {
+            write(record);
+        }
+
+        active.live++;
+        lastItemId = Math.max(lastItemId, itemId);
+        return new Location(active, offset, payload.length);
+    }
+
+    /**
+     * Durably record the given item IDs as committed
+     */
+    void appendCommits(Collection<Long> itemIds) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(4 + 8 * itemIds.size() + CHECKSUM_SIZE);
+        record.putInt(itemIds.size());
+        itemIds.forEach(record::putLong);
+        putChecksum(record, 0);
+        record.flip();
+        while (record.hasRemaining()) {
+            commitsSize += commits.write(record, commitsSize);
+        }
+        commits.force(false);
+    }
+
+    /**
+     * @return the size of the commit log, which grows until rewritten with {@link #rewriteCommits(Collection)}
+     */
+    long commitsSize() {
+        return commitsSize;
+    }
+
+    /**
+     * Atomically replace the commit log with one only containing the given IDs, i.e. the committed items that are
+     * still stored in a segment
+     */
+    void rewriteCommits(Collection<Long> itemIds) throws IOException {
+        Path temporary = directory.resolve(COMMITS_FILE + ".tmp");
+        try (FileChannel rewritten = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer record = ByteBuffer.allocate(4 + 8 * itemIds.size() + CHECKSUM_SIZE);
+            record.putInt(itemIds.size());
+            itemIds.forEach(record::putLong);
+            putChecksum(record, 0);
+            record.flip();
+            while (record.hasRemaining()) {
+                rewritten.write(record);
+            }
+            rewritten.force(false);
+        }
+        commits.close();
+        Files.move(temporary, directory.resolve(COMMITS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        commits = FileChannel.open(directory.resolve(COMMITS_FILE), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        commitsSize = commits.size();
+    }
+
+    /**
+     * Read the payload of an item; this may run concurrently with the other operations if the item is already written
+     * to its segment
+     *
+     * @throws IOException if the item's segment was compacted or cannot be read
+     */
+    byte[] read(Location location) throws IOException {
+        if (!location.isWritten()) {
+            flush(); // the item is still in the write buffer
+        }
+        return location.segment.read(location.offset, location.length);
+    }
+
+    /**
+     * Release an item once it is committed; sealed segments without any uncommitted item left are deleted
+     *
+     * @return true if this deleted the item's segment
+     */
+    boolean release(Location location) throws IOException {
+        Segment segment = location.segment;
+        segment.live--;
+        if (segment.sealed && segment.live <= 0 && segments.containsKey(segment.sequence)) {
+            compact(segment);
+            return true;
+        }
+        return false;
+    }
+
+    private void compact(Segment segment) throws IOException {
+        segments.remove(segment.sequence);
+        segment.delete();
+        LOGGER.info("Compacted fully committed segment {}", segment.path);
+    }
+
+    /**
+     * @return the number of segment files, including the active one
+     */
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Write the buffered records to the active segment
+     */
+    void flush() throws IOException {
+        if (writeBuffer.position() > 0) {
+            writeBuffer.flip();
+            write(writeBuffer);
+            writeBuffer.clear();
+        }
+    }
+
+    /**
+     * Write the buffered records and force the active segment to disk
+     */
+    void sync() throws IOException {
+        flush();
+        active.channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        commits.close();
+    }
+
+    /**
+     * @return the write buffer with enough room for a record of the given size, or a dedicated buffer if the record
+     * does not fit in the write buffer at all; rolls the active segment if the record would exceed its maximum size
+     */
+    private ByteBuffer reserve(int recordSize) throws IOException {
+        if (active.size + writeBuffer.position() + recordSize > maxSegmentBytes && active.size + writeBuffer.position() > 0) {
+            flush();
+            active.channel.force(false);
+            active.sealed = true;
+            Segment sealed = active;
+            roll();
+            if (sealed.live <= 0) {
+                compact(sealed); // all its items were committed while it was active
+            }
+        }
+        if (recordSize > writeBuffer.capacity()) {
+            flush();
+            return ByteBuffer.allocate(recordSize);
+        }
+        if (recordSize > writeBuffer.remaining()) {
+            flush();
+        }
+        return writeBuffer;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        if (buffer != writeBuffer) {
+            buffer.flip();
+        }
+        while (buffer.hasRemaining()) {
+            active.size += active.channel.write(buffer, active.size);
+        }
+    }
+
+    private void roll() throws IOException {
+        long sequence = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        active = new Segment(sequence, directory.resolve(String.format("%020d%s", sequence, SEGMENT_SUFFIX)));
+        segments.put(sequence, active);
+
+        int start = writeBuffer.position();
+        writeBuffer.put(HIGH_WATER).putLong(lastBatchId).putLong(lastItemId);
+        putChecksum(writeBuffer, start);
+    }
+
+    private static void putChecksum(ByteBuffer record, int start) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), start, record.position() - start);
+        record.putInt((int) crc.getValue());
+    }
+
+    private static boolean checksumMatches(ByteBuffer buffer, int start, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(start).limit(start + length);
+        byte[] bytes = new byte[length];
+        slice.get(bytes);
+        crc.update(bytes);
+        return (int) crc.getValue() == buffer.getInt(start + length);
+    }
+
+    private void load(Segment segment, Visitor visitor) throws IOException {
+        MappedByteBuffer buffer = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+        int position = 0;
+        while (position < segment.size) {
+            int remaining = (int) segment.size - position;
+            byte type = buffer.get(position);
+            if (type == BATCH && remaining >= BATCH_RECORD_SIZE && checksumMatches(buffer, position, BATCH_RECORD_SIZE - CHECKSUM_SIZE)) {
+                lastBatchId = Math.max(lastBatchId, buffer.getLong(position + 1));
+                visitor.onBatch(buffer.getLong(position + 1));
+                position += BATCH_RECORD_SIZE;
+            } else if (type == HIGH_WATER && remaining >= HIGH_WATER_RECORD_SIZE
+                    && checksumMatches(buffer, position, HIGH_WATER_RECORD_SIZE - CHECKSUM_SIZE)) {
+                lastBatchId = Math.max(lastBatchId, buffer.getLong(position + 1));
+                lastItemId = Math.max(lastItemId, buffer.getLong(position + 9));
+                visitor.onHighWater(buffer.getLong(position + 1), buffer.getLong(position + 9));
+                position += HIGH_WATER_RECORD_SIZE;
+            } else if (type == ITEM && remaining >= ITEM_HEADER_SIZE) {
+                int length = buffer.getInt(position + 25);
+                if (length < 0 || remaining < ITEM_HEADER_SIZE + length + CHECKSUM_SIZE
+                        || !checksumMatches(buffer, position, ITEM_HEADER_SIZE + length))
+                    break;
+                segment.live++;
+                lastItemId = Math.max(lastItemId, buffer.getLong(position + 9));
+                visitor.onItem(buffer.getLong(position + 1), buffer.getLong(position + 9), buffer.getLong(position + 17),
+                        new Location(segment, position + ITEM_HEADER_SIZE, length));
+                position += ITEM_HEADER_SIZE + length + CHECKSUM_SIZE;
+            } else {
+                break;
+            }
+        }
+
+        if (position < segment.size) {
+            LOGGER.warn("Discarding {} bytes of torn or corrupt records at the end of {}", segment.size - position, segment.path);
+            segment.channel.truncate(position);
+            segment.size = position;
+        }
+    }
+
+    private void loadCommits(Visitor visitor) throws IOException {
+        long size = commits.size();
+        List<Long> committed = new ArrayList<>();
+        long position = 0;
+        ByteBuffer count = ByteBuffer.allocate(4);
+        while (position + 4 <= size) {
+            count.clear();
+            commits.read(count, position);
+            int n = count.getInt(0);
+            if (n < 0 || position + 4 + 8L * n + CHECKSUM_SIZE > size)
+                break;
+
+            ByteBuffer record = ByteBuffer.allocate(4 + 8 * n + CHECKSUM_SIZE);
+            while (record.hasRemaining() && commits.read(record, position + record.position()) >= 0) {
+                // read the whole record
+            }
+            if (!checksumMatches(record, 0, 4 + 8 * n))
+                break;
+            for (int i = 0; i < n; i++) {
+                committed.add(record.getLong(4 + 8 * i));
+            }
+            position += record.capacity();
+        }
+
+        if (position < size) {
+            LOGGER.warn("Discarding {} bytes of torn or corrupt records at the end of the commit log", size - position);
+            commits.truncate(position);
+        }
+        commitsSize = position;
+        committed.forEach(visitor::onCommit);
+    }
+
+    /**
+     * A segment file; the active segment is appended to, sealed ones are only read and eventually deleted. Reads and
+     * deletion synchronize on the segment, and its size is volatile so that readers see what was written to it.
+     */
+    static class Segment {
+        private final long sequence;
+        private final Path path;
+        private final FileChannel channel;
+        private volatile long size;
+        private int live;
+        private boolean sealed;
+        private MappedByteBuffer map;
+
+        Segment(long sequence, Path path) throws IOException {
+            this.sequence = sequence;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        synchronized byte[] read(long offset, int length) throws IOException {
+            if (!channel.isOpen())
+                throw new IOException("Segment " + path + " was compacted");
+            if (map == null || offset + length > map.limit()) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer view = map.duplicate();
+            view.position((int) offset);
+            byte[] bytes = new byte[length];
+            view.get(bytes);
+            return bytes;
+        }
+
+        synchronized void delete() throws IOException {
+            channel.close();
+            map = null;
+            Files.deleteIfExists(path);
+        }
+    }
+}
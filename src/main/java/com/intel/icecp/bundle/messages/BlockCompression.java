@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate-based block compression shared by replay frames and tag requests. Small blocks are not compressed and
+ * blocks that do not shrink enough are sent as they are, so that incompressible payloads only cost one attempt.
+ *
+ */
+final class BlockCompression {
+    static final int MIN_BLOCK_BYTES = 256;
+    static final double MAX_RATIO = 0.9;
+    /**
+     * The most deflate can shrink a block (a little over 1:1032), so announced lengths above it are corrupt
+     */
+    static final int MAX_INFLATION = 1032;
+    private static final int MIN_INFLATE_BUFFER = 1024;
+
+    /**
+     * Disable instantiation
+     */
+    private BlockCompression() {
+    }
+
+    /**
+     * @param raw the buffer holding the block
+     * @param offset the start of the block in the buffer
+     * @param length the length of the block
+     * @param stats where to record the outcome
+     * @return the compressed block, or null if the block should be sent uncompressed
+     */
+    static byte[] compress(byte[] raw, int offset, int length, CompressionStats stats) {
+        if (length < MIN_BLOCK_BYTES)
+            return null;
+
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw, offset, length);
+            deflater.finish();
+            int limit = (int) (length * MAX_RATIO);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(limit);
+            byte[] chunk = new byte[Math.min(limit, 64 * 1024) + 1];
+            while (!deflater.finished() && out.size() <= limit) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            if (out.size() > limit) {
+                stats.recordBypassed(System.nanoTime() - start);
+                return null;
+            }
+            stats.recordCompressed(length, out.size(), System.nanoTime() - start);
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param compressed the buffer holding the compressed block
+     * @param offset the start of the compressed block in the buffer
+     * @param length the length of the compressed block
+     * @param rawLength the length of the block before compression
+     * @param stats where to record the outcome
+     * @return the decompressed block
+     * @throws IllegalArgumentException if the block is corrupt
+     */
+    static byte[] decompress(byte[] compressed, int offset, int length, int rawLength, CompressionStats stats) {
+        long start = System.nanoTime();
+        Inflater inflater = new Inflater();
+        try {
+            if (rawLength > (long) length * MAX_INFLATION + MIN_INFLATE_BUFFER)
+                throw new IllegalArgumentException("Compressed block announces an impossible length " + rawLength);
+
+            inflater.setInput(compressed, offset, length);
+            // grow the buffer as the block inflates rather than trusting the announced length up front; one extra
+            // byte detects blocks longer than announced
+            byte[] raw = new byte[(int) Math.min(rawLength + 1L, Math.max(MIN_INFLATE_BUFFER, length * 4L))];
+            int inflated = 0;
+            while (!inflater.finished()) {
+                if (inflated == raw.length) {
+                    if (raw.length > rawLength)
+                        break;
+                    raw = Arrays.copyOf(raw, (int) Math.min(rawLength + 1L, raw.length * 2L));
+                }
+                int n = inflater.inflate(raw, inflated, raw.length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += n;
+            }
+            if (!inflater.finished() || inflated != rawLength)
+                throw new IllegalArgumentException("Corrupt compressed block");
+            stats.recordDecompressed(rawLength, System.nanoTime() - start);
+            return Arrays.copyOf(raw, rawLength);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A compact local snapshot of the catalog of a {@link MessageBundle}: the current session and, for each known session,
+ * its size, its highest message ID, the number of leading messages that are all committed and the ranges of IDs
+ * committed after those. On restart, batches only retrieve the messages after the committed prefix, skip the
+ * committed ones and fully committed sessions are not retrieved at all. The highest message ID validates the
+ * committed prefix: a session that was truncated or renumbered since is retrieved in full again.
+ * <p>
+ * The snapshot is only a cache of what the storage module (and the commit journal, if any) already know; it is saved
+ * by the bundle after it syncs and when it is closed, and an unreadable snapshot is simply ignored.
+ *
+ */
+public class CatalogSnapshot {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAGIC = 0x49434331;
+    private final Path path;
+    private final Map<Long, Session> sessions = new LinkedHashMap<>();
+    private Long currentSession;
+
+    /**
+     * Constructor; loads the snapshot file if it exists
+     *
+     * @param path the snapshot file
+     */
+    public CatalogSnapshot(Path path) {
+        this.path = path;
+        try {
+            load(Files.readAllBytes(path));
+            LOGGER.info("Loaded catalog snapshot with {} sessions", sessions.size());
+        } catch (NoSuchFileException e) {
+            LOGGER.debug("No catalog snapshot at {}", path);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Ignoring unreadable catalog snapshot {}", path, e);
+            sessions.clear();
+            currentSession = null;
+        }
+    }
+
+    /**
+     * Atomically replace the snapshot file with the current catalog
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void save() throws IOException {
+        byte[] bytes = serialize();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporary, bytes);
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    synchronized Long currentSession() {
+        return currentSession;
+    }
+
+    synchronized void setCurrentSession(long sessionId) {
+        currentSession = sessionId;
+    }
+
+    /**
+     * @param sessionId a session ID
+     * @return the number of leading messages of the session that are all committed, 0 if the session is unknown
+     */
+    synchronized int committedPrefix(long sessionId) {
+        Session session = sessions.get(sessionId);
+        return session == null ? 0 : session.committedPrefix;
+    }
+
+    /**
+     * @param sessionId a session ID
+     * @param messageId a message ID
+     * @return true if the message is known to be committed
+     */
+    synchronized boolean isCommitted(long sessionId, long messageId) {
+        Session session = sessions.get(sessionId);
+        if (session == null)
+            return false;
+
+        Map.Entry<Long, Long> range = session.committed.floorEntry(messageId);
+        return range != null && messageId <= range.getValue();
+    }
+
+    /**
+     * @param sessionId a session ID
+     * @return true if all the messages of the session, as of its last retrieval, are committed
+     */
+    synchronized boolean isFullyCommitted(long sessionId) {
+        Session session = sessions.get(sessionId);
+        return session != null && session.committedPrefix >= session.size;
+    }
+
+    /**
+     * @return true if at least one known session has messages that are not committed
+     */
+    synchronized boolean hasUncommitted() {
+        return sessions.values().stream().anyMatch(s -> s.committedPrefix < s.size);
+    }
+
+    /**
+     * Record the size and highest message ID of a session after retrieving it
+     */
+    synchronized void recordSize(long sessionId, int size, long highWaterId) {
+        Session session = sessions.computeIfAbsent(sessionId, i -> new Session());
+        session.size = size;
+        session.highWaterId = Math.max(session.highWaterId, highWaterId);
+    }
+
+    /**
+     * Check whether a session changed since its size was recorded, in which case its committed prefix (a number of
+     * positions) can no longer be trusted: it shrank, or the message at its last recorded position no longer has the
+     * recorded highest ID (message IDs grow with positions in a session)
+     *
+     * @param sessionId a session ID
+     * @param size the current size of the session
+     * @param firstPosition the position of the first retrieved message
+     * @param retrievedIds the IDs of the messages retrieved from that position, in position order
+     * @return true if the session is known and changed
+     */
+    synchronized boolean hasChanged(long sessionId, int size, int firstPosition, List<Long> retrievedIds) {
+        Session session = sessions.get(sessionId);
+        if (session == null || session.highWaterId < 0)
+            return false;
+        if (size < session.size)
+            return true;
+
+        int last = session.size - 1 - firstPosition;
+        if (last >= 0 && last < retrievedIds.size())
+            return retrievedIds.get(last) != session.highWaterId;
+        return !retrievedIds.isEmpty() && retrievedIds.get(0) <= session.highWaterId;
+    }
+
+    /**
+     * Forget what is known about a session, e.g. once it changed
+     *
+     * @param sessionId a session ID
+     */
+    synchronized void forget(long sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    /**
+     * Record committed messages of a session
+     *
+     * @param sessionId the session of the messages
+     * @param committedPrefix the number of leading messages of the session that are now all committed
+     * @param messageIds the IDs of the committed messages
+     */
+    synchronized void recordCommitted(long sessionId, int committedPrefix, Collection<Long> messageIds) {
+        Session session = sessions.computeIfAbsent(sessionId, i -> new Session());
+        session.committedPrefix = Math.max(session.committedPrefix, committedPrefix);
+        if (session.committedPrefix >= session.size) {
+            session.committed.clear();
+            return;
+        }
+        messageIds.forEach(session::addCommitted);
+    }
+
+    /**
+     * Forget the sessions that no longer exist in the storage module
+     *
+     * @param sessionIds the IDs of the existing sessions
+     */
+    synchronized void retain(Collection<Long> sessionIds) {
+        sessions.keySet().retainAll(sessionIds);
+    }
+
+    private synchronized byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeLong(currentSession == null ? -1 : currentSession);
+            out.writeInt(sessions.size());
+            for (Map.Entry<Long, Session> entry : sessions.entrySet()) {
+                Session session = entry.getValue();
+                out.writeLong(entry.getKey());
+                out.writeInt(session.size);
+                out.writeLong(session.highWaterId);
+                out.writeInt(session.committedPrefix);
+                out.writeInt(session.committed.size());
+                for (Map.Entry<Long, Long> range : session.committed.entrySet()) {
+                    out.writeLong(range.getKey());
+                    out.writeLong(range.getValue());
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    private synchronized void load(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < 4 + 8 + 4 + 4 || buffer.getInt() != MAGIC)
+            throw new IOException("Not a catalog snapshot");
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != buffer.getInt(bytes.length - 4))
+            throw new IOException("Corrupt catalog snapshot");
+
+        long current = buffer.getLong();
+        currentSession = current < 0 ? null : current;
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            Session session = new Session();
+            long sessionId = buffer.getLong();
+            session.size = buffer.getInt();
+            session.highWaterId = buffer.getLong();
+            session.committedPrefix = buffer.getInt();
+            int ranges = buffer.getInt();
+            for (int r = 0; r < ranges; r++) {
+                session.committed.put(buffer.getLong(), buffer.getLong());
+            }
+            sessions.put(sessionId, session);
+        }
+    }
+
+    /**
+     * What is known about a session; committed IDs are kept as merged, inclusive ranges (start to end)
+     */
+    private static class Session {
+        private final TreeMap<Long, Long> committed = new TreeMap<>();
+        private int size;
+        private long highWaterId = -1;
+        private int committedPrefix;
+
+        private void addCommitted(long id) {
+            Map.Entry<Long, Long> before = committed.floorEntry(id);
+            if (before != null && id <= before.getValue())
+                return;
+
+            long start = id;
+            long end = id;
+            if (before != null && before.getValue() == id - 1) {
+                start = before.getKey();
+            }
+            Long after = committed.higherKey(id);
+            if (after != null && after == id + 1) {
+                end = committed.remove(after);
+            }
+            committed.put(start, end);
+        }
+    }
+}
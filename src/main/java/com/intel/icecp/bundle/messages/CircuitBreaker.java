@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A circuit breaker for the commands sent to the storage module. While closed, it records the outcome of the last
+ * {@code windowSize} commands and opens once at least {@code minimumCalls} were recorded and either the rate of
+ * failed commands or the rate of slow commands reaches its threshold. While open, commands are refused right away;
+ * after {@code openDurationMs} the breaker is half-open and lets {@code probes} commands through: it closes if they
+ * all succeed quickly and opens again otherwise. Acquiring and recording is thread-safe.
+ *
+ */
+public class CircuitBreaker {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+    private final byte[] window;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final int probes;
+    private final LongSupplier clock;
+    private State state = State.CLOSED;
+    private int recorded = 0;
+    private int next = 0;
+    private int failures = 0;
+    private int slowCalls = 0;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+    private long rejected = 0;
+
+    /**
+     * The states of a circuit breaker
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Constructor
+     *
+     * @param windowSize the number of recent commands the rates are computed over
+     * @param minimumCalls the number of recorded commands below which the breaker does not open
+     * @param failureRateThreshold the rate of failed commands (0 to 1) at which the breaker opens
+     * @param slowCallRateThreshold the rate of slow commands (0 to 1) at which the breaker opens
+     * @param slowCallMs the latency above which a command is slow
+     * @param openDurationMs the time commands are refused before probing the storage module again
+     * @param probes the number of commands let through while half-open
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, double slowCallRateThreshold,
+                          long slowCallMs, long openDurationMs, int probes) {
+        this(windowSize, minimumCalls, failureRateThreshold, slowCallRateThreshold, slowCallMs, openDurationMs, probes,
+                System::nanoTime);
+    }
+
+    CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, double slowCallRateThreshold,
+                   long slowCallMs, long openDurationMs, int probes, LongSupplier clock) {
+        if (windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize || probes < 1)
+            throw new IllegalArgumentException("Expected 1 <= minimum calls <= window size and at least one probe");
+        this.window = new byte[windowSize];
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMs);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMs);
+        this.probes = probes;
+        this.clock = clock;
+    }
+
+    /**
+     * Ask to send a command; every permitted command must be followed by {@link #record(long, boolean)} or, if it was
+     * not sent after all, by {@link #abandon()}
+     *
+     * @return true if the command may be sent, false if the storage module is considered unhealthy
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && clock.getAsLong() - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+            probesStarted = 0;
+            probesSucceeded = 0;
+            LOGGER.info("Probing the storage module");
+        }
+        if (state == State.CLOSED)
+            return true;
+        if (state == State.HALF_OPEN && probesStarted < probes) {
+            probesStarted++;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Record the outcome of a permitted command
+     *
+     * @param latencyNanos the time from sending the command to its completion
+     * @param succeeded false if the command failed or timed out
+     */
+    public synchronized void record(long latencyNanos, boolean succeeded) {
+        boolean slow = latencyNanos > slowCallNanos;
+        if (state == State.HALF_OPEN) {
+            if (!succeeded || slow) {
+                open("a probe " + (succeeded ? "was slow" : "failed"));
+            } else if (++probesSucceeded >= probes) {
+                close();
+            }
+        } else if (state == State.CLOSED) {
+            add((byte) ((succeeded ? 0 : FAILED) | (slow ? SLOW : 0)));
+            if (recorded >= minimumCalls) {
+                if (failureRate() >= failureRateThreshold) {
+                    open("the failure rate is " + failureRate());
+                } else if (slowCallRate() >= slowCallRateThreshold) {
+                    open("the slow call rate is " + slowCallRate());
+                }
+            }
+        }
+        // outcomes of commands sent before the breaker opened are ignored
+    }
+
+    /**
+     * Give back a permit for a command that was not sent
+     */
+    public synchronized void abandon() {
+        if (state == State.HALF_OPEN && probesStarted > 0) {
+            probesStarted--;
+        }
+    }
+
+    /**
+     * @return the current state
+     */
+    public synchronized State state() {
+        return state;
+    }
+
+    /**
+     * @return the rate of failed commands in the window, 0 if none were recorded
+     */
+    public synchronized double failureRate() {
+        return recorded == 0 ? 0 : (double) failures / recorded;
+    }
+
+    /**
+     * @return the rate of slow commands in the window, 0 if none were recorded
+     */
+    public synchronized double slowCallRate() {
+        return recorded == 0 ? 0 : (double) slowCalls / recorded;
+    }
+
+    /**
+     * @return the number of commands refused so far
+     */
+    public synchronized long rejectedCount() {
+        return rejected;
+    }
+
+    private void add(byte outcome) {
+        if (recorded == window.length) {
+            byte evicted = window[next];
+            failures -= evicted & FAILED;
+            slowCalls -= (evicted & SLOW) >> 1;
+        } else {
+            recorded++;
+        }
+        window[next] = outcome;
+        failures += outcome & FAILED;
+        slowCalls += (outcome & SLOW) >> 1;
+        next = (next + 1) % window.length;
+    }
+
+    private void open(String reason) {
+        LOGGER.warn("Storage module considered unavailable for {} ms: {}", TimeUnit.NANOSECONDS.toMillis(openNanos),
+                reason);
+        state = State.OPEN;
+        openedAt = clock.getAsLong();
+    }
+
+    private void close() {
+        LOGGER.info("Storage module available again");
+        state = State.CLOSED;
+        recorded = 0;
+        next = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead journal of committed message IDs. Commits are appended (and synced to disk, batching the syncs of
+ * concurrent appends) before being acknowledged; a background flusher then tags the appended IDs as inactive in the
+ * storage module in bulk. If the process dies before the IDs are flushed, or the storage module is unavailable, the
+ * IDs are replayed on the next start instead of the messages being reprocessed.
+ * <p>
+ * The file is a sequence of records {@code [type:1][count:4][ids:8*count][crc32:4]}, where the type marks the IDs as
+ * appended or flushed; a torn record at the end of the file (e.g. after a crash) is discarded. Once every appended ID
+ * has been flushed and the file exceeds {@link #COMPACTION_THRESHOLD_BYTES}, it is truncated.
+ *
+ */
+public class CommitJournal implements AutoCloseable {
+    static final long COMPACTION_THRESHOLD_BYTES = 1 << 20;
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final byte APPENDED = 1;
+    private static final byte FLUSHED = 2;
+    private static final int HEADER_SIZE = 5;
+    private static final int CHECKSUM_SIZE = 4;
+    private final StorageClient storage;
+    private final FileChannel file;
+    private final Set<Long> unflushed = new LinkedHashSet<>();
+    private final Set<Long> journaled = new HashSet<>();
+    private final Object syncLock = new Object();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flusher;
+    private final long flushIntervalMs;
+    private volatile long writtenPosition;
+    private long syncedPosition;
+
+    /**
+     * Constructor; opens (or creates) the journal file and loads the IDs it contains
+     *
+     * @param storage the storage module to flush the IDs to
+     * @param path the journal file
+     * @param flushIntervalMs the time between two flushes to the storage module
+     * @throws IOException if the journal file cannot be opened or read
+     */
+    public CommitJournal(StorageClient storage, Path path, long flushIntervalMs) throws IOException {
+        this.storage = storage;
+        this.flushIntervalMs = flushIntervalMs;
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "commit-journal-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start flushing periodically, beginning immediately with the IDs left unflushed by a previous run
+     */
+    void start() {
+        flusher.scheduleWithFixedDelay(this::flushQuietly, 0, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Durably append committed message IDs; once this returns the IDs will eventually be tagged as inactive in the
+     * storage module, even across restarts
+     *
+     * @param ids the IDs of the committed messages
+     * @throws IOException if the IDs could not be written to disk
+     */
+    void append(Collection<Long> ids) throws IOException {
+        long position;
+        synchronized (this) {
+            write(APPENDED, ids);
+            unflushed.addAll(ids);
+            journaled.addAll(ids);
+            position = writtenPosition;
+        }
+        sync(position);
+    }
+
+    /**
+     * @param id a message ID
+     * @return true if the message has been committed through this journal and not yet compacted away
+     */
+    synchronized boolean contains(long id) {
+        return journaled.contains(id);
+    }
+
+    /**
+     * @return the number of IDs appended but not yet tagged in the storage module
+     */
+    public synchronized int unflushedCount() {
+        return unflushed.size();
+    }
+
+    /**
+     * Tag all appended IDs as inactive in the storage module in one request
+     *
+     * @throws StorageClientException if the storage module could not be reached; the IDs are retried on the next
+     * flush
+     * @throws IOException if the flushed IDs could not be recorded in the journal
+     */
+    void flush() throws StorageClientException, IOException {
+        synchronized (flushLock) {
+            List<Long> ids;
+            synchronized (this) {
+                ids = new ArrayList<>(unflushed);
+            }
+            if (ids.isEmpty())
+                return;
+
+            storage.tag(ids, MessageBatch.INACTIVE_TAGS);
+
+            synchronized (this) {
+                write(FLUSHED, ids);
+                unflushed.removeAll(ids);
+                if (unflushed.isEmpty() && writtenPosition > COMPACTION_THRESHOLD_BYTES) {
+                    compact();
+                }
+            }
+            LOGGER.debug("Flushed {} journaled commits", ids.size());
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (StorageClientException | IOException e) {
+            LOGGER.warn("Unable to flush journaled commits; retrying in {} ms", flushIntervalMs, e);
+        }
+    }
+
+    private void write(byte type, Collection<Long> ids) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 8 * ids.size() + CHECKSUM_SIZE);
+        record.put(type).putInt(ids.size());
+        ids.forEach(record::putLong);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        long position = writtenPosition;
+        while (record.hasRemaining()) {
+            position += file.write(record, position);
+        }
+        writtenPosition = position;
+    }
+
+    /**
+     * Force the file to disk up to at least the given position; concurrent appenders share a single force
+     */
+    private void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            if (syncedPosition >= position)
+                return; // another appender synced our record along with its own
+
+            long target = writtenPosition;
+            file.force(false);
+            syncedPosition = target;
+        }
+    }
+
+    private void compact() throws IOException {
+        file.truncate(0);
+        file.force(false);
+        journaled.clear();
+        writtenPosition = 0;
+        synchronized (syncLock) {
+            syncedPosition = 0;
+        }
+        LOGGER.info("Compacted commit journal");
+    }
+
+    private void load() throws IOException {
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (readFully(header, position)) {
+            byte type = header.get(0);
+            int count = header.getInt(1);
+            if ((type != APPENDED && type != FLUSHED) || count < 0 || position + HEADER_SIZE + 8L * count + CHECKSUM_SIZE > file.size())
+                break;
+
+            ByteBuffer body = ByteBuffer.allocate(8 * count + CHECKSUM_SIZE);
+            if (!readFully(body, position + HEADER_SIZE))
+                break;
+
+            CRC32 crc = new CRC32();
+            crc.update(header.array());
+            crc.update(body.array(), 0, 8 * count);
+            if ((int) crc.getValue() != body.getInt(8 * count))
+                break;
+
+            for (int i = 0; i < count; i++) {
+                long id = body.getLong(8 * i);
+                if (type == APPENDED) {
+                    unflushed.add(id);
+                    journaled.add(id);
+                } else {
+                    unflushed.remove(id);
+                }
+            }
+            position += HEADER_SIZE + body.capacity();
+        }
+
+        if (position < file.size()) {
+            LOGGER.warn("Discarding {} bytes of torn or corrupt records at the end of the commit journal", file.size() - position);
+            file.truncate(position);
+        }
+        writtenPosition = position;
+        syncedPosition = position;
+        LOGGER.info("Loaded commit journal with {} unflushed commits", unflushed.size());
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stop the background flusher, attempt a final flush and close the journal file
+     *
+     * @throws IOException if the journal file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        flushQuietly();
+        file.close();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compressed encoding of the message IDs of large tag requests. The IDs are sorted, delta encoded as zigzag varints
+ * and deflated:
+ * <pre>
+ * [uncompressed length:varint][deflated [count:varint][id deltas:zigzag varint...]]
+ * </pre>
+ *
+ */
+public final class CompressedIds {
+
+    /**
+     * Disable instantiation
+     */
+    private CompressedIds() {
+    }
+
+    /**
+     * @param ids the message IDs
+     * @param stats where to record the compression ratio and cost
+     * @return the compressed IDs, or null if they do not compress well and should be sent as they are
+     */
+    public static byte[] encode(Collection<Long> ids, CompressionStats stats) {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(ids.size() * 2 + 8);
+        PersistentMessageFrame.writeVarint(raw, ids.size());
+        List<Long> sorted = new ArrayList<>(ids);
+        Collections.sort(sorted);
+        long previous = 0;
+        for (long id : sorted) {
+            PersistentMessageFrame.writeVarint(raw, PersistentMessageFrame.zigzag(id - previous));
+            previous = id;
+        }
+        byte[] bytes = raw.toByteArray();
+        byte[] compressed = BlockCompression.compress(bytes, 0, bytes.length, stats);
+        if (compressed == null)
+            return null;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length + 5);
+        PersistentMessageFrame.writeVarint(out, bytes.length);
+        out.write(compressed, 0, compressed.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param encoded IDs encoded by {@link #encode(Collection, CompressionStats)}
+     * @return the message IDs, sorted
+     * @throws IllegalArgumentException if the bytes are not valid compressed IDs
+     */
+    public static List<Long> decode(byte[] encoded) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(encoded);
+            long rawLength = PersistentMessageFrame.readVarint(in);
+            if (rawLength < 0 || rawLength > Integer.MAX_VALUE - 1)
+                throw new IllegalArgumentException("Invalid uncompressed length of compressed IDs");
+
+            in = ByteBuffer.wrap(BlockCompression.decompress(encoded, in.position(), in.remaining(), (int) rawLength,
+                    new CompressionStats()));
+            long count = PersistentMessageFrame.readVarint(in);
+            if (count > in.remaining())
+                throw new IllegalArgumentException("Compressed IDs announce more IDs than they contain");
+
+            List<Long> ids = new ArrayList<>((int) count);
+            long id = 0;
+            for (int i = 0; i < count; i++) {
+                id += PersistentMessageFrame.unzigzag(PersistentMessageFrame.readVarint(in));
+                ids.add(id);
+            }
+            return ids;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated compressed IDs", e);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Record how well blocks (replay frames, tag requests) compress and what it costs: the bytes before and after
+ * compression, the time spent compressing them and the number of blocks sent uncompressed because they did not compress
+ * well enough. Blocks decompressed (e.g. received replay frames) are counted apart so that they do not skew the
+ * compression ratio. Recording is thread-safe.
+ *
+ */
+public class CompressionStats {
+    private final LongAdder compressedBlocks = new LongAdder();
+    private final LongAdder bypassedBlocks = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder decompressedBlocks = new LongAdder();
+    private final LongAdder decompressedBytes = new LongAdder();
+    private final LongAdder decompressionNanos = new LongAdder();
+
+    void recordCompressed(long raw, long compressed, long elapsedNanos) {
+        compressedBlocks.increment();
+        rawBytes.add(raw);
+        compressedBytes.add(compressed);
+        nanos.add(elapsedNanos);
+    }
+
+    void recordBypassed(long elapsedNanos) {
+        bypassedBlocks.increment();
+        nanos.add(elapsedNanos);
+    }
+
+    void recordDecompressed(long raw, long elapsedNanos) {
+        decompressedBlocks.increment();
+        decompressedBytes.add(raw);
+        decompressionNanos.add(elapsedNanos);
+    }
+
+    /**
+     * @return the number of blocks compressed
+     */
+    public long compressedBlocks() {
+        return compressedBlocks.sum();
+    }
+
+    /**
+     * @return the number of blocks left uncompressed because their compression ratio was poor
+     */
+    public long bypassedBlocks() {
+        return bypassedBlocks.sum();
+    }
+
+    /**
+     * @return the size of the compressed blocks before compression
+     */
+    public long rawBytes() {
+        return rawBytes.sum();
+    }
+
+    /**
+     * @return the size of the compressed blocks after compression
+     */
+    public long compressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    /**
+     * @return the compressed size over the raw size of the compressed blocks (lower is better), 1 if none
+     */
+    public double ratio() {
+        long raw = rawBytes();
+        return raw == 0 ? 1 : (double) compressedBytes() / raw;
+    }
+
+    /**
+     * @return the time spent compressing, including on bypassed blocks
+     */
+    public long cpuTime(TimeUnit unit) {
+        return unit.convert(nanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of blocks decompressed
+     */
+    public long decompressedBlocks() {
+        return decompressedBlocks.sum();
+    }
+
+    /**
+     * @return the size of the decompressed blocks after decompression
+     */
+    public long decompressedBytes() {
+        return decompressedBytes.sum();
+    }
+
+    /**
+     * @return the time spent decompressing
+     */
+    public long decompressionTime(TimeUnit unit) {
+        return unit.convert(decompressionNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compressed=%d, bypassed=%d, rawBytes=%d, compressedBytes=%d, ratio=%.2f, cpuTime=%dus, "
+                        + "decompressed=%d, decompressedBytes=%d, decompressionTime=%dus",
+                compressedBlocks(), bypassedBlocks(), rawBytes(), compressedBytes(), ratio(), cpuTime(TimeUnit.MICROSECONDS),
+                decompressedBlocks(), decompressedBytes(), decompressionTime(TimeUnit.MICROSECONDS));
+    }
+}
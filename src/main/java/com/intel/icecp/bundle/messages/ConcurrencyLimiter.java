@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An adaptive limit on the number of outstanding commands (AIMD): while the limit is in use and commands complete
+ * within the latency threshold, the limit grows by about one every limit commands (additive increase); a command that
+ * fails or is slower than the threshold shrinks it by {@value #BACKOFF_RATIO} (multiplicative decrease), down to the
+ * minimum. Commands beyond the limit wait in a bounded queue and are rejected when the queue is full or their wait
+ * times out. Acquiring and releasing is thread-safe.
+ *
+ */
+public class ConcurrencyLimiter {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final double BACKOFF_RATIO = 0.9;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueued;
+    private final long latencyThresholdNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final LongAdder rejected = new LongAdder();
+    private double limit;
+    private int inFlight = 0;
+    private int queued = 0;
+
+    /**
+     * Constructor
+     *
+     * @param initialLimit the initial number of commands that may be outstanding
+     * @param minLimit the lowest the limit may shrink to
+     * @param maxLimit the highest the limit may grow to
+     * @param maxQueued the number of commands that may wait for the limit; more are rejected right away
+     * @param latencyThresholdMs the command latency above which the storage module is considered overloaded
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueued, long latencyThresholdMs) {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit)
+            throw new IllegalArgumentException("Expected 1 <= min <= initial <= max limit: " + minLimit + ", "
+                    + initialLimit + ", " + maxLimit);
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueued = maxQueued;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMs);
+    }
+
+    /**
+     * Wait until a command may be sent; each successful acquisition must be followed by a {@link #release(long,
+     * boolean)}
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the command may be sent, false if it is rejected
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return true;
+            }
+            if (queued >= maxQueued) {
+                rejected.increment();
+                return false;
+            }
+
+            queued++;
+            try {
+                long remaining = unit.toNanos(timeout);
+                while (inFlight >= (int) limit) {
+                    if (remaining <= 0) {
+                        rejected.increment();
+                        return false;
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+                inFlight++;
+                return true;
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release the slot of a completed command and adapt the limit to its outcome
+     *
+     * @param latencyNanos the time from sending the command to its completion
+     * @param succeeded false if the command failed or timed out
+     */
+    public void release(long latencyNanos, boolean succeeded) {
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= (int) limit;
+            inFlight--;
+            if (!succeeded || latencyNanos > latencyThresholdNanos) {
+                double previous = limit;
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                if ((int) limit < (int) previous) {
+                    LOGGER.debug("Decreased the storage concurrency limit to {}", (int) limit);
+                }
+            } else if (saturated) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current number of commands that may be outstanding
+     */
+    public int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of commands currently outstanding
+     */
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of commands currently waiting for the limit
+     */
+    public int queueDepth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of commands rejected so far
+     */
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimiter{limit=" + limit() + ", inFlight=" + inFlight() + ", queued=" + queueDepth()
+                + ", rejected=" + rejectedCount() + "}";
+    }
+}
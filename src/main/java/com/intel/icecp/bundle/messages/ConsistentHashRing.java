@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring: each shard is placed at several points of a 64-bit ring and a key is owned by the first
+ * shard point at or after the hash of the key, wrapping around. Adding or removing a shard only moves the keys of the
+ * ring segments next to its points.
+ *
+ * @param <S> the type of the shards
+ */
+final class ConsistentHashRing<S> {
+    private final int pointsPerShard;
+    private final NavigableMap<Long, S> ring = new TreeMap<>();
+    private final Map<String, S> shards = new TreeMap<>();
+
+    /**
+     * @param pointsPerShard the number of points of each shard on the ring; more points spread the keys more evenly
+     */
+    ConsistentHashRing(int pointsPerShard) {
+        this.pointsPerShard = pointsPerShard;
+    }
+
+    /**
+     * @param name the unique name of the shard, which determines its points
+     * @param shard the shard
+     */
+    synchronized void add(String name, S shard) {
+        remove(name);
+        shards.put(name, shard);
+        for (int i = 0; i < pointsPerShard; i++) {
+            ring.put(hash(name + "#" + i), shard);
+        }
+    }
+
+    /**
+     * @param name the unique name of the shard
+     * @return the removed shard, or null if there was no shard with this name
+     */
+    synchronized S remove(String name) {
+        S shard = shards.remove(name);
+        if (shard != null) {
+            for (int i = 0; i < pointsPerShard; i++) {
+                ring.remove(hash(name + "#" + i));
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the shard owning the key
+     * @throws IllegalStateException if the ring has no shards
+     */
+    synchronized S owner(String key) {
+        if (ring.isEmpty())
+            throw new IllegalStateException("No shards to route " + key + " to");
+
+        Map.Entry<Long, S> point = ring.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * @return a snapshot of the shards, by name
+     */
+    synchronized Map<String, S> shards() {
+        return new TreeMap<>(shards);
+    }
+
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required to be available on every JVM", e);
+        }
+    }
+}
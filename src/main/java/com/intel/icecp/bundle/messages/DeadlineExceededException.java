@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+/**
+ * Signal that a remote operation was abandoned because the {@link com.intel.icecp.bundle.Deadline} of the bundle
+ * operation making it passed or was cancelled
+ *
+ */
+class DeadlineExceededException extends StorageClientException {
+    private static final long serialVersionUID = 1L;
+
+    DeadlineExceededException(String message) {
+        super(message);
+    }
+}
@@ -17,15 +17,29 @@
 package com.intel.icecp.bundle.messages;
 
 import com.intel.icecp.bundle.Bundle;
+import com.intel.icecp.bundle.ItemQuery;
 import com.intel.icecp.bundle.StoredBatch;
 import com.intel.icecp.bundle.StoredItem;
 import com.intel.icecp.core.messages.BytesMessage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -35,12 +49,27 @@ import java.util.stream.StreamSupport;
  *
  */
 class MessageBatch implements StoredBatch<BytesMessage> {
+    static final Set<String> INACTIVE_TAGS = Collections.singleton("inactive");
     private static final Logger LOGGER = LogManager.getLogger();
     private static final int MAX_WAIT_SECONDS = 30;
+    private static final int PAGE_SIZE = 100;
+    private static final int MAX_EMPTY_REFRESHES = 3;
     private final Long sessionId;
     private final StorageClient storage;
+    private final RetrievalMode mode;
+    private final CommitJournal journal;
+    private final CatalogSnapshot catalog;
     private final List<StoredItem<BytesMessage>> messages = new ArrayList<>();
+    private final Map<Long, MessageItem> index = new HashMap<>();
+    private final Map<Long, Integer> positions = new HashMap<>();
+    private final List<Long> order = new ArrayList<>();
+    private final NavigableMap<Long, List<MessageItem>> byTimestamp = new TreeMap<>();
+    private final Set<Long> committedBeforeSync = new HashSet<>();
+    private int firstPosition = 0;
+    private int committedPrefix = 0;
     private boolean synced = false;
+    private final AtomicInteger unseenPublished = new AtomicInteger();
+    private int emptyRefreshes = 0;
 
     /**
      * Constructor
@@ -49,8 +78,47 @@ class MessageBatch implements StoredBatch<BytesMessage> {
      * @param sessionId Unique identifier associated with a batch
      */
     MessageBatch(StorageClient storage, long sessionId) {
+        this(storage, sessionId, RetrievalMode.EAGER);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param storage Supplies storage features
+     * @param sessionId Unique identifier associated with a batch
+     * @param mode how to retrieve the messages of the batch
+     */
+    MessageBatch(StorageClient storage, long sessionId, RetrievalMode mode) {
+        this(storage, sessionId, mode, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param storage Supplies storage features
+     * @param sessionId Unique identifier associated with a batch
+     * @param mode how to retrieve the messages of the batch
+     * @param journal the journal to commit through, or null to tag committed messages in the storage module directly
+     */
+    MessageBatch(StorageClient storage, long sessionId, RetrievalMode mode, CommitJournal journal) {
+        this(storage, sessionId, mode, journal, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param storage Supplies storage features
+     * @param sessionId Unique identifier associated with a batch
+     * @param mode how to retrieve the messages of the batch
+     * @param journal the journal to commit through, or null to tag committed messages in the storage module directly
+     * @param catalog the catalog snapshot to retrieve only the uncommitted messages with, or null to retrieve them all
+     */
+    MessageBatch(StorageClient storage, long sessionId, RetrievalMode mode, CommitJournal journal, CatalogSnapshot catalog) {
         this.storage = storage;
         this.sessionId = sessionId;
+        this.mode = mode;
+        this.journal = journal;
+        this.catalog = catalog;
     }
 
     @Override
@@ -64,7 +132,17 @@ class MessageBatch implements StoredBatch<BytesMessage> {
     }
 
     @Override
-    public void commit() {
+    public synchronized void markFinishedInParallel() {
+        if (!isFinished()) {
+            if (hasChildren()) {
+                parallelStream().forEach(Bundle::markFinished);
+            }
+            commit();
+        }
+    }
+
+    @Override
+    public synchronized void commit() {
         List<MessageItem> messagesToCommit = streamChildren().filter(i -> i.isFinished() && !i.isCommitted())
                 .collect(Collectors.toList());
         List<Long> messageIds = messagesToCommit.stream()
@@ -72,48 +150,440 @@ class MessageBatch implements StoredBatch<BytesMessage> {
 
         if (!messagesToCommit.isEmpty()) {
             try {
-                storage.tag(messageIds, Collections.singleton("inactive"));
+                tagInactive(storage, journal, messageIds);
                 messagesToCommit.forEach(MessageItem::setCommitted);
+                recordCommitted(messageIds);
+            } catch (DeadlineExceededException e) {
+                throw new IllegalStateException("Gave up tagging the following items as inactive: " + messageIds, e);
             } catch (StorageClientException e) {
                 LOGGER.error("Failed to tag the following items as inactive: {}", messageIds, e);
             }
         }
     }
 
+    @Override
+    public void commit(Collection<Long> itemIds) {
+        if (itemIds.isEmpty())
+            return;
+
+        try {
+            tagInactive(storage, journal, itemIds);
+        } catch (StorageClientException e) {
+            throw new IllegalStateException("Failed to tag the following items as inactive: " + itemIds, e);
+        }
+        setCommitted(itemIds);
+    }
+
+    /**
+     * Commit the items of the range without retrieving their content; see {@link #idsBetween(long, long)}
+     */
+    @Override
+    public void commitRange(long firstItemId, long lastItemId) {
+        commit(idsBetween(firstItemId, lastItemId));
+    }
+
+    /**
+     * Resolve the uncommitted item IDs of a range: from the retrieved items if the batch is retrieved (refreshing it
+     * first if items were published since), otherwise from the message headers of the session
+     *
+     * @param firstItemId the first item ID of the range, inclusive
+     * @param lastItemId the last item ID of the range, inclusive
+     * @return the IDs of the items of the batch in the range
+     */
+    List<Long> idsBetween(long firstItemId, long lastItemId) {
+        boolean retrieved;
+        synchronized (this) {
+            retrieved = synced;
+        }
+        if (retrieved) {
+            sync();
+            synchronized (this) {
+                return index.values().stream().filter(i -> !i.isCommitted()).map(StoredItem::id)
+                        .filter(id -> id >= firstItemId && id <= lastItemId).sorted().collect(Collectors.toList());
+            }
+        }
+
+        try {
+            return storage.retrieveHeaders(sessionId, MAX_WAIT_SECONDS).stream().map(PersistentMessage::getId)
+                    .filter(id -> id >= firstItemId && id <= lastItemId && !isKnownCommitted(id))
+                    .collect(Collectors.toList());
+        } catch (StorageClientException e) {
+            throw new IllegalStateException("Cannot resolve the items " + firstItemId + " to " + lastItemId
+                    + " of batch " + sessionId, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while resolving the items of batch " + sessionId, e);
+        }
+    }
+
+    /**
+     * Tag the given messages as inactive, either directly in the storage module or, if a journal is used, by durably
+     * appending them to the journal for a later bulk flush
+     *
+     * @param storage the storage module
+     * @param journal the journal, or null
+     * @param ids the IDs of the committed messages
+     * @throws StorageClientException if the messages could neither be tagged nor journaled
+     */
+    static void tagInactive(StorageClient storage, CommitJournal journal, Collection<Long> ids) throws StorageClientException {
+        if (journal == null) {
+            storage.tag(ids, INACTIVE_TAGS);
+        } else {
+            try {
+                journal.append(ids);
+            } catch (IOException e) {
+                throw new StorageClientException("Unable to journal the committed messages", e);
+            }
+        }
+    }
+
+    /**
+     * Mark the items with the given IDs as finished and committed without calling the storage module; IDs that do not
+     * belong to the batch are ignored. If the batch has not been retrieved yet, the IDs are remembered and applied once
+     * it is.
+     *
+     * @param itemIds the IDs of the items already tagged as inactive in the storage module
+     */
+    synchronized void setCommitted(Collection<Long> itemIds) {
+        if (!synced) {
+            committedBeforeSync.addAll(itemIds);
+            return;
+        }
+
+        List<Long> committed = new ArrayList<>();
+        for (Long itemId : itemIds) {
+            MessageItem item = index.get(itemId);
+            if (item != null) {
+                item.markFinished();
+                item.setCommitted();
+                committed.add(itemId);
+            }
+        }
+        recordCommitted(committed);
+    }
+
+    /**
+     * Advance the committed prefix of the batch and record it, along with the newly committed IDs, in the catalog
+     */
+    private void recordCommitted(List<Long> itemIds) {
+        if (catalog == null || itemIds.isEmpty())
+            return;
+
+        while (committedPrefix < order.size()) {
+            MessageItem item = index.get(order.get(committedPrefix));
+            if (item != null && !item.isCommitted())
+                break;
+            committedPrefix++;
+        }
+        catalog.recordCommitted(sessionId, firstPosition + committedPrefix, itemIds);
+    }
+
     @Override
     public boolean isFinished() {
         return !hasChildren() || (streamChildren().allMatch(Bundle::isFinished) && streamChildren().allMatch(MessageItem::isCommitted));
     }
 
+    @Override
+    public boolean isFinishedInParallel() {
+        return !hasChildren() || parallelStream().map(c -> (MessageItem) c).allMatch(i -> i.isFinished() && i.isCommitted());
+    }
+
     @Override
     public boolean hasChildren() {
         sync();
         return !messages.isEmpty();
     }
 
+    /**
+     * @return a snapshot of the retrieved items, so that messages retrieved later on do not break its iteration
+     */
     @Override
     public Iterable<StoredItem<BytesMessage>> children() {
         sync();
-        return messages;
+        synchronized (this) {
+            return new ArrayList<>(messages);
+        }
+    }
+
+    /**
+     * @return the retrieved items, retrieving the batch (or the messages published since) first if needed
+     */
+    @Override
+    public Spliterator<StoredItem<BytesMessage>> spliterator() {
+        sync();
+        synchronized (this) {
+            return Spliterators.spliterator(messages.toArray(), Spliterator.ORDERED | Spliterator.NONNULL);
+        }
+    }
+
+    /**
+     * Push the query down to the storage module, then check it locally in case the storage module ignored it (tags
+     * cannot be checked locally, see {@link StorageClient#retrieveQuery(long, ItemQuery, int)}); committed messages
+     * are left out. Matching items already retrieved by the batch are returned as they are, others
+     * are retrieved with their content but are not added to the batch: commit them by ID (see {@link
+     * #commit(Collection)}).
+     *
+     * @param query the restrictions on the items to retrieve
+     * @return the matching items, at most {@link ItemQuery#limit()}
+     */
+    @Override
+    public Stream<StoredItem<BytesMessage>> query(ItemQuery query) {
+        if (query.isUnrestricted())
+            return stream();
+
+        List<PersistentMessage> retrieved;
+        try {
+            retrieved = storage.retrieveQuery(sessionId, query, MAX_WAIT_SECONDS);
+        } catch (StorageClientException e) {
+            throw new IllegalStateException("Cannot query batch " + sessionId, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying batch " + sessionId, e);
+        }
+
+        List<StoredItem<BytesMessage>> items = new ArrayList<>();
+        synchronized (this) {
+            for (PersistentMessage m : retrieved) {
+                if (synced) {
+                    MessageItem known = index.get(m.getId());
+                    if (known != null && !known.isCommitted()) {
+                        items.add(known);
+                    }
+                } else if (!committedBeforeSync.contains(m.getId()) && !isKnownCommitted(m.getId())) {
+                    items.add(new MessageItem(m));
+                }
+            }
+        }
+        return items.stream().filter(query::matches).limit(query.limit());
+    }
+
+    /**
+     * Walk the window in the timestamp index of the retrieved items, one timestamp at a time, rather than copying it;
+     * in lazy mode the content of the items is still retrieved page by page as it is accessed
+     *
+     * @param fromTimestamp the first timestamp (in ms), inclusive
+     * @param toTimestamp the last timestamp (in ms), inclusive
+     * @return the items in the window, sorted by timestamp (then by ID)
+     */
+    @Override
+    public Stream<StoredItem<BytesMessage>> between(long fromTimestamp, long toTimestamp) {
+        sync();
+        if (fromTimestamp > toTimestamp)
+            return Stream.empty();
+
+        return StreamSupport.stream(new TimestampScan(fromTimestamp, toTimestamp), false);
+    }
+
+    private boolean isKnownCommitted(long id) {
+        return (journal != null && journal.contains(id)) || (catalog != null && catalog.isCommitted(sessionId, id));
     }
 
     private Stream<MessageItem> streamChildren() {
-        return StreamSupport.stream(children().spliterator(), false).map(c -> (MessageItem) c);
+        return stream().map(c -> (MessageItem) c);
+    }
+
+    /**
+     * Iterate the timestamp index from a timestamp to another; each step looks the next timestamp up under the batch
+     * lock and copies only the items with that timestamp, so a refresh adding items concurrently does not break it
+     */
+    private class TimestampScan extends Spliterators.AbstractSpliterator<StoredItem<BytesMessage>> {
+        private final long fromTimestamp;
+        private final long toTimestamp;
+        private Long lastTimestamp;
+        private Iterator<MessageItem> current = Collections.emptyIterator();
+
+        private TimestampScan(long fromTimestamp, long toTimestamp) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.fromTimestamp = fromTimestamp;
+            this.toTimestamp = toTimestamp;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super StoredItem<BytesMessage>> action) {
+            while (!current.hasNext()) {
+                synchronized (MessageBatch.this) {
+                    Map.Entry<Long, List<MessageItem>> entry = lastTimestamp == null
+                            ? byTimestamp.ceilingEntry(fromTimestamp) : byTimestamp.higherEntry(lastTimestamp);
+                    if (entry == null || entry.getKey() > toTimestamp)
+                        return false;
+                    lastTimestamp = entry.getKey();
+                    current = new ArrayList<>(entry.getValue()).iterator();
+                }
+            }
+            action.accept(current.next());
+            return true;
+        }
+    }
+
+    /**
+     * Note that an item was published to the session of this batch; once retrieved, the batch then retrieves the
+     * messages added since its last retrieval on its next access instead of the whole batch. This does not lock the
+     * batch, so it can be called from a channel callback while the batch is retrieving.
+     */
+    void published() {
+        unseenPublished.incrementAndGet();
     }
 
     private synchronized void sync() {
-        if (synced)
+        if (synced) {
+            if (unseenPublished.get() > 0) {
+                refresh();
+            }
             return;
+        }
 
         try {
-            messages.clear();
-            storage.retrieveMessages(sessionId, MAX_WAIT_SECONDS).forEach(m -> messages.add(new MessageItem(m)));
+            unseenPublished.set(0);
+            emptyRefreshes = 0;
+            clear();
+            if (catalog != null) {
+                syncAfterCommittedPrefix();
+            } else if (mode == RetrievalMode.LAZY) {
+                storage.retrieveHeaders(sessionId, MAX_WAIT_SECONDS).forEach(m -> add(new MessageItem(m, this)));
+            } else {
+                storage.retrieveMessages(sessionId, MAX_WAIT_SECONDS).forEach(m -> add(new MessageItem(m)));
+            }
             synced = true;
+            setCommitted(committedBeforeSync);
+            committedBeforeSync.clear();
+        } catch (DeadlineExceededException e) {
+            throw new IllegalStateException("Gave up retrieving batch " + sessionId, e);
         } catch (StorageClientException | InterruptedException e) {
             LOGGER.error("Cannot proceed without retrieved batch SIDs", e);
         }
     }
 
+    /**
+     * Retrieve the messages added to the session since the last retrieval. A published item may be announced before
+     * the storage module has stored it, so the batch keeps refreshing on access until it has retrieved as many new
+     * messages as were announced, giving up after a few refreshes that find nothing (e.g. the item went to a newer
+     * session).
+     */
+    private void refresh() {
+        try {
+            int size = storage.sessionSize(sessionId);
+            int known = firstPosition + order.size();
+            int added = 0;
+            if (known < size) {
+                List<PersistentMessage> page = mode == RetrievalMode.LAZY
+                        ? storage.retrieveHeaderPage(sessionId, known, size - known, MAX_WAIT_SECONDS)
+                        : storage.retrievePage(sessionId, known, size - known, MAX_WAIT_SECONDS);
+                for (PersistentMessage m : page) {
+                    if (!positions.containsKey(m.getId())) {
+                        add(mode == RetrievalMode.LAZY ? new MessageItem(m, this) : new MessageItem(m));
+                        added++;
+                    }
+                }
+            }
+            if (added > 0) {
+                int seen = added;
+                unseenPublished.updateAndGet(n -> Math.max(0, n - seen));
+                emptyRefreshes = 0;
+            } else if (++emptyRefreshes >= MAX_EMPTY_REFRESHES) {
+                unseenPublished.set(0);
+                emptyRefreshes = 0;
+            }
+            if (catalog != null) {
+                catalog.recordSize(sessionId, size, order.isEmpty() ? -1 : order.get(order.size() - 1));
+            }
+            LOGGER.debug("Retrieved {} new messages of session {}", added, sessionId);
+        } catch (DeadlineExceededException e) {
+            throw new IllegalStateException("Gave up retrieving the new messages of batch " + sessionId, e);
+        } catch (StorageClientException | InterruptedException e) {
+            LOGGER.error("Cannot retrieve the new messages of batch {}", sessionId, e);
+        }
+    }
+
+    /**
+     * Only retrieve the messages after the committed prefix recorded in the catalog
+     */
+    private void syncAfterCommittedPrefix() throws StorageClientException, InterruptedException {
+        int size = storage.sessionSize(sessionId);
+        retrieveFrom(Math.min(catalog.committedPrefix(sessionId), size), size);
+        if (catalog.hasChanged(sessionId, size, firstPosition, order)) {
+            LOGGER.warn("Session {} changed since the catalog snapshot was saved, retrieving all its messages", sessionId);
+            catalog.forget(sessionId);
+            clear();
+            retrieveFrom(0, size);
+        }
+        long highWaterId = order.isEmpty() ? -1 : order.get(order.size() - 1);
+        catalog.recordSize(sessionId, size, highWaterId);
+        LOGGER.debug("Retrieved {} messages of session {} after its {} committed ones", order.size(), sessionId, firstPosition);
+    }
+
+    private void retrieveFrom(int position, int size) throws StorageClientException, InterruptedException {
+        firstPosition = position;
+        if (position < size) {
+            if (mode == RetrievalMode.LAZY) {
+                storage.retrieveHeaderPage(sessionId, position, size - position, MAX_WAIT_SECONDS)
+                        .forEach(m -> add(new MessageItem(m, this)));
+            } else {
+                storage.retrievePage(sessionId, position, size - position, MAX_WAIT_SECONDS)
+                        .forEach(m -> add(new MessageItem(m)));
+            }
+        }
+    }
+
+    private void clear() {
+        messages.clear();
+        index.clear();
+        positions.clear();
+        order.clear();
+        byTimestamp.clear();
+        firstPosition = 0;
+        committedPrefix = 0;
+    }
+
+    /**
+     * Add a retrieved message to the batch unless it was already committed through the journal (or is known to be
+     * committed by the catalog); the position of the message in the session is recorded either way so that pages of
+     * content can still be located
+     */
+    private void add(MessageItem item) {
+        long id = item.getMessage().getId();
+        positions.put(id, firstPosition + order.size());
+        order.add(id);
+        if (!isKnownCommitted(id)) {
+            index.put(id, item);
+            messages.add(item);
+            byTimestamp.computeIfAbsent(item.timestamp(), t -> new ArrayList<>(1)).add(item);
+        }
+    }
+
+    /**
+     * Retrieve the content of the page of messages containing the given item; this avoids one remote call per item
+     * while still only transferring the contents of the regions of the batch actually used.
+     *
+     * @param item an item of this batch that has no content yet
+     */
+    synchronized void retrieveContent(MessageItem item) {
+        if (item.hasContent())
+            return; // retrieved along with another item of the same page
+
+        Integer position = positions.get(item.getMessage().getId());
+        if (position == null)
+            throw new IllegalStateException("Message " + item.getMessage().getId() + " is not part of batch " + sessionId);
+
+        int skip = position - position % PAGE_SIZE;
+        int limit = Math.min(PAGE_SIZE, firstPosition + order.size() - skip);
+        try {
+            for (PersistentMessage m : storage.retrievePage(sessionId, skip, limit, MAX_WAIT_SECONDS)) {
+                MessageItem retrieved = index.get(m.getId());
+                if (retrieved != null) {
+                    retrieved.setMessage(m);
+                }
+            }
+        } catch (StorageClientException e) {
+            throw new IllegalStateException("Cannot retrieve the content of message " + item.getMessage().getId(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrieving message " + item.getMessage().getId(), e);
+        }
+
+        if (!item.hasContent())
+            throw new IllegalStateException("Storage module did not return the content of message " + item.getMessage().getId());
+    }
+
     @Override
     public long id() {
         return sessionId;
@@ -16,33 +16,82 @@
 
 package com.intel.icecp.bundle.messages;
 
+import com.intel.icecp.bundle.Deadline;
 import com.intel.icecp.bundle.StoredBatch;
 import com.intel.icecp.bundle.StoredBundle;
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.attributes.Attributes;
+import com.intel.icecp.core.management.Channels;
 import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.core.misc.ChannelIOException;
+import com.intel.icecp.core.misc.ChannelLifetimeException;
+import com.intel.icecp.core.misc.OnPublish;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Use the storage module to store bundles of batches of messages. Batches correspond to the storage module's sessions
  * and items correspond to the messages in those sessions. This class and its children ({@link MessageBatch} and {@link
  * MessageItem}) will use the given client to call methods on the storage module like START (to create a batch), SIZE
- * (to discover the batch size), QUERY (to retrieve the items), DELETE (to remove items), etc.
+ * (to discover the batch size), QUERY (to retrieve the items), DELETE (to remove items), etc. Items added to the bundle
+ * are published to the listen channel through a {@link PublishPipeline} shared by all producers. While the storage client's {@link
+ * CircuitBreaker} refuses commands, the bundle keeps serving the batches it retrieved last instead of failing. Wrap
+ * calls in a {@link com.intel.icecp.bundle.Deadline} to bound the storage commands they issue; cancelling the deadline
+ * aborts the outstanding commands and replays. Once {@link #subscribe() subscribed} to the listen channel, the bundle
+ * picks up newly published items incrementally instead of only seeing the messages present at its first retrieval.
+ * Batches can be rotated without blocking (see {@link #newBatchAsync()}), automatically according to a {@link
+ * RotationPolicy}.
  *
  */
-public class MessageBundle implements StoredBundle<BytesMessage> {
+public class MessageBundle implements StoredBundle<BytesMessage>, AutoCloseable {
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final int PUBLISH_QUEUE_CAPACITY = 10000;
+    private static final long ROTATION_CLOSE_TIMEOUT_MS = 30000;
     private final StorageClient storage;
     private final URI listenChannel;
+    private final RetrievalMode mode;
+    private final CommitJournal journal;
+    private final CatalogSnapshot catalog;
     private final List<StoredBatch<BytesMessage>> batches = new ArrayList<>();
     private boolean synced = false;
-    private StoredBatch<BytesMessage> currentBatch;
+    private boolean everSynced = false;
+    private volatile StoredBatch<BytesMessage> currentBatch;
+    private PublishPipeline publisher;
+    private Channel<BytesMessage> subscription;
+    private volatile List<MessageBatch> currentSessionBatches = Collections.emptyList();
+    private final Object published = new Object();
+    private long publishedCount = 0;
+    private long seenPublishedCount = 0;
+    private final Object rotationLock = new Object();
+    private ExecutorService rotator;
+    private CompletableFuture<StoredBatch<BytesMessage>> rotation;
+    private volatile RotationPolicy rotationPolicy = RotationPolicy.never();
+    private final AtomicLong itemsSinceRotation = new AtomicLong();
+    private final AtomicLong bytesSinceRotation = new AtomicLong();
+    private volatile long rotatedAtNanos = System.nanoTime();
 
     /**
      * Constructor
@@ -51,8 +100,56 @@ public class MessageBundle implements StoredBundle<BytesMessage> {
      * @param listenChannel the channel stored by the storage module
      */
     public MessageBundle(StorageClient storage, URI listenChannel) {
+        this(storage, listenChannel, RetrievalMode.EAGER);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param storage Supplies storage features
+     * @param listenChannel the channel stored by the storage module
+     * @param mode how batches retrieve their messages
+     */
+    public MessageBundle(StorageClient storage, URI listenChannel, RetrievalMode mode) {
+        this(storage, listenChannel, mode, null);
+    }
+
+    /**
+     * Constructor; if a journal is given, commits are journaled locally and flushed to the storage module in the
+     * background, starting with any commits left unflushed by a previous run
+     *
+     * @param storage Supplies storage features
+     * @param listenChannel the channel stored by the storage module
+     * @param mode how batches retrieve their messages
+     * @param journal the journal to commit through, or null to tag committed messages in the storage module directly
+     */
+    public MessageBundle(StorageClient storage, URI listenChannel, RetrievalMode mode, CommitJournal journal) {
+        this(storage, listenChannel, mode, journal, null);
+    }
+
+    /**
+     * Constructor; if a catalog snapshot is given, the bundle resumes the session it was using when the snapshot was
+     * saved and its batches only retrieve the messages that the snapshot does not know to be committed
+     *
+     * @param storage Supplies storage features
+     * @param listenChannel the channel stored by the storage module
+     * @param mode how batches retrieve their messages
+     * @param journal the journal to commit through, or null to tag committed messages in the storage module directly
+     * @param catalog the catalog snapshot to warm-start from and keep up to date, or null
+     */
+    public MessageBundle(StorageClient storage, URI listenChannel, RetrievalMode mode, CommitJournal journal,
+                         CatalogSnapshot catalog) {
         this.storage = storage;
         this.listenChannel = listenChannel;
+        this.mode = mode;
+        this.journal = journal;
+        this.catalog = catalog;
+        if (journal != null) {
+            journal.start();
+        }
+        if (catalog != null && catalog.currentSession() != null) {
+            setCurrentBatch(storage, catalog.currentSession());
+        }
     }
 
     /**
@@ -64,6 +161,9 @@ public class MessageBundle implements StoredBundle<BytesMessage> {
     public MessageBundle(StorageClient storage, long currentSessionId) {
         URI uri;
         this.storage = storage;
+        this.mode = RetrievalMode.EAGER;
+        this.journal = null;
+        this.catalog = null;
         setCurrentBatch(storage, currentSessionId);
         try {
             uri = new URI("");
@@ -82,20 +182,133 @@ public class MessageBundle implements StoredBundle<BytesMessage> {
      * @param currentSessionId Session ID to start with
      */
     private synchronized void setCurrentBatch(StorageClient storage, long currentSessionId) {
-        currentBatch = new MessageBatch(storage, currentSessionId);
+        currentBatch = new MessageBatch(storage, currentSessionId, mode, journal, catalog);
+        watchCurrentSession();
     }
 
+    /**
+     * Remember the batches of the current session, which published items are added to; they are read without locking
+     * the bundle when an item is published
+     */
+    private synchronized void watchCurrentSession() {
+        long currentId = currentBatch == null ? -1 : currentBatch.id();
+        currentSessionBatches = knownBatches().stream().filter(b -> b.id() == currentId).collect(Collectors.toList());
+    }
+
+    /**
+     * Rename the current session (or start one) and make it the current batch, blocking until the storage module
+     * answers; a rotation already in progress is waited for instead of renaming the session again. See {@link
+     * #newBatchAsync()} to rotate without blocking.
+     *
+     * @return the new batch, or null if the session could not be created
+     */
     @Override
     public StoredBatch<BytesMessage> newBatch() {
-        Long id = getNewBatchId();
-        if (id != null) {
-            setCurrentBatch(storage, id);
-            setSyncedFalse();
-            return currentBatch;
-        } else {
+        try {
+            return newBatchAsync().join();
+        } catch (CompletionException | CancellationException e) {
             return null;
         }
     }
+
+    /**
+     * Rotate to a new batch without blocking: the session is renamed (or started) by a background thread, under the
+     * caller's {@link Deadline} if any, while items keep being added to the current batch, which stays current until
+     * the new session ID is known. Calls made while a rotation is in progress share it. The counters of the rotation
+     * policy restart once the new batch is current.
+     *
+     * @return a future completed with the new batch, or completed exceptionally if the session cannot be created
+     */
+    public CompletableFuture<StoredBatch<BytesMessage>> newBatchAsync() {
+        synchronized (rotationLock) {
+            if (rotation != null && !rotation.isDone())
+                return rotation;
+
+            StoredBatch<BytesMessage> previous = currentBatch;
+            Long previousId = previous == null ? null : previous.id();
+            Deadline deadline = Deadline.current();
+            CompletableFuture<StoredBatch<BytesMessage>> future = new CompletableFuture<>();
+            rotator().execute(() -> {
+                Deadline.Scope scope = deadline == null ? null : deadline.enter();
+                try {
+                    Long id = startSession(previousId);
+                    if (id == null)
+                        throw new StorageClientException("The storage module did not return a session ID");
+                    StoredBatch<BytesMessage> rotated = rotateTo(id);
+                    resetRotationCounters();
+                    future.complete(rotated);
+                } catch (StorageClientException | RuntimeException e) {
+                    LOGGER.error("Unable to create new session", e);
+                    future.completeExceptionally(new IllegalStateException("Unable to create new session", e));
+                } finally {
+                    if (scope != null) {
+                        scope.close();
+                    }
+                }
+            });
+            rotation = future;
+            return future;
+        }
+    }
+
+    /**
+     * Rotate to new batches automatically as items are added; the rotations do not block the producers (see {@link
+     * #newBatchAsync()})
+     *
+     * @param rotationPolicy when to rotate, counted from now; {@link RotationPolicy#never()} to only rotate on demand
+     */
+    public void setRotationPolicy(RotationPolicy rotationPolicy) {
+        this.rotationPolicy = rotationPolicy;
+        resetRotationCounters();
+    }
+
+    /**
+     * @return the policy for rotating batches automatically
+     */
+    public RotationPolicy rotationPolicy() {
+        return rotationPolicy;
+    }
+
+    private void rotateIfDue(BytesMessage item) {
+        RotationPolicy policy = rotationPolicy;
+        if (policy == RotationPolicy.never())
+            return;
+
+        long items = itemsSinceRotation.incrementAndGet();
+        long bytes = bytesSinceRotation.addAndGet(item.getBytes() == null ? 0 : item.getBytes().length);
+        if (policy.shouldRotate(items, bytes, System.nanoTime() - rotatedAtNanos)) {
+            newBatchAsync();
+        }
+    }
+
+    private void resetRotationCounters() {
+        itemsSinceRotation.set(0);
+        bytesSinceRotation.set(0);
+        rotatedAtNanos = System.nanoTime();
+    }
+
+    private ExecutorService rotator() {
+        synchronized (rotationLock) {
+            if (rotator == null) {
+                rotator = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "batch-rotation-" + listenChannel);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return rotator;
+        }
+    }
+
+    private synchronized StoredBatch<BytesMessage> rotateTo(long id) {
+        setCurrentBatch(storage, id);
+        setSyncedFalse();
+        if (catalog != null) {
+            catalog.setCurrentSession(id);
+            saveCatalog();
+        }
+        return currentBatch;
+    }
     
     /**
      * synchronized synced to false method
@@ -112,25 +325,202 @@ public class MessageBundle implements StoredBundle<BytesMessage> {
         batches.removeAll(finishedBatches);
     }
 
-    private Long getNewBatchId() {
+    private Long startSession(Long previousId) throws StorageClientException {
+        return previousId == null ? storage.startSession(listenChannel) : storage.renameSession(previousId);
+    }
+
+    /**
+     * Publish an item to the listen channel, where the storage module stores it in the current session, and wait until
+     * it is published; see {@link #addItemAsync(BytesMessage)} to publish without waiting
+     *
+     * @param item the item to add
+     * @throws IllegalStateException if the item could not be published, or if interrupted while waiting
+     */
+    @Override
+    public void addItem(BytesMessage item) {
+        try {
+            addItemAsync(item).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to publish an item to " + listenChannel, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while publishing an item to " + listenChannel, e);
+        }
+    }
+
+    /**
+     * Asynchronously publish an item to the listen channel; items are published in order by a single publisher shared
+     * by all producers of this bundle
+     *
+     * @param item the item to add
+     * @return a future completed once the item is published
+     */
+    public CompletableFuture<Void> addItemAsync(BytesMessage item) {
+        try {
+            CompletableFuture<Void> submitted = publisher().submit(item);
+            rotateIfDue(item);
+            return submitted;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Subscribe to the listen channel to learn about published items without polling the storage module: each item
+     * marks the retrieved batches of the current session so that their next access only retrieves the messages added
+     * since, and wakes up {@link #awaitNewItems(long, TimeUnit)}. Nothing is retrieved when items are published, so a
+     * burst of items costs a single incremental retrieval. Does nothing if already subscribed.
+     */
+    public synchronized void subscribe() {
+        if (subscription != null)
+            return;
+
+        Channels channels = storage.getChannels();
+        if (channels == null || listenChannel == null || listenChannel.toString().isEmpty())
+            throw new IllegalStateException("Cannot subscribe without channels and a listen channel");
+
         try {
-            return currentBatch == null
-                    ? storage.startSession(listenChannel)
-                    : storage.renameSession(currentBatch.id());
+            Channel<BytesMessage> channel = channels.openChannel(listenChannel, BytesMessage.class, Persistence.DEFAULT);
+            channel.subscribe(new PublishedItemListener());
+            subscription = channel;
+        } catch (ChannelLifetimeException | ChannelIOException e) {
+            throw new IllegalStateException("Unable to subscribe to listen channel " + listenChannel, e);
+        }
+    }
+
+    /**
+     * Wait for items to be published to the listen channel; requires {@link #subscribe()}
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if items were published since the previous call, false if none were before the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitNewItems(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (published) {
+            while (publishedCount == seenPublishedCount) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(published, left);
+            }
+            seenPublishedCount = publishedCount;
+            return true;
+        }
+    }
+
+    private void onPublished() {
+        currentSessionBatches.forEach(MessageBatch::published);
+        synchronized (published) {
+            publishedCount++;
+            published.notifyAll();
+        }
+    }
+
+    private synchronized PublishPipeline publisher() {
+        if (publisher == null) {
+            Channels channels = storage.getChannels();
+            if (channels == null || listenChannel == null || listenChannel.toString().isEmpty())
+                throw new IllegalStateException("Cannot add items without channels and a listen channel");
+
+            try {
+                Channel<BytesMessage> channel = channels.openChannel(listenChannel, BytesMessage.class, Persistence.DEFAULT);
+                publisher = new PublishPipeline(channel, PUBLISH_QUEUE_CAPACITY);
+            } catch (ChannelLifetimeException e) {
+                throw new IllegalStateException("Unable to open listen channel " + listenChannel, e);
+            }
+        }
+        return publisher;
+    }
+
+    /**
+     * Wait for the added items to be published and release the resources of the bundle (e.g. finish the rotation in
+     * progress, flush and close the commit journal)
+     *
+     * @throws Exception if the resources cannot be released
+     */
+    @Override
+    public void close() throws Exception {
+        PublishPipeline toClose;
+        Channel<BytesMessage> subscribed;
+        synchronized (this) {
+            toClose = publisher;
+            publisher = null;
+            subscribed = subscription;
+            subscription = null;
+        }
+        if (toClose != null) {
+            toClose.close();
+        }
+        if (subscribed != null) {
+            subscribed.close();
+        }
+        ExecutorService rotating;
+        synchronized (rotationLock) {
+            rotating = rotator;
+            rotator = null;
+        }
+        if (rotating != null) {
+            rotating.shutdown();
+            rotating.awaitTermination(ROTATION_CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (catalog != null) {
+            catalog.save();
+        }
+    }
+
+    @Override
+    public void commit(Collection<Long> itemIds) {
+        if (itemIds.isEmpty())
+            return;
+
+        try {
+            MessageBatch.tagInactive(storage, journal, itemIds);
         } catch (StorageClientException e) {
-            LOGGER.error("Unable to create new session", e);
-            return null;
+            throw new IllegalStateException("Failed to tag the following items as inactive: " + itemIds, e);
         }
+        knownBatches().forEach(b -> b.setCommitted(itemIds));
     }
 
-    // Added to avoid compiler issues
+    /**
+     * Commit the items of the range without retrieving their content; the IDs are resolved batch by batch (see {@link
+     * MessageBatch#idsBetween(long, long)}). The batches are only listed from the storage module if they never were.
+     */
     @Override
-    public void addItem(BytesMessage item) {
-        throw new UnsupportedOperationException("Not yet implemented");
+    public void commitRange(long firstItemId, long lastItemId) {
+        boolean listed;
+        synchronized (this) {
+            listed = everSynced;
+        }
+        if (!listed) {
+            sync();
+        }
+        Set<Long> ids = new LinkedHashSet<>();
+        knownBatches().forEach(b -> ids.addAll(b.idsBetween(firstItemId, lastItemId)));
+        commit(ids);
     }
 
+    private synchronized List<MessageBatch> knownBatches() {
+        Stream<StoredBatch<BytesMessage>> known = currentBatch == null ? batches.stream()
+                : Stream.concat(batches.stream(), Stream.of(currentBatch));
+        return known.map(b -> (MessageBatch) b).collect(Collectors.toList());
+    }
+
+    /**
+     * @return true if there are batches; before the first sync, a catalog snapshot with uncommitted messages answers
+     * without calling the storage module
+     */
     @Override
     public boolean hasChildren() {
+        if (isWarm())
+            return true;
         sync();
         return !batches.isEmpty();
     }
@@ -141,6 +531,17 @@ public class MessageBundle implements StoredBundle<BytesMessage> {
         return batches;
     }
 
+    /**
+     * @return the batches known after syncing with the storage module, as for {@link #children()}
+     */
+    @Override
+    public Spliterator<StoredBatch<BytesMessage>> spliterator() {
+        sync();
+        synchronized (this) {
+            return Spliterators.spliterator(batches.toArray(), Spliterator.ORDERED | Spliterator.NONNULL);
+        }
+    }
+
     private synchronized void sync() {
         if (!synced || batches.isEmpty()) {
             try {
@@ -150,12 +551,27 @@ public class MessageBundle implements StoredBundle<BytesMessage> {
                     List<Long> flattened = ids.stream().flatMap(Collection::stream).collect(Collectors.toList());
                     // Get the list of session ids for the current batches.
                     List<Long> sessionIdsInBatches = batches.stream().map(b->b.id()).collect(Collectors.toList());
+                    if (catalog != null) {
+                        // Forget the deleted sessions and skip the closed ones that are already fully committed
+                        catalog.retain(flattened);
+                        flattened.removeIf(sid -> sid != currentBatch.id() && catalog.isFullyCommitted(sid));
+                    }
                     // Remove the old sessions from the list
                     flattened.removeAll(sessionIdsInBatches);
                     // Create a batch for the brand new session
                     flattened.forEach(this::createBatch);
+                    watchCurrentSession();
                 }
                 synced = true;
+                everSynced = true;
+                if (catalog != null) {
+                    saveCatalog();
+                }
+            } catch (StorageUnavailableException e) {
+                if (!everSynced)
+                    throw new IllegalStateException("Cannot proceed without retrieved batch SIDs", e);
+                // serve the batches of the last sync until the storage module is available again
+                LOGGER.debug("Serving cached batches, the storage module is unavailable", e);
             } catch (StorageClientException e) {
                 throw new IllegalStateException("Cannot proceed without retrieved batch SIDs", e);
             }
@@ -164,7 +580,34 @@ public class MessageBundle implements StoredBundle<BytesMessage> {
         cleanupFinishedBatches();
     }
 
+    private synchronized boolean isWarm() {
+        return !synced && batches.isEmpty() && catalog != null && catalog.hasUncommitted();
+    }
+
     private void createBatch(Long sid) {
-        batches.add(new MessageBatch(storage, sid));
+        batches.add(new MessageBatch(storage, sid, mode, journal, catalog));
+    }
+
+    private void saveCatalog() {
+        try {
+            catalog.save();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to save the catalog snapshot", e);
+        }
+    }
+
+    /**
+     * Announce the items published to the listen channel to the bundle
+     */
+    private class PublishedItemListener implements OnPublish<BytesMessage> {
+        @Override
+        public void onPublish(BytesMessage item) {
+            onPublished();
+        }
+
+        @Override
+        public void onPublish(BytesMessage item, Attributes attributes) {
+            onPublished();
+        }
     }
 }
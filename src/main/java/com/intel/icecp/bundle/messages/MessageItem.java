@@ -24,18 +24,35 @@ import com.intel.icecp.core.messages.BytesMessage;
  *
  */
 class MessageItem implements StoredItem<BytesMessage> {
-    private PersistentMessage message;
-    private boolean itemFinished = false;
-    private boolean isCommitted = false;
+    private final MessageBatch batch;
+    private volatile PersistentMessage message;
+    private volatile boolean itemFinished = false;
+    private volatile boolean isCommitted = false;
 
     MessageItem(PersistentMessage m) {
+        this(m, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param m the retrieved message; its content may be missing if only the message header was retrieved
+     * @param batch the batch to retrieve the missing content from, or null if the content is always present
+     */
+    MessageItem(PersistentMessage m, MessageBatch batch) {
         this.message = m;
+        this.batch = batch;
     }
 
     PersistentMessage getMessage() {
         return message;
     }
 
+    @Override
+    public long id() {
+        return message.getId();
+    }
+
     @Override
     public long timestamp() {
         return message.getTimestamp();
@@ -43,9 +60,20 @@ class MessageItem implements StoredItem<BytesMessage> {
 
     @Override
     public BytesMessage value() {
+        if (!hasContent() && batch != null) {
+            batch.retrieveContent(this);
+        }
         return new BytesMessage(message.getMessageContent());
     }
 
+    boolean hasContent() {
+        return message.getMessageContent() != null;
+    }
+
+    void setMessage(PersistentMessage m) {
+        this.message = m;
+    }
+
     @Override
     public void markFinished() {
         itemFinished = true;
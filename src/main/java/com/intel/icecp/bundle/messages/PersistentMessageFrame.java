@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary format used to replay many {@link PersistentMessage}s in a single publish, instead of one
+ * Jackson-serialized message per publish. A frame is laid out as:
+ * <pre>
+ * [magic:1][version:1][count:varint]
+ * then, for each message, in order:
+ * [id delta:zigzag varint][timestamp delta:zigzag varint][content length + 1:varint][content]
+ * </pre>
+ * IDs and timestamps are encoded as the difference with the previous message of the frame (the first one with 0), so
+ * that messages sorted by ID usually take a few bytes of header each. A content length of 0 marks a message without
+ * content (e.g. headers-only replay).
+ * <p>
+ * A compressed frame (version 2) holds the same content after the magic byte, deflated (see {@link
+ * #encode(List, CompressionStats)}):
+ * <pre>
+ * [magic:1][version:1][uncompressed length:varint][deflated count and messages]
+ * </pre>
+ *
+ */
+public final class PersistentMessageFrame {
+    static final byte MAGIC = (byte) 0xF1;
+    static final byte VERSION = 1;
+    static final byte COMPRESSED_VERSION = 2;
+
+    /**
+     * Disable instantiation
+     */
+    private PersistentMessageFrame() {
+    }
+
+    /**
+     * @param messages the messages to encode
+     * @return a frame containing all the messages, in order
+     */
+    public static byte[] encode(List<PersistentMessage> messages) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + messages.size() * 32);
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeVarint(out, messages.size());
+        long previousId = 0;
+        long previousTimestamp = 0;
+        for (PersistentMessage message : messages) {
+            writeVarint(out, zigzag(message.getId() - previousId));
+            writeVarint(out, zigzag(message.getTimestamp() - previousTimestamp));
+            byte[] content = message.getMessageContent();
+            if (content == null) {
+                writeVarint(out, 0);
+            } else {
+                writeVarint(out, content.length + 1L);
+                out.write(content, 0, content.length);
+            }
+            previousId = message.getId();
+            previousTimestamp = message.getTimestamp();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the messages in a compressed frame, unless the frame is small or does not compress well, in which case a
+     * regular frame is returned
+     *
+     * @param messages the messages to encode
+     * @param stats where to record the compression ratio and cost
+     * @return a frame containing all the messages, in order
+     */
+    public static byte[] encode(List<PersistentMessage> messages, CompressionStats stats) {
+        byte[] frame = encode(messages);
+        byte[] compressed = BlockCompression.compress(frame, 2, frame.length - 2, stats);
+        if (compressed == null)
+            return frame;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length + 8);
+        out.write(MAGIC);
+        out.write(COMPRESSED_VERSION);
+        writeVarint(out, frame.length - 2L);
+        out.write(compressed, 0, compressed.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param frame a frame built by {@link #encode(List)} or {@link #encode(List, CompressionStats)}
+     * @return the messages of the frame, in order
+     * @throws IllegalArgumentException if the bytes are not a valid frame
+     */
+    public static List<PersistentMessage> decode(byte[] frame) {
+        return decode(frame, new CompressionStats());
+    }
+
+    /**
+     * @param frame a frame built by {@link #encode(List)} or {@link #encode(List, CompressionStats)}
+     * @param stats where to record the decompression of compressed frames
+     * @return the messages of the frame, in order
+     * @throws IllegalArgumentException if the bytes are not a valid frame
+     */
+    public static List<PersistentMessage> decode(byte[] frame, CompressionStats stats) {
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        try {
+            if (in.get() != MAGIC)
+                throw new IllegalArgumentException("Not a message frame");
+
+            byte version = in.get();
+            if (version == COMPRESSED_VERSION) {
+                long rawLength = readVarint(in);
+                if (rawLength < 0 || rawLength > Integer.MAX_VALUE - 1)
+                    throw new IllegalArgumentException("Invalid uncompressed length in message frame");
+                in = ByteBuffer.wrap(BlockCompression.decompress(frame, in.position(), in.remaining(), (int) rawLength, stats));
+            } else if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported message frame version " + version);
+            }
+
+            long count = readVarint(in);
+            if (count < 0 || count > in.remaining() / 3)
+                throw new IllegalArgumentException("Message frame announces more messages than it contains");
+
+            List<PersistentMessage> messages = new ArrayList<>((int) count);
+            long id = 0;
+            long timestamp = 0;
+            for (int i = 0; i < count; i++) {
+                id += unzigzag(readVarint(in));
+                timestamp += unzigzag(readVarint(in));
+                long length = readVarint(in);
+                byte[] content = null;
+                if (length < 0)
+                    throw new IllegalArgumentException("Invalid content length in message frame");
+                if (length - 1 > in.remaining())
+                    throw new IllegalArgumentException("Truncated message frame");
+                if (length > 0) {
+                    content = new byte[(int) (length - 1)];
+                    in.get(content);
+                }
+                messages.add(new PersistentMessage(id, timestamp, content));
+            }
+            return messages;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated message frame", e);
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint in message frame");
+    }
+}
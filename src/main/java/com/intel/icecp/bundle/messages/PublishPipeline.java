@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.misc.ChannelIOException;
+import com.intel.icecp.core.misc.ChannelLifetimeException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronously publish messages to a channel: producers enqueue messages in a bounded queue (blocking when it is
+ * full, which pushes back on producers faster than the channel) and a single publisher thread publishes them in order,
+ * completing the future of each message. Messages are not batched: the storage module stores each message published
+ * on the channel as one item, so they are published one at a time.
+ *
+ */
+class PublishPipeline implements AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private final Channel<BytesMessage> channel;
+    private final BlockingQueue<Pending> queue;
+    private final Thread publisher;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor; starts the publisher thread
+     *
+     * @param channel the channel to publish to; it is closed when the pipeline is closed
+     * @param capacity the maximum number of messages waiting to be published
+     */
+    PublishPipeline(Channel<BytesMessage> channel, int capacity) {
+        this.channel = channel;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.publisher = new Thread(this::run, "publish-pipeline-" + channel.getName());
+        this.publisher.setDaemon(true);
+        this.publisher.start();
+    }
+
+    /**
+     * Enqueue a message for publishing, blocking while the queue is full
+     *
+     * @param message the message to publish
+     * @return a future completed once the message is published, or completed exceptionally if publishing fails
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    CompletableFuture<Void> submit(BytesMessage message) throws InterruptedException {
+        if (closed)
+            throw new IllegalStateException("Publish pipeline to " + channel.getName() + " is closed");
+
+        Pending pending = new Pending(message);
+        queue.put(pending);
+        return pending.future;
+    }
+
+    /**
+     * @return the number of messages waiting to be published
+     */
+    int queued() {
+        return queue.size();
+    }
+
+    private void run() {
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending next = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (next != null) {
+                    publish(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        failQueued();
+    }
+
+    private void failQueued() {
+        List<Pending> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        remaining.forEach(p -> p.future.completeExceptionally(new IllegalStateException("Publish pipeline was closed")));
+    }
+
+    private void publish(Pending pending) {
+        try {
+            channel.publish(pending.message);
+            pending.future.complete(null);
+        } catch (ChannelIOException | RuntimeException e) {
+            LOGGER.error("Failed to publish message to {}", channel.getName(), e);
+            pending.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Stop accepting messages, wait for the queued ones to be published and close the channel
+     *
+     * @throws InterruptedException if interrupted while waiting for the queued messages
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        publisher.join();
+        failQueued(); // submitted concurrently with closing
+        try {
+            channel.close();
+        } catch (ChannelLifetimeException e) {
+            LOGGER.warn("Unable to close channel {}", channel.getName(), e);
+        }
+    }
+
+    private static class Pending {
+        private final BytesMessage message;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(BytesMessage message) {
+            this.message = message;
+        }
+    }
+}
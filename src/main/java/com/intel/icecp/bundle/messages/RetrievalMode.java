@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+/**
+ * Describe how a {@link MessageBatch} retrieves its messages from the storage module.
+ *
+ */
+public enum RetrievalMode {
+    /**
+     * Retrieve the full contents of every message in the batch on the first sync
+     */
+    EAGER,
+
+    /**
+     * Retrieve only the ID and timestamp of every message on the first sync; the message contents are then retrieved
+     * in pages the first time {@link com.intel.icecp.bundle.StoredItem#value()} is called on an item of the page
+     */
+    LAZY
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a {@link MessageBundle} rotates to a new batch on its own (see {@link
+ * MessageBundle#setRotationPolicy(RotationPolicy)}): after a number of added items, a number of added bytes or an age
+ * of the current batch, whichever comes first. Policies are immutable; start from {@link #never()} and add limits,
+ * e.g. {@code RotationPolicy.never().afterItems(10000).afterAge(5, TimeUnit.SECONDS)}.
+ * <p>
+ * Limits are checked as items are added, so an idle batch is not rotated until the next item arrives.
+ *
+ */
+public final class RotationPolicy {
+    private static final RotationPolicy NEVER = new RotationPolicy(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+    private final long maxItems;
+    private final long maxBytes;
+    private final long maxAgeNanos;
+
+    private RotationPolicy(long maxItems, long maxBytes, long maxAgeNanos) {
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+        this.maxAgeNanos = maxAgeNanos;
+    }
+
+    /**
+     * @return a policy that never rotates
+     */
+    public static RotationPolicy never() {
+        return NEVER;
+    }
+
+    /**
+     * @param items the number of items added to a batch before rotating; must be positive
+     * @return a copy of this policy also rotating after the given number of items
+     */
+    public RotationPolicy afterItems(long items) {
+        if (items <= 0)
+            throw new IllegalArgumentException("The number of items must be positive: " + items);
+        return new RotationPolicy(items, maxBytes, maxAgeNanos);
+    }
+
+    /**
+     * @param bytes the number of content bytes added to a batch before rotating; must be positive
+     * @return a copy of this policy also rotating after the given number of bytes
+     */
+    public RotationPolicy afterBytes(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("The number of bytes must be positive: " + bytes);
+        return new RotationPolicy(maxItems, bytes, maxAgeNanos);
+    }
+
+    /**
+     * @param age the age of a batch before rotating; must be positive
+     * @param unit the unit of the age
+     * @return a copy of this policy also rotating batches older than the given age
+     */
+    public RotationPolicy afterAge(long age, TimeUnit unit) {
+        if (age <= 0)
+            throw new IllegalArgumentException("The age must be positive: " + age);
+        return new RotationPolicy(maxItems, maxBytes, unit.toNanos(age));
+    }
+
+    /**
+     * @param items the number of items added to the current batch
+     * @param bytes the number of content bytes added to the current batch
+     * @param ageNanos the age of the current batch
+     * @return true if the bundle should rotate to a new batch
+     */
+    boolean shouldRotate(long items, long bytes, long ageNanos) {
+        return items >= maxItems || bytes >= maxBytes || ageNanos >= maxAgeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "RotationPolicy{maxItems=" + maxItems + ", maxBytes=" + maxBytes + ", maxAgeMs="
+                + TimeUnit.NANOSECONDS.toMillis(maxAgeNanos) + "}";
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+import com.intel.icecp.core.management.Channels;
+import com.intel.icecp.rpc.CommandRequest;
+import com.intel.icecp.rpc.CommandResponse;
+import com.intel.icecp.rpc.Rpc;
+import com.intel.icecp.rpc.RpcClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of RPC clients to the same command channel, so that concurrent commands are not serialized on a single
+ * request pipeline. Each call goes to the healthy client with the fewest outstanding requests. A client whose calls
+ * fail, answer with an error or are cancelled (e.g. after timing out) {@code failureThreshold} times in a row is
+ * considered unhealthy and skipped for {@code quarantineMs}, after which it gets requests again. If all clients are
+ * unhealthy, calls still go to the least loaded one rather than failing.
+ *
+ */
+public class RpcClientPool implements RpcClient {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    private static final long DEFAULT_QUARANTINE_MS = 5000;
+    private final List<PooledClient> clients = new ArrayList<>();
+    private final int failureThreshold;
+    private final long quarantineNanos;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Constructor; opens {@code size} RPC clients to the command channel
+     *
+     * @param channels the channels to use for connecting to the storage module
+     * @param commandChannel the command channel of the storage module
+     * @param size the number of clients
+     */
+    public RpcClientPool(Channels channels, URI commandChannel, int size) {
+        this(newClients(channels, commandChannel, size), DEFAULT_FAILURE_THRESHOLD, DEFAULT_QUARANTINE_MS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clients the clients to balance the calls over
+     * @param failureThreshold the number of consecutive failures after which a client is considered unhealthy
+     * @param quarantineMs the time during which an unhealthy client is skipped
+     */
+    public RpcClientPool(List<? extends RpcClient> clients, int failureThreshold, long quarantineMs) {
+        if (clients.isEmpty())
+            throw new IllegalArgumentException("A pool needs at least one client");
+        clients.forEach(c -> this.clients.add(new PooledClient(c)));
+        this.failureThreshold = failureThreshold;
+        this.quarantineNanos = TimeUnit.MILLISECONDS.toNanos(quarantineMs);
+    }
+
+    private static List<RpcClient> newClients(Channels channels, URI commandChannel, int size) {
+        List<RpcClient> clients = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            clients.add(Rpc.newClient(channels, commandChannel));
+        }
+        return clients;
+    }
+
+    /**
+     * Send the request on the least loaded healthy client; cancelling the returned future counts as a failure of the
+     * client
+     *
+     * @param request the command request
+     * @return the future response
+     */
+    @Override
+    public CompletableFuture<CommandResponse> call(CommandRequest request) {
+        PooledClient pooled = select();
+        pooled.outstanding.incrementAndGet();
+        CompletableFuture<CommandResponse> response;
+        try {
+            response = pooled.client.call(request);
+        } catch (RuntimeException e) {
+            pooled.outstanding.decrementAndGet();
+            pooled.recordFailure();
+            throw e;
+        }
+        response.whenComplete((r, e) -> {
+            pooled.outstanding.decrementAndGet();
+            if (e == null && r != null && !r.err) {
+                pooled.recordSuccess();
+            } else {
+                pooled.recordFailure();
+            }
+        });
+        return response;
+    }
+
+    /**
+     * @return the number of clients
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * @return the number of clients currently considered healthy
+     */
+    public int healthyCount() {
+        long now = System.nanoTime();
+        return (int) clients.stream().filter(c -> c.isHealthy(now)).count();
+    }
+
+    /**
+     * @return the total number of requests sent and not yet answered
+     */
+    public int outstandingCount() {
+        return clients.stream().mapToInt(c -> c.outstanding.get()).sum();
+    }
+
+    /**
+     * @param index the index of the client, in the order given at construction
+     * @return the number of requests sent on the client and not yet answered
+     */
+    public int outstandingCount(int index) {
+        return clients.get(index).outstanding.get();
+    }
+
+    /**
+     * @return the least loaded healthy client, or the least loaded client if none is healthy; the scan starts at a
+     * rotating offset so that ties are spread over the clients
+     */
+    private PooledClient select() {
+        long now = System.nanoTime();
+        int start = Math.floorMod(next.getAndIncrement(), clients.size());
+        PooledClient best = null;
+        PooledClient fallback = null;
+        for (int i = 0; i < clients.size(); i++) {
+            PooledClient candidate = clients.get((start + i) % clients.size());
+            if (fallback == null || candidate.outstanding.get() < fallback.outstanding.get())
+                fallback = candidate;
+            if (candidate.isHealthy(now) && (best == null || candidate.outstanding.get() < best.outstanding.get()))
+                best = candidate;
+        }
+        if (best == null) {
+            LOGGER.warn("All {} RPC clients are unhealthy, using the least loaded one", clients.size());
+            return fallback;
+        }
+        return best;
+    }
+
+    /**
+     * A client of the pool with its load and health
+     */
+    private class PooledClient {
+        private final RpcClient client;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long unhealthyUntil = Long.MIN_VALUE;
+
+        PooledClient(RpcClient client) {
+            this.client = client;
+        }
+
+        boolean isHealthy(long now) {
+            return unhealthyUntil == Long.MIN_VALUE || now - unhealthyUntil >= 0;
+        }
+
+        void recordSuccess() {
+            consecutiveFailures.set(0);
+            unhealthyUntil = Long.MIN_VALUE;
+        }
+
+        void recordFailure() {
+            if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+                consecutiveFailures.set(0);
+                unhealthyUntil = System.nanoTime() + quarantineNanos;
+                LOGGER.warn("RPC client {} failed {} times in a row, skipping it for {} ms", client, failureThreshold,
+                        TimeUnit.NANOSECONDS.toMillis(quarantineNanos));
+            }
+        }
+    }
+}
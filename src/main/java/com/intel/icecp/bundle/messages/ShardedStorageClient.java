@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+import com.intel.icecp.bundle.Deadline;
+import com.intel.icecp.bundle.ItemQuery;
+import com.intel.icecp.core.management.Channels;
+import com.intel.icecp.rpc.RpcClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A storage client spreading the load over several storage modules (shards). New sessions are started on the shard
+ * owning their listen channel on a consistent hash ring; the session list of a channel is queried from all shards
+ * (sessions of a channel may live on another shard after shards were added or removed) and every other command is
+ * routed to the shard that holds the session or the messages, as learned from the replies of the shards. A session
+ * this client has not seen yet is looked up by asking each shard whether it knows the session, so lookups stay
+ * correct while the ring changes; only the placement of new sessions follows the ring.
+ * <p>
+ * Session IDs and message IDs must be unique across the shards (e.g. each storage module allocates IDs from its own
+ * range); tag requests for messages this client has not retrieved are sent to all shards.
+ *
+ */
+public class ShardedStorageClient extends StorageClient {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int POINTS_PER_SHARD = 64;
+    private final Channels channels;
+    private final ConsistentHashRing<StorageClient> ring = new ConsistentHashRing<>(POINTS_PER_SHARD);
+    private final Map<Long, StorageClient> sessions = new ConcurrentHashMap<>();
+    private final Map<Long, StorageClient> messages = new ConcurrentHashMap<>();
+    private final ExecutorService fanOut = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "storage-shard-fan-out");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor
+     *
+     * @param channels the channels to use for publishing to the listen channels; may be null if no items are added
+     * @param shards the storage clients of the shards, by unique name (e.g. their command channel)
+     * @param timeoutMs timeout for calls to remote module
+     */
+    public ShardedStorageClient(Channels channels, Map<String, StorageClient> shards, int timeoutMs) {
+        super((RpcClient) null, timeoutMs);
+        this.channels = channels;
+        shards.forEach(ring::add);
+        // commands are sent by the shards, each guarded by its own limiter and breaker unless shared ones are set
+        super.setConcurrencyLimiter(null);
+        super.setCircuitBreaker(null);
+    }
+
+    /**
+     * Add a shard; new sessions of the channels it now owns are started on it, existing sessions stay where they are
+     *
+     * @param name the unique name of the shard
+     * @param shard the storage client of the shard
+     */
+    public void addShard(String name, StorageClient shard) {
+        ring.add(name, shard);
+        LOGGER.info("Added storage shard {}", name);
+    }
+
+    /**
+     * Remove a shard; its sessions are no longer reachable through this client
+     *
+     * @param name the unique name of the shard
+     */
+    public void removeShard(String name) {
+        StorageClient shard = ring.remove(name);
+        if (shard != null) {
+            sessions.values().removeIf(s -> s == shard);
+            messages.values().removeIf(s -> s == shard);
+            LOGGER.info("Removed storage shard {}", name);
+        }
+    }
+
+    @Override
+    Channels getChannels() {
+        return channels;
+    }
+
+    @Override
+    public void setFramedReplay(boolean framedReplay) {
+        ring.shards().values().forEach(s -> s.setFramedReplay(framedReplay));
+    }
+
+    @Override
+    public void setReplayCompression(boolean replayCompression) {
+        ring.shards().values().forEach(s -> s.setReplayCompression(replayCompression));
+    }
+
+    @Override
+    public void setTagCompression(boolean tagCompression) {
+        ring.shards().values().forEach(s -> s.setTagCompression(tagCompression));
+    }
+
+    /**
+     * Limit the number of commands outstanding across all shards with the same limiter; by default each shard has its
+     * own
+     *
+     * @param concurrencyLimiter the limiter shared by the shards, or null to send commands without limit
+     */
+    @Override
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        super.setConcurrencyLimiter(concurrencyLimiter);
+        ring.shards().values().forEach(s -> s.setConcurrencyLimiter(concurrencyLimiter));
+    }
+
+    /**
+     * @return the limiter shared by all shards, or null if each shard has its own (or none)
+     */
+    @Override
+    public ConcurrencyLimiter concurrencyLimiter() {
+        return super.concurrencyLimiter();
+    }
+
+    /**
+     * Guard all shards with the same breaker, so that commands to every shard are refused while it is open; by default
+     * each shard has its own breaker, so that an unhealthy shard does not make the others unavailable
+     *
+     * @param circuitBreaker the breaker shared by the shards, or null to always send commands
+     */
+    @Override
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        super.setCircuitBreaker(circuitBreaker);
+        ring.shards().values().forEach(s -> s.setCircuitBreaker(circuitBreaker));
+    }
+
+    /**
+     * @return the breaker shared by all shards, or null if each shard has its own (or none)
+     */
+    @Override
+    public CircuitBreaker circuitBreaker() {
+        return super.circuitBreaker();
+    }
+
+    @Override
+    long startSession(URI channel) throws StorageClientException {
+        StorageClient shard = ring.owner(channel.toString());
+        long sessionId = shard.startSession(channel);
+        sessions.put(sessionId, shard);
+        return sessionId;
+    }
+
+    @Override
+    Long renameSession(Long sessionId) throws StorageClientException {
+        StorageClient shard = shardOf(sessionId);
+        Long renamed = shard.renameSession(sessionId);
+        if (renamed != null) {
+            sessions.put(renamed, shard);
+        }
+        return renamed;
+    }
+
+    /**
+     * Query the sessions of the channel from all shards in parallel
+     *
+     * @param channel Channel to retrieve sessions for
+     * @return the session IDs of all shards, in ascending order
+     * @throws StorageClientException if any of the shards cannot be queried; a partial list would hide sessions
+     */
+    @Override
+    List<Long> retrieveSessions(URI channel) throws StorageClientException {
+        TreeSet<Long> all = new TreeSet<>();
+        for (Map.Entry<StorageClient, List<Long>> reply : onAllShards(s -> s.retrieveSessions(channel)).entrySet()) {
+            if (reply.getValue() != null) {
+                reply.getValue().forEach(id -> sessions.put(id, reply.getKey()));
+                all.addAll(reply.getValue());
+            }
+        }
+        return new ArrayList<>(all);
+    }
+
+    /**
+     * Query the sessions connected to the given one from all shards in parallel (connected sessions may live on
+     * another shard after shards were added or removed)
+     *
+     * @param sessionId session ID to retrieve sessions for
+     * @return the connected sessions found on each shard
+     * @throws StorageClientException if any of the shards cannot be queried; a partial list would hide sessions
+     */
+    @Override
+    List<List<Long>> retrieveSessions(long sessionId) throws StorageClientException {
+        List<List<Long>> all = new ArrayList<>();
+        Map<StorageClient, List<List<Long>>> replies = onAllShards(s -> s.retrieveSessions(sessionId));
+        for (Map.Entry<StorageClient, List<List<Long>>> reply : replies.entrySet()) {
+            if (reply.getValue() != null) {
+                reply.getValue().forEach(ids -> ids.forEach(id -> sessions.put(id, reply.getKey())));
+                all.addAll(reply.getValue());
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Tag the messages on the shards they were retrieved from; messages not retrieved through this client are tagged
+     * on all shards
+     */
+    @Override
+    int tag(Collection<Long> messageIds, Collection<String> tags) throws StorageClientException {
+        Map<StorageClient, List<Long>> byShard = new HashMap<>();
+        List<Long> unknown = new ArrayList<>();
+        for (Long id : messageIds) {
+            StorageClient shard = messages.get(id);
+            if (shard != null) {
+                byShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(id);
+            } else {
+                unknown.add(id);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            LOGGER.debug("Tagging {} messages of unknown shards on all shards", unknown.size());
+            ring.shards().values().forEach(s -> byShard.computeIfAbsent(s, k -> new ArrayList<>()).addAll(unknown));
+        }
+
+        int tagged = 0;
+        for (Map.Entry<StorageClient, List<Long>> shard : byShard.entrySet()) {
+            Integer count = shard.getKey().tag(shard.getValue(), tags);
+            tagged += count == null ? 0 : count;
+            shard.getValue().forEach(messages::remove);
+        }
+        return tagged;
+    }
+
+    @Override
+    Integer sessionSize(long sessionId) throws StorageClientException {
+        return shardOf(sessionId).sessionSize(sessionId);
+    }
+
+    @Override
+    List<PersistentMessage> retrieveMessages(long sessionId, int maxWaitSeconds)
+            throws StorageClientException, InterruptedException {
+        StorageClient shard = shardOf(sessionId);
+        return learn(shard, shard.retrieveMessages(sessionId, maxWaitSeconds));
+    }
+
+    @Override
+    List<PersistentMessage> retrieveHeaders(long sessionId, int maxWaitSeconds)
+            throws StorageClientException, InterruptedException {
+        StorageClient shard = shardOf(sessionId);
+        return learn(shard, shard.retrieveHeaders(sessionId, maxWaitSeconds));
+    }
+
+    @Override
+    List<PersistentMessage> retrievePage(long sessionId, int skip, int limit, int maxWaitSeconds)
+            throws StorageClientException, InterruptedException {
+        StorageClient shard = shardOf(sessionId);
+        return learn(shard, shard.retrievePage(sessionId, skip, limit, maxWaitSeconds));
+    }
+
+    @Override
+    List<PersistentMessage> retrieveHeaderPage(long sessionId, int skip, int limit, int maxWaitSeconds)
+            throws StorageClientException, InterruptedException {
+        StorageClient shard = shardOf(sessionId);
+        return learn(shard, shard.retrieveHeaderPage(sessionId, skip, limit, maxWaitSeconds));
+    }
+
+    @Override
+    List<PersistentMessage> retrieveQuery(long sessionId, ItemQuery query, int maxWaitSeconds)
+            throws StorageClientException, InterruptedException {
+        StorageClient shard = shardOf(sessionId);
+        return learn(shard, shard.retrieveQuery(sessionId, query, maxWaitSeconds));
+    }
+
+    private List<PersistentMessage> learn(StorageClient shard, List<PersistentMessage> retrieved) {
+        if (retrieved != null) {
+            retrieved.forEach(m -> messages.put(m.getId(), shard));
+        }
+        return retrieved;
+    }
+
+    /**
+     * @param sessionId the session identifier
+     * @return the shard holding the session; unknown sessions are looked up on every shard
+     * @throws StorageClientException if no shard knows the session
+     */
+    private StorageClient shardOf(long sessionId) throws StorageClientException {
+        StorageClient known = sessions.get(sessionId);
+        if (known != null)
+            return known;
+
+        for (Map.Entry<String, StorageClient> shard : ring.shards().entrySet()) {
+            try {
+                List<List<Long>> connected = shard.getValue().retrieveSessions(sessionId);
+                if (connected != null && !connected.isEmpty()) {
+                    sessions.put(sessionId, shard.getValue());
+                    return shard.getValue();
+                }
+            } catch (DeadlineExceededException e) {
+                throw e;
+            } catch (StorageClientException e) {
+                LOGGER.warn("Unable to look up session {} on shard {}", sessionId, shard.getKey(), e);
+            }
+        }
+        throw new StorageClientException("No storage shard holds session " + sessionId);
+    }
+
+    /**
+     * Send a command to all shards in parallel and wait for all their replies; the commands run under the caller's
+     * {@link Deadline}, if any, and the wait ends when it passes
+     *
+     * @param command the command to send to a shard
+     * @return the reply of each shard
+     * @throws StorageClientException if any of the shards fails
+     */
+    private <R> Map<StorageClient, R> onAllShards(ShardCommand<R> command) throws StorageClientException {
+        Deadline deadline = Deadline.current();
+        Map<StorageClient, CompletableFuture<R>> replies = new HashMap<>();
+        for (StorageClient shard : ring.shards().values()) {
+            replies.put(shard, CompletableFuture.supplyAsync(() -> {
+                Deadline.Scope scope = deadline == null ? null : deadline.enter();
+                try {
+                    return command.send(shard);
+                } catch (StorageClientException e) {
+                    throw new CompletionException(e);
+                } finally {
+                    if (scope != null) {
+                        scope.close();
+                    }
+                }
+            }, fanOut));
+        }
+
+        Map<StorageClient, R> results = new HashMap<>();
+        for (Map.Entry<StorageClient, CompletableFuture<R>> reply : replies.entrySet()) {
+            results.put(reply.getKey(), await(reply.getValue(), deadline));
+        }
+        return results;
+    }
+
+    private static <R> R await(CompletableFuture<R> reply, Deadline deadline) throws StorageClientException {
+        try {
+            if (deadline == null)
+                return reply.get();
+            return reply.get(deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageClientException("Interrupted while querying the storage shards", e);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException("Deadline passed while querying the storage shards");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StorageUnavailableException)
+                throw (StorageUnavailableException) e.getCause();
+            if (e.getCause() instanceof DeadlineExceededException)
+                throw (DeadlineExceededException) e.getCause();
+            throw new StorageClientException("Unable to query all storage shards", e);
+        }
+    }
+
+    /**
+     * A command sent to a single shard
+     */
+    @FunctionalInterface
+    private interface ShardCommand<R> {
+        R send(StorageClient shard) throws StorageClientException;
+    }
+}
@@ -16,10 +16,13 @@
 
 package com.intel.icecp.bundle.messages;
 
+import com.intel.icecp.bundle.Deadline;
+import com.intel.icecp.bundle.ItemQuery;
 import com.intel.icecp.core.Channel;
 import com.intel.icecp.core.attributes.Attributes;
 import com.intel.icecp.core.channels.Token;
 import com.intel.icecp.core.management.Channels;
+import com.intel.icecp.core.messages.BytesMessage;
 import com.intel.icecp.core.metadata.Persistence;
 import com.intel.icecp.core.misc.ChannelIOException;
 import com.intel.icecp.core.misc.ChannelLifetimeException;
@@ -35,10 +38,12 @@ import org.apache.logging.log4j.Logger;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
@@ -55,9 +60,25 @@ public class StorageClient {
     private static final URI BASE_RETRIEVAL_URI = URI.create("ndn:/intel/bundle/retrieve");
     private static final String COMMAND_CHANNEL_NAME = "ndn:/intel/storage/command";
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final String REPLAY_COMPRESSION = "deflate";
+    private static final int TAG_COMPRESSION_MIN_IDS = 1000;
+    private static final int INITIAL_CONCURRENCY_LIMIT = 16;
+    private static final int MAX_CONCURRENCY_LIMIT = 256;
+    private static final int MAX_QUEUED_COMMANDS = 1024;
+    private static final int BREAKER_WINDOW_SIZE = 20;
+    private static final int BREAKER_MINIMUM_CALLS = 5;
+    private static final double BREAKER_FAILURE_RATE = 0.5;
+    private static final double BREAKER_SLOW_CALL_RATE = 0.8;
+    private static final long BREAKER_OPEN_DURATION_MS = 30000;
     private final RpcClient client;
     private final int timeoutMs;
     private Channels channels;
+    private volatile boolean framedReplay = false;
+    private volatile boolean replayCompression = false;
+    private volatile boolean tagCompression = false;
+    private final CompressionStats compressionStats = new CompressionStats();
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+    private volatile CircuitBreaker circuitBreaker;
 
     /**
      * Constructor
@@ -68,7 +89,34 @@ public class StorageClient {
     public StorageClient(Channels channels, int timeoutMs) {
         // TODO: STORAGE_COMMAND_CHANNEL: Need to get the URI storageModuleUri from the storage module somehow.
         // For now we will use a global command channel.
-        this(Rpc.newClient(channels, URI.create(COMMAND_CHANNEL_NAME)), timeoutMs);
+        this(channels, URI.create(COMMAND_CHANNEL_NAME), timeoutMs);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param channels the channels to use for connecting to the storage module
+     * @param commandChannel the command channel of the storage module, e.g. one of several shards (see {@link
+     * ShardedStorageClient})
+     * @param timeoutMs timeout for calls to remote module
+     */
+    public StorageClient(Channels channels, URI commandChannel, int timeoutMs) {
+        this(Rpc.newClient(channels, commandChannel), timeoutMs);
+        this.channels = channels;
+    }
+
+    /**
+     * Constructor; commands are balanced over a pool of RPC clients (see {@link RpcClientPool}) so that concurrent
+     * commands, e.g. from the syncs and commits of many batches, do not queue behind each other on one client
+     *
+     * @param channels the channels to use for connecting to the storage module
+     * @param commandChannel the command channel of the storage module
+     * @param rpcClients the number of RPC clients to the command channel
+     * @param timeoutMs timeout for calls to remote module
+     */
+    public StorageClient(Channels channels, URI commandChannel, int rpcClients, int timeoutMs) {
+        this(rpcClients > 1 ? new RpcClientPool(channels, commandChannel, rpcClients)
+                : Rpc.newClient(channels, commandChannel), timeoutMs);
         this.channels = channels;
     }
 
@@ -81,31 +129,202 @@ public class StorageClient {
     public StorageClient(RpcClient client, int timeoutMs) {
         this.client = client;
         this.timeoutMs = timeoutMs;
+        this.concurrencyLimiter = new ConcurrencyLimiter(INITIAL_CONCURRENCY_LIMIT, 1, MAX_CONCURRENCY_LIMIT,
+                MAX_QUEUED_COMMANDS, Math.max(1, timeoutMs / 2));
+        this.circuitBreaker = new CircuitBreaker(BREAKER_WINDOW_SIZE, BREAKER_MINIMUM_CALLS, BREAKER_FAILURE_RATE,
+                BREAKER_SLOW_CALL_RATE, Math.max(1, timeoutMs / 2), BREAKER_OPEN_DURATION_MS, 1);
+    }
+
+    /**
+     * @return the channels used to reach the storage module, or null if this client was built from an RPC client
+     */
+    Channels getChannels() {
+        return channels;
+    }
+
+    /**
+     * Ask the storage module to replay messages in {@link PersistentMessageFrame}s, many messages per publish, on an
+     * additional replay channel; storage modules that do not support frames ignore the request and keep replaying
+     * one message per publish on the regular replay channel, so this is safe to enable with any storage module.
+     *
+     * @param framedReplay true to request framed replay
+     */
+    public void setFramedReplay(boolean framedReplay) {
+        this.framedReplay = framedReplay;
+    }
+
+    /**
+     * Ask the storage module to compress replay frames (see {@link PersistentMessageFrame#encode(List,
+     * CompressionStats)}); this only applies to framed replay and, like it, is ignored by storage modules that do not
+     * support it
+     *
+     * @param replayCompression true to request compressed frames
+     */
+    public void setReplayCompression(boolean replayCompression) {
+        this.replayCompression = replayCompression;
+    }
+
+    /**
+     * Send the IDs of large tag requests compressed (see {@link CompressedIds}) when they compress well; unlike
+     * replay compression this is not negotiated, so only enable it with storage modules that accept compressed IDs
+     *
+     * @param tagCompression true to compress large tag requests
+     */
+    public void setTagCompression(boolean tagCompression) {
+        this.tagCompression = tagCompression;
+    }
+
+    /**
+     * Limit the number of commands outstanding at the storage module (see {@link ConcurrencyLimiter}); commands beyond
+     * the limit wait up to the call timeout and then fail. By default the limit starts at {@value
+     * #INITIAL_CONCURRENCY_LIMIT} and treats commands slower than half the call timeout as a sign of overload.
+     *
+     * @param concurrencyLimiter the limiter, or null to send commands without limit
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * @return the limiter of outstanding commands, with its current limit and queue depth, or null if unlimited
+     */
+    public ConcurrencyLimiter concurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Refuse commands right away while the storage module is unhealthy (see {@link CircuitBreaker}); refused commands
+     * fail with a {@link StorageUnavailableException} before waiting for anything. By default the breaker opens when
+     * half of the last {@value #BREAKER_WINDOW_SIZE} commands failed or most were slower than half the call timeout,
+     * and probes the storage module again after {@value #BREAKER_OPEN_DURATION_MS} ms.
+     *
+     * @param circuitBreaker the breaker, or null to always send commands
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return the circuit breaker guarding the storage module, or null if commands are always sent
+     */
+    public CircuitBreaker circuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return the compression ratio and cost of the replay frames received and tag requests sent by this client
+     */
+    public CompressionStats compressionStats() {
+        return compressionStats;
     }
 
-    @SuppressWarnings("unchecked")
     <T> T executeRemoteCommand(RpcClient client, Commands commandName, Token<T> expectedOutput, Object... inputs)
             throws StorageClientException {
-        LOGGER.info("Executing command {}, expecting response of {}", commandName, expectedOutput);
-        CompletableFuture<CommandResponse> future;
-
-        // TODO: remove this once RPC client is fixed
+        Deadline deadline = Deadline.current();
+        checkDeadline(deadline, commandName);
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null && !breaker.tryAcquire())
+            throw new StorageUnavailableException("Storage module unavailable, not sending " + commandName);
+
+        boolean sent = false;
+        long start = 0;
+        boolean succeeded = false;
+        boolean abandoned = false;
         try {
-            Thread.sleep(3000);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new StorageClientException("Could not complete command", e);
+            LOGGER.info("Executing command {}, expecting response of {}", commandName, expectedOutput);
+
+            // TODO: remove this once RPC client is fixed
+            try {
+                if (deadline == null) {
+                    Thread.sleep(3000);
+                } else {
+                    deadline.awaitCancellation(3000, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageClientException("Could not complete command", e);
+            }
+            checkDeadline(deadline, commandName);
+
+            ConcurrencyLimiter limiter = concurrencyLimiter;
+            acquire(limiter, commandName, deadline);
+            sent = true;
+            start = System.nanoTime();
+            try {
+                T out = call(client, commandName, expectedOutput, deadline, inputs);
+                succeeded = true;
+                return out;
+            } catch (ResponseTypeException e) {
+                succeeded = true;
+                throw e;
+            } catch (DeadlineExceededException e) {
+                // the storage module was not given the time to answer, this says nothing about its health
+                abandoned = true;
+                throw e;
+            } finally {
+                if (limiter != null) {
+                    limiter.release(System.nanoTime() - start, succeeded || abandoned);
+                }
+            }
+        } finally {
+            if (breaker != null) {
+                if (sent && !abandoned) {
+                    breaker.record(System.nanoTime() - start, succeeded);
+                } else {
+                    breaker.abandon();
+                }
+            }
         }
+    }
 
-        future = client.call(CommandRequest.from(commandName.name(), inputs));
+    @SuppressWarnings("unchecked")
+    private <T> T call(RpcClient client, Commands commandName, Token<T> expectedOutput, Deadline deadline,
+                       Object... inputs) throws StorageClientException {
+        CompletableFuture<CommandResponse> future = client.call(CommandRequest.from(commandName.name(), inputs));
+        long waitMs = deadline == null ? timeoutMs : deadline.clamp(timeoutMs, TimeUnit.MILLISECONDS);
+        Deadline.Scope cancelling = deadline == null ? null : deadline.onCancel(() -> future.cancel(true));
         try {
-            CommandResponse response = future.get(timeoutMs, TimeUnit.MILLISECONDS);
+            CommandResponse response = future.get(waitMs, TimeUnit.MILLISECONDS);
             if (expectedOutput != null && !(expectedOutput.isAssignableFrom(response.out.getClass()))) {
-                throw new StorageClientException("Response was not of the expected type: " + expectedOutput);
+                throw new ResponseTypeException("Response was not of the expected type: " + expectedOutput);
             }
             return (T) response.out;
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+        } catch (InterruptedException | TimeoutException | CancellationException e) {
+            // let the client know the response is no longer awaited (e.g. a pool counts it as a failure)
+            future.cancel(true);
+            checkDeadline(deadline, commandName);
+            throw new StorageClientException(e);
+        } catch (ExecutionException e) {
             throw new StorageClientException(e);
+        } finally {
+            if (cancelling != null) {
+                cancelling.close();
+            }
+        }
+    }
+
+    private void acquire(ConcurrencyLimiter limiter, Commands commandName, Deadline deadline)
+            throws StorageClientException {
+        if (limiter == null)
+            return;
+
+        try {
+            long waitMs = deadline == null ? timeoutMs : deadline.clamp(timeoutMs, TimeUnit.MILLISECONDS);
+            if (!limiter.acquire(waitMs, TimeUnit.MILLISECONDS)) {
+                checkDeadline(deadline, commandName);
+                throw new StorageClientException("Too many outstanding storage commands, rejected " + commandName
+                        + ": " + limiter);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageClientException("Interrupted while waiting to send " + commandName, e);
+        }
+    }
+
+    private static void checkDeadline(Deadline deadline, Object operation) throws DeadlineExceededException {
+        if (deadline != null && deadline.isDone()) {
+            throw new DeadlineExceededException((deadline.isCancelled() ? "Cancelled" : "Deadline exceeded")
+                    + " before completing " + operation);
         }
     }
 
@@ -184,7 +403,13 @@ public class StorageClient {
      */
     int tag(Collection<Long> messageIds, Collection<String> tags) throws StorageClientException {
         StorageCommandMap map = new StorageCommandMap();
-        map.addEntry(StorageCommandMap.IDS_KEY_NAME, messageIds);
+        byte[] compressedIds = tagCompression && messageIds.size() >= TAG_COMPRESSION_MIN_IDS
+                ? CompressedIds.encode(messageIds, compressionStats) : null;
+        if (compressedIds != null) {
+            map.addEntry(StorageCommandMap.COMPRESSED_IDS_KEY_NAME, compressedIds);
+        } else {
+            map.addEntry(StorageCommandMap.IDS_KEY_NAME, messageIds);
+        }
         map.addEntry(StorageCommandMap.TAGS_KEY_NAME, tags);
         return executeRemoteCommand(client, Commands.tag, new Token<Integer>() {
         }, map.getStorageInputMap());
@@ -217,30 +442,164 @@ public class StorageClient {
     List<PersistentMessage> retrieveMessages(long sessionId, int maxWaitSeconds)
             throws StorageClientException, InterruptedException {
         Integer sessionSize = sessionSize(sessionId);
-        MessageCollector collector = new MessageCollector(sessionSize);
-        long timeoutTime = 5000L * sessionSize;
+        return retrieveMessages(sessionId, 0, sessionSize, false, maxWaitSeconds);
+    }
+
+    /**
+     * Retrieve only the headers (ID and timestamp) of the messages for a session ID; the returned messages will have
+     * no content unless the storage module ignores the request to exclude it.
+     *
+     * @param sessionId session identifier to retrieve message headers for
+     * @param maxWaitSeconds max wait time until
+     * @return list of message headers related to the session ID, sorted by ID
+     * @throws StorageClientException Unable to communicate with the storage mechanism
+     * @throws InterruptedException Did not receive all messages in the max wait time
+     */
+    List<PersistentMessage> retrieveHeaders(long sessionId, int maxWaitSeconds)
+            throws StorageClientException, InterruptedException {
+        Integer sessionSize = sessionSize(sessionId);
+        return retrieveMessages(sessionId, 0, sessionSize, true, maxWaitSeconds);
+    }
+
+    /**
+     * Retrieve a page of messages (with content) for a session ID
+     *
+     * @param sessionId session identifier to retrieve messages for
+     * @param skip the number of messages to skip, in ID order
+     * @param limit the maximum number of messages to retrieve
+     * @param maxWaitSeconds max wait time until
+     * @return list of messages in the page, sorted by ID
+     * @throws StorageClientException Unable to communicate with the storage mechanism
+     * @throws InterruptedException Did not receive all messages in the max wait time
+     */
+    List<PersistentMessage> retrievePage(long sessionId, int skip, int limit, int maxWaitSeconds)
+            throws StorageClientException, InterruptedException {
+        return retrieveMessages(sessionId, skip, limit, false, maxWaitSeconds);
+    }
+
+    /**
+     * Retrieve a page of message headers (ID and timestamp) for a session ID
+     *
+     * @param sessionId session identifier to retrieve message headers for
+     * @param skip the number of messages to skip, in ID order
+     * @param limit the maximum number of messages to retrieve
+     * @param maxWaitSeconds max wait time until
+     * @return list of message headers in the page, sorted by ID
+     * @throws StorageClientException Unable to communicate with the storage mechanism
+     * @throws InterruptedException Did not receive all messages in the max wait time
+     */
+    List<PersistentMessage> retrieveHeaderPage(long sessionId, int skip, int limit, int maxWaitSeconds)
+            throws StorageClientException, InterruptedException {
+        return retrieveMessages(sessionId, skip, limit, true, maxWaitSeconds);
+    }
+
+    /**
+     * Retrieve the messages of a session matching a query. The query is pushed down to the storage module; a storage
+     * module that supports it acknowledges the filters by answering with a map listing the filter keys it applied
+     * (under {@value StorageCommandMap#APPLIED_FILTERS_KEY_NAME}) and the number of messages it replays (under {@value
+     * StorageCommandMap#MATCHED_COUNT_KEY_NAME}). If the filters are not acknowledged and the query has a limit, all the
+     * messages of the session are retrieved instead so that the caller can filter them locally; tags cannot be checked
+     * locally, so a query with tag filters fails unless the storage module acknowledges them.
+     *
+     * @param sessionId session identifier to retrieve messages for
+     * @param query the restrictions on the messages to retrieve
+     * @param maxWaitSeconds max wait time until
+     * @return the retrieved messages, sorted by ID; these may include messages not matching the query
+     * @throws StorageClientException Unable to communicate with the storage mechanism, or the storage module did not
+     * apply the tag filters of the query
+     * @throws InterruptedException Did not receive all messages in the max wait time
+     */
+    List<PersistentMessage> retrieveQuery(long sessionId, ItemQuery query, int maxWaitSeconds)
+            throws StorageClientException, InterruptedException {
+        int size = sessionSize(sessionId);
+        int limit = (int) Math.min(query.limit(), size);
+        Replay replay = replay(sessionId, 0, limit, false, filters(query), maxWaitSeconds);
+        if (!replay.filtered && (!query.includedTags().isEmpty() || !query.excludedTags().isEmpty()))
+            throw new StorageClientException("The storage module did not apply the tag filters of the query");
+        if (!replay.filtered && limit < size) {
+            LOGGER.debug("Storage module ignored the query filters, retrieving all {} messages of session {}", size, sessionId);
+            return retrieveMessages(sessionId, 0, size, false, maxWaitSeconds);
+        }
+        return replay.messages;
+    }
+
+    private static StorageCommandMap filters(ItemQuery query) {
+        StorageCommandMap filters = new StorageCommandMap();
+        if (query.fromTimestamp() != Long.MIN_VALUE)
+            filters.addEntry(StorageCommandMap.FROM_TIMESTAMP_KEY_NAME, query.fromTimestamp());
+        if (query.toTimestamp() != Long.MAX_VALUE)
+            filters.addEntry(StorageCommandMap.TO_TIMESTAMP_KEY_NAME, query.toTimestamp());
+        if (query.fromId() != Long.MIN_VALUE)
+            filters.addEntry(StorageCommandMap.FROM_ID_KEY_NAME, query.fromId());
+        if (query.toId() != Long.MAX_VALUE)
+            filters.addEntry(StorageCommandMap.TO_ID_KEY_NAME, query.toId());
+        if (!query.includedTags().isEmpty())
+            filters.addEntry(StorageCommandMap.INCLUDE_TAGS_KEY_NAME, new ArrayList<>(query.includedTags()));
+        if (!query.excludedTags().isEmpty())
+            filters.addEntry(StorageCommandMap.EXCLUDE_TAGS_KEY_NAME, new ArrayList<>(query.excludedTags()));
+        return filters;
+    }
+
+    private List<PersistentMessage> retrieveMessages(long sessionId, int skip, int limit, boolean excludeContent,
+                                                     int maxWaitSeconds) throws StorageClientException, InterruptedException {
+        return replay(sessionId, skip, limit, excludeContent, null, maxWaitSeconds).messages;
+    }
+
+    private Replay replay(long sessionId, int skip, int limit, boolean excludeContent, StorageCommandMap filters,
+                          int maxWaitSeconds) throws StorageClientException, InterruptedException {
+        Deadline deadline = Deadline.current();
+        MessageCollector collector = new MessageCollector(limit);
+        long timeoutTime = 5000L * limit;
 
         // Create the channel that will be used to receive session messages from
         // the storage module. Keep the
         // Channel unique for each request.
         URI channelURI = ChannelUtils.join(BASE_RETRIEVAL_URI, Long.toString(sessionId), UUID.randomUUID().toString());
+        URI framedChannelURI = framedReplay ? ChannelUtils.join(channelURI, "framed") : null;
 
         try (Channel<PersistentMessage> replayChannel = channels.openChannel(channelURI, PersistentMessage.class,
-                new Persistence(timeoutTime))) {
+                new Persistence(timeoutTime));
+             Channel<BytesMessage> framedReplayChannel = framedReplay ? channels.openChannel(framedChannelURI,
+                     BytesMessage.class, new Persistence(timeoutTime)) : null) {
             replayChannel.subscribe(collector);
+            if (framedReplayChannel != null) {
+                framedReplayChannel.subscribe(new FrameCollector(collector));
+            }
 
             StorageCommandMap getInputMap = new StorageCommandMap();
             getInputMap.addEntry(StorageCommandMap.SESSION_ID_KEY_NAME, sessionId);
-            getInputMap.addEntry(StorageCommandMap.LIMIT_KEY_NAME, sessionSize);
-            getInputMap.addEntry(StorageCommandMap.SKIP_KEY_NAME, 0);
+            getInputMap.addEntry(StorageCommandMap.LIMIT_KEY_NAME, limit);
+            getInputMap.addEntry(StorageCommandMap.SKIP_KEY_NAME, skip);
             getInputMap.addEntry(StorageCommandMap.REPLAY_CHANNEL_KEY_NAME, channelURI.toString());
+            if (excludeContent) {
+                getInputMap.addEntry(StorageCommandMap.EXCLUDE_CONTENT_KEY_NAME, true);
+            }
+            if (framedChannelURI != null) {
+                getInputMap.addEntry(StorageCommandMap.FRAMED_REPLAY_CHANNEL_KEY_NAME, framedChannelURI.toString());
+                if (replayCompression) {
+                    getInputMap.addEntry(StorageCommandMap.REPLAY_COMPRESSION_KEY_NAME, REPLAY_COMPRESSION);
+                }
+            }
+
+            if (filters != null) {
+                getInputMap.getStorageInputMap().putAll(filters.getStorageInputMap());
+            }
 
-            executeRemoteCommand(client, Commands.get, null, getInputMap.getStorageInputMap());
+            Object response = executeRemoteCommand(client, Commands.get, null, getInputMap.getStorageInputMap());
+            Long matched = filters == null || filters.getStorageInputMap().isEmpty() ? null
+                    : acknowledgedMatches(response, filters.getStorageInputMap().keySet());
+            boolean filtered = matched != null;
+            if (filtered) {
+                // fewer messages than the limit may match: stop waiting for the ones that will not come
+                for (long missing = limit - Math.max(0, Math.min(matched, limit)); missing > 0; missing--) {
+                    collector.getCountdown().countDown();
+                }
+            }
 
-            if (collector.getCountdown().await(maxWaitSeconds, TimeUnit.SECONDS)) {
-                List<PersistentMessage> getList = collector.getMessageList();
+            if (awaitReplay(collector.getCountdown(), maxWaitSeconds, deadline)) {
+                List<PersistentMessage> getList = new ArrayList<>(collector.getMessageList());
                 getList.sort((PersistentMessage m1, PersistentMessage m2) -> Long.compare(m1.getId(), m2.getId()));
-                return getList;
+                return new Replay(getList, filtered);
             } else {
                 LOGGER.error("unable to retrieve messages");
                 throw new StorageClientException("unable to retrieve messages");
@@ -254,17 +613,88 @@ public class StorageClient {
         }
     }
 
+    /**
+     * @param response the answer of the storage module to a filtered get command
+     * @param requested the keys of the filters sent
+     * @return the number of messages matching the filters if the storage module acknowledged applying all of them,
+     * null otherwise
+     */
+    private static Long acknowledgedMatches(Object response, Collection<String> requested) {
+        if (!(response instanceof Map))
+            return null;
+
+        Object applied = ((Map<?, ?>) response).get(StorageCommandMap.APPLIED_FILTERS_KEY_NAME);
+        Object matched = ((Map<?, ?>) response).get(StorageCommandMap.MATCHED_COUNT_KEY_NAME);
+        if (!(applied instanceof Collection) || !((Collection<?>) applied).containsAll(requested)
+                || !(matched instanceof Number))
+            return null;
+        return ((Number) matched).longValue();
+    }
+
+    /**
+     * Wait for the replayed messages, at most until the deadline; cancelling the deadline stops the wait right away
+     * and the replay channels are closed by the caller
+     *
+     * @return true if all messages were received, false if the wait timed out
+     * @throws DeadlineExceededException if the deadline passed or was cancelled first
+     */
+    private static boolean awaitReplay(CountDownLatch countdown, int maxWaitSeconds, Deadline deadline)
+            throws InterruptedException, DeadlineExceededException {
+        if (deadline == null)
+            return countdown.await(maxWaitSeconds, TimeUnit.SECONDS);
+
+        boolean received;
+        Deadline.Scope cancelling = deadline.onCancel(() -> {
+            while (countdown.getCount() > 0) {
+                countdown.countDown();
+            }
+        });
+        try {
+            received = countdown.await(deadline.clamp(maxWaitSeconds * 1000L, TimeUnit.MILLISECONDS),
+                    TimeUnit.MILLISECONDS);
+        } finally {
+            cancelling.close();
+        }
+        if (deadline.isCancelled() || (!received && deadline.isExpired()))
+            checkDeadline(deadline, "the replay");
+        return received;
+    }
+
+    /**
+     * The messages of a replay and whether the storage module applied the requested filters
+     */
+    private static class Replay {
+        private final List<PersistentMessage> messages;
+        private final boolean filtered;
+
+        Replay(List<PersistentMessage> messages, boolean filtered) {
+            this.messages = messages;
+            this.filtered = filtered;
+        }
+    }
+
+    /**
+     * A response of an unexpected type: the storage module answered, so this does not count against its health
+     */
+    private static class ResponseTypeException extends StorageClientException {
+        private static final long serialVersionUID = 1L;
+
+        ResponseTypeException(String message) {
+            super(message);
+        }
+    }
+
     enum Commands {
         queryByChannelName, queryBySessionId, rename, size, get, start, tag
     }
 
     private class MessageCollector implements OnPublish<PersistentMessage> {
         private final CountDownLatch countdown;
-        private final ArrayList<PersistentMessage> messageList;
+        private final List<PersistentMessage> messageList;
 
         MessageCollector(int expectedCount) {
             this.countdown = new CountDownLatch(expectedCount);
-            this.messageList = new ArrayList<>();
+            this.messageList = Collections.synchronizedList(new ArrayList<>());
         }
 
         CountDownLatch getCountdown() {
@@ -286,4 +716,29 @@ public class StorageClient {
             return messageList;
         }
     }
+
+    /**
+     * Decode the frames received on the framed replay channel into the messages of a {@link MessageCollector}
+     */
+    private class FrameCollector implements OnPublish<BytesMessage> {
+        private final MessageCollector messages;
+
+        FrameCollector(MessageCollector messages) {
+            this.messages = messages;
+        }
+
+        @Override
+        public void onPublish(BytesMessage frame) {
+            onPublish(frame, null);
+        }
+
+        @Override
+        public void onPublish(BytesMessage frame, Attributes attributes) {
+            try {
+                PersistentMessageFrame.decode(frame.getBytes(), compressionStats).forEach(messages::onPublish);
+            } catch (IllegalArgumentException e) {
+                LOGGER.error("Dropping an invalid message frame", e);
+            }
+        }
+    }
 }
@@ -32,6 +32,18 @@ class StorageCommandMap {
     static final String QUERY_CHANNEL_KEY_NAME = "queryChannel";
     static final String IDS_KEY_NAME = "ids";
     static final String TAGS_KEY_NAME = "tags";
+    static final String EXCLUDE_CONTENT_KEY_NAME = "excludeContent";
+    static final String FRAMED_REPLAY_CHANNEL_KEY_NAME = "framedReplayChannel";
+    static final String REPLAY_COMPRESSION_KEY_NAME = "replayCompression";
+    static final String COMPRESSED_IDS_KEY_NAME = "compressedIds";
+    static final String FROM_TIMESTAMP_KEY_NAME = "fromTimestamp";
+    static final String TO_TIMESTAMP_KEY_NAME = "toTimestamp";
+    static final String FROM_ID_KEY_NAME = "fromId";
+    static final String TO_ID_KEY_NAME = "toId";
+    static final String INCLUDE_TAGS_KEY_NAME = "includeTags";
+    static final String EXCLUDE_TAGS_KEY_NAME = "excludeTags";
+    static final String APPLIED_FILTERS_KEY_NAME = "appliedFilters";
+    static final String MATCHED_COUNT_KEY_NAME = "matchedCount";
 
     /**
      * Add a new parameter entry to the map
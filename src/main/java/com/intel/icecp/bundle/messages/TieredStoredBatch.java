@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import com.intel.icecp.bundle.StoredBatch;
+import com.intel.icecp.bundle.StoredItem;
+import com.intel.icecp.core.messages.BytesMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+
+/**
+ * A batch of a {@link TieredStoredBundle}: the messages of a storage module session mirrored in one batch of the
+ * local tier. A session imported in several rounds is mirrored by several batches with the same ID.
+ *
+ */
+class TieredStoredBatch implements StoredBatch<BytesMessage> {
+    private final TieredStoredBundle bundle;
+    private final long sessionId;
+    private final StoredBatch<BytesMessage> local;
+    private final List<StoredItem<BytesMessage>> items = new ArrayList<>();
+
+    TieredStoredBatch(TieredStoredBundle bundle, long sessionId, StoredBatch<BytesMessage> local) {
+        this.bundle = bundle;
+        this.sessionId = sessionId;
+        this.local = local;
+    }
+
+    synchronized void add(TieredStoredItem item) {
+        items.add(item);
+    }
+
+    StoredBatch<BytesMessage> local() {
+        return local;
+    }
+
+    @Override
+    public long id() {
+        return sessionId;
+    }
+
+    @Override
+    public synchronized boolean hasChildren() {
+        return !items.isEmpty();
+    }
+
+    @Override
+    public synchronized Iterable<StoredItem<BytesMessage>> children() {
+        return Collections.unmodifiableList(new ArrayList<>(items));
+    }
+
+    @Override
+    public synchronized Spliterator<StoredItem<BytesMessage>> spliterator() {
+        return Spliterators.spliterator(items.toArray(), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    @Override
+    public void markFinished() {
+        stream().forEach(StoredItem::markFinished);
+        commit();
+    }
+
+    @Override
+    public boolean isFinished() {
+        return stream().allMatch(i -> ((TieredStoredItem) i).isCommitted());
+    }
+
+    @Override
+    public void commit() {
+        List<Long> finished = stream().filter(i -> i.isFinished() && !((TieredStoredItem) i).isCommitted())
+                .map(StoredItem::id).collect(Collectors.toList());
+        bundle.commit(finished);
+    }
+
+    @Override
+    public void commit(Collection<Long> itemIds) {
+        bundle.commit(itemIds);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import com.intel.icecp.bundle.StoredBatch;
+import com.intel.icecp.bundle.StoredBundle;
+import com.intel.icecp.bundle.StoredItem;
+import com.intel.icecp.bundle.local.LocalStoredBundle;
+import com.intel.icecp.core.messages.BytesMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * A bundle that keeps a local tier (two {@link LocalStoredBundle}s) in front of the storage module so that processing
+ * can go on through storage module outages. A background replicator periodically:
+ * <ul>
+ * <li>publishes the items added to the bundle, which are first written to a local outbox, to the listen channel and
+ * removes them from the outbox once published (at least once: items published right before a crash are published
+ * again after a restart)</li>
+ * <li>imports the messages of the storage module sessions into a local mirror</li>
+ * </ul>
+ * Batches and items are always served from the mirror and keep the session and message IDs of the storage module.
+ * Commits are durable locally right away and are tagged in the storage module in the background through a {@link
+ * CommitJournal}; the retrieved sessions are updated as well, so that committed messages are not imported again.
+ * Items added to this bundle are only served once they have been stored by the storage module and imported back.
+ * Batches are created (see {@link #newBatch()}) directly in the storage module.
+ *
+ */
+public class TieredStoredBundle implements StoredBundle<BytesMessage>, AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private final MessageBundle remote;
+    private final LocalStoredBundle mirror;
+    private final LocalStoredBundle outbox;
+    private final ScheduledExecutorService replicator;
+    private final AtomicBoolean replicationPending = new AtomicBoolean(false);
+    private final Map<Long, TieredStoredBatch> batches = new LinkedHashMap<>();
+    private final Map<Long, TieredStoredItem> items = new HashMap<>();
+    private final Set<Long> publishing = ConcurrentHashMap.newKeySet();
+    private final Queue<Long> published = new ConcurrentLinkedQueue<>();
+    private final CommitJournal journal;
+    private final Object replicationLock = new Object();
+
+    /**
+     * Constructor; opens (or creates) the local tier in the given directory and starts replicating
+     *
+     * @param storage Supplies storage features
+     * @param listenChannel the channel stored by the storage module
+     * @param directory the directory of the local tier
+     * @param replicationIntervalMs the time between two replication rounds
+     * @throws IOException if the local tier cannot be opened
+     */
+    public TieredStoredBundle(StorageClient storage, URI listenChannel, Path directory, long replicationIntervalMs)
+            throws IOException {
+        Files.createDirectories(directory);
+        this.journal = new CommitJournal(storage, directory.resolve("commits.journal"), replicationIntervalMs);
+        this.remote = new MessageBundle(storage, listenChannel, RetrievalMode.EAGER, journal);
+        this.mirror = new LocalStoredBundle(directory.resolve("mirror"));
+        this.outbox = new LocalStoredBundle(directory.resolve("outbox"));
+        load();
+        this.replicator = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tiered-bundle-replicator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replicator.scheduleWithFixedDelay(this::replicateQuietly, 0, replicationIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a new session in the storage module; items added afterwards are published to it once replicated
+     *
+     * @return the new (remote) batch, or null if the storage module is unavailable
+     */
+    @Override
+    public StoredBatch<BytesMessage> newBatch() {
+        return remote.newBatch();
+    }
+
+    /**
+     * Add an item to the local outbox; it is durable after the next {@link #flush()} (at the latest at the next
+     * replication round) and published to the storage module in the background
+     *
+     * @param item the item to add
+     */
+    @Override
+    public void addItem(BytesMessage item) {
+        outbox.addItem(item);
+    }
+
+    /**
+     * Make all added items durable locally
+     */
+    public void flush() {
+        outbox.flush();
+    }
+
+    @Override
+    public synchronized void commit(Collection<Long> itemIds) {
+        List<TieredStoredItem> toCommit = itemIds.stream().map(items::get).filter(i -> i != null && !i.isCommitted())
+                .collect(Collectors.toList());
+        if (toCommit.isEmpty())
+            return;
+
+        // journals the IDs and marks the items of the retrieved sessions committed, so that finished sessions are
+        // dropped and committed messages are not imported again once the mirror and journal forget them
+        remote.commit(toCommit.stream().map(TieredStoredItem::id).collect(Collectors.toList()));
+        mirror.commit(toCommit.stream().map(i -> i.local().id()).collect(Collectors.toList()));
+        toCommit.forEach(TieredStoredItem::setCommitted);
+    }
+
+    @Override
+    public boolean hasChildren() {
+        requestReplication();
+        return !snapshot().isEmpty();
+    }
+
+    /**
+     * @return the mirrored batches; this never waits for the storage module, a replication round is requested instead
+     */
+    @Override
+    public Iterable<StoredBatch<BytesMessage>> children() {
+        requestReplication();
+        return snapshot();
+    }
+
+    /**
+     * @return the mirrored batches; like {@link #children()}, this requests a replication round instead of waiting
+     */
+    @Override
+    public Spliterator<StoredBatch<BytesMessage>> spliterator() {
+        requestReplication();
+        return Spliterators.spliterator(snapshot().toArray(), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    /**
+     * @return the number of added items not yet published to the storage module
+     */
+    public int pendingCount() {
+        return (int) outbox.stream().flatMap(StoredBatch::stream).filter(i -> !i.isFinished()).count();
+    }
+
+    /**
+     * Stop replicating and close the local tier; items not yet published stay in the outbox until the next run
+     *
+     * @throws Exception if the resources cannot be released
+     */
+    @Override
+    public void close() throws Exception {
+        replicator.shutdown();
+        replicator.awaitTermination(1, TimeUnit.MINUTES);
+        remote.close();
+        synchronized (this) {
+            commitPublished();
+            outbox.flush();
+            outbox.close();
+            mirror.close();
+        }
+    }
+
+    /**
+     * Run a replication round: publish the added items and import the sessions of the storage module; each step
+     * gives up (until the next round) if the storage module is unavailable
+     */
+    void replicate() {
+        synchronized (replicationLock) {
+            replicationPending.set(false);
+            publish();
+            importSessions();
+        }
+    }
+
+    private void replicateQuietly() {
+        try {
+            replicate();
+        } catch (RuntimeException e) {
+            LOGGER.error("Replication round failed", e);
+        }
+    }
+
+    private void requestReplication() {
+        if (replicationPending.compareAndSet(false, true)) {
+            try {
+                replicator.execute(this::replicateQuietly);
+            } catch (RuntimeException e) {
+                replicationPending.set(false);
+                LOGGER.debug("Replication not requested, the bundle is closed", e);
+            }
+        }
+    }
+
+    private synchronized List<StoredBatch<BytesMessage>> snapshot() {
+        Set<Long> live = mirror.stream().map(StoredBatch::id).collect(Collectors.toSet());
+        for (Iterator<TieredStoredBatch> i = batches.values().iterator(); i.hasNext(); ) {
+            TieredStoredBatch batch = i.next();
+            if (!live.contains(batch.local().id())) {
+                batch.stream().forEach(item -> items.remove(item.id()));
+                i.remove();
+            }
+        }
+        return batches.values().stream().filter(b -> !b.isFinished()).collect(Collectors.toList());
+    }
+
+    private void publish() {
+        synchronized (this) {
+            commitPublished();
+            outbox.flush();
+        }
+        try {
+            for (StoredItem<BytesMessage> item : outbox.stream().flatMap(StoredBatch::stream)
+                    .filter(i -> !i.isFinished()).collect(Collectors.toList())) {
+                long id = item.id();
+                if (publishing.add(id)) {
+                    try {
+                        remote.addItemAsync(item.value()).whenComplete((v, e) -> {
+                            if (e == null) {
+                                published.add(id);
+                            } else {
+                                LOGGER.warn("Unable to publish item {}, will retry", id, e);
+                            }
+                            publishing.remove(id);
+                        });
+                    } catch (IllegalStateException e) {
+                        publishing.remove(id);
+                        throw e;
+                    }
+                }
+            }
+        } catch (IllegalStateException e) {
+            LOGGER.warn("Unable to publish added items, will retry", e);
+        }
+    }
+
+    private void commitPublished() {
+        List<Long> ids = new ArrayList<>();
+        for (Long id = published.poll(); id != null; id = published.poll()) {
+            ids.add(id);
+        }
+        outbox.commit(ids);
+    }
+
+    private void importSessions() {
+        List<StoredBatch<BytesMessage>> sessions;
+        try {
+            sessions = remote.stream().collect(Collectors.toList());
+        } catch (IllegalStateException e) {
+            LOGGER.warn("Unable to retrieve sessions, will retry", e);
+            return;
+        }
+
+        for (StoredBatch<BytesMessage> session : sessions) {
+            List<BytesMessage> imported = new ArrayList<>();
+            for (StoredItem<BytesMessage> item : session.children()) {
+                if (!item.isFinished() && !isImported(item.id())) {
+                    imported.add(TieredStoredItem.toLocal(session.id(), item));
+                }
+            }
+            if (!imported.isEmpty()) {
+                store(session.id(), imported);
+            }
+        }
+    }
+
+    private synchronized boolean isImported(long id) {
+        return items.containsKey(id) || journal.contains(id);
+    }
+
+    private synchronized void store(long sessionId, List<BytesMessage> imported) {
+        StoredBatch<BytesMessage> local = mirror.newBatch();
+        imported.forEach(mirror::addItem);
+        mirror.flush();
+        local.children().forEach(i -> add(local, TieredStoredItem.from(i)));
+        LOGGER.debug("Imported {} messages of session {}", imported.size(), sessionId);
+    }
+
+    private void add(StoredBatch<BytesMessage> local, TieredStoredItem item) {
+        batches.computeIfAbsent(local.id(), i -> new TieredStoredBatch(this, item.sessionId(), local)).add(item);
+        items.put(item.id(), item);
+    }
+
+    /**
+     * Rebuild the mirrored batches from the local tier; committed items are skipped, their content may be gone
+     */
+    private synchronized void load() {
+        for (StoredBatch<BytesMessage> local : mirror.children()) {
+            for (StoredItem<BytesMessage> localItem : local.children()) {
+                if (!localItem.isFinished()) {
+                    add(local, TieredStoredItem.from(localItem));
+                }
+            }
+        }
+        LOGGER.info("Loaded {} mirrored messages and {} added items to publish", items.size(), pendingCount());
+    }
+}
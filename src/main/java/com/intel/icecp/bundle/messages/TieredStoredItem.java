@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import com.intel.icecp.bundle.StoredItem;
+import com.intel.icecp.core.messages.BytesMessage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An item of a {@link TieredStoredBundle}: a message of the storage module mirrored in the local tier. The local copy
+ * is prefixed with a header holding the session ID, message ID and timestamp of the message in the storage module so
+ * that the mirror can be rebuilt from the local tier alone.
+ *
+ */
+class TieredStoredItem implements StoredItem<BytesMessage> {
+    static final int HEADER_SIZE = 3 * 8;
+    private final StoredItem<BytesMessage> local;
+    private final long sessionId;
+    private final long id;
+    private final long timestamp;
+    private volatile boolean committed = false;
+
+    private TieredStoredItem(StoredItem<BytesMessage> local, long sessionId, long id, long timestamp) {
+        this.local = local;
+        this.sessionId = sessionId;
+        this.id = id;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Wrap an item of the local tier, reading its header
+     *
+     * @param local the local copy of the message
+     * @return the mirrored message
+     */
+    static TieredStoredItem from(StoredItem<BytesMessage> local) {
+        ByteBuffer header = ByteBuffer.wrap(local.value().getBytes(), 0, HEADER_SIZE);
+        return new TieredStoredItem(local, header.getLong(), header.getLong(), header.getLong());
+    }
+
+    /**
+     * Build the local copy of a message of the storage module
+     *
+     * @param sessionId the session of the message
+     * @param message the message, as retrieved from the storage module
+     * @return the content to store in the local tier
+     */
+    static BytesMessage toLocal(long sessionId, StoredItem<BytesMessage> message) {
+        byte[] content = message.value().getBytes();
+        ByteBuffer local = ByteBuffer.allocate(HEADER_SIZE + content.length);
+        local.putLong(sessionId).putLong(message.id()).putLong(message.timestamp()).put(content);
+        return new BytesMessage(local.array());
+    }
+
+    StoredItem<BytesMessage> local() {
+        return local;
+    }
+
+    long sessionId() {
+        return sessionId;
+    }
+
+    boolean isCommitted() {
+        return committed;
+    }
+
+    void setCommitted() {
+        committed = true;
+    }
+
+    @Override
+    public long id() {
+        return id;
+    }
+
+    @Override
+    public long timestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public BytesMessage value() {
+        byte[] bytes = local.value().getBytes();
+        return new BytesMessage(Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length));
+    }
+
+    @Override
+    public void markFinished() {
+        local.markFinished();
+    }
+
+    @Override
+    public boolean isFinished() {
+        return local.isFinished();
+    }
+}
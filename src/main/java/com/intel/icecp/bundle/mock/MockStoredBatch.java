@@ -23,13 +23,17 @@ import org.apache.logging.log4j.Logger;
 
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  */
 public class MockStoredBatch<T> implements StoredBatch<T> {
     private static final Logger LOGGER = LogManager.getLogger();
     private final List<StoredItem<T>> items = new ArrayList<>();
+    private final Map<Long, StoredItem<T>> index = new HashMap<>();
     private final long id;
 
     public MockStoredBatch() {
@@ -37,7 +41,9 @@ public class MockStoredBatch<T> implements StoredBatch<T> {
     }
 
     public void add(T newItem) {
-        items.add(new MockStoredItem<>(newItem));
+        StoredItem<T> item = new MockStoredItem<>(newItem);
+        items.add(item);
+        index.put(item.id(), item);
     }
 
     @Override
@@ -62,4 +68,10 @@ public class MockStoredBatch<T> implements StoredBatch<T> {
         // TODO Auto-generated method stub
     }
 
+    @Override
+    public void commit(Collection<Long> itemIds) {
+        LOGGER.info("Committing items {} of {}", itemIds, this);
+        itemIds.stream().map(index::get).filter(i -> i != null).forEach(StoredItem::markFinished);
+    }
+
 }
\ No newline at end of file
@@ -22,6 +22,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -58,4 +59,9 @@ public class MockStoredBundle<T> implements StoredBundle<T> {
     public void addItem(T item) {
         ((MockStoredBatch<T>) last()).add(item);
     }
+
+    @Override
+    public void commit(Collection<Long> itemIds) {
+        lists.forEach(b -> b.commit(itemIds));
+    }
 }
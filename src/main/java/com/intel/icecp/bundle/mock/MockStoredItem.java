@@ -20,10 +20,14 @@ import com.intel.icecp.bundle.StoredItem;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  */
 public class MockStoredItem<T> implements StoredItem<T> {
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    private final long id = NEXT_ID.incrementAndGet();
     private final long timestamp;
     private final T value;
     private boolean finished = false;
@@ -37,6 +41,11 @@ public class MockStoredItem<T> implements StoredItem<T> {
         this(System.currentTimeMillis(), value);
     }
 
+    @Override
+    public long id() {
+        return id;
+    }
+
     @Override
     public long timestamp() {
         return timestamp;
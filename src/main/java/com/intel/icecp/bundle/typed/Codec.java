@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.typed;
+
+/**
+ * Convert domain objects to and from the raw content of stored messages; see {@link TypedStoredBundle}.
+ *
+ * @param <T> the type of the domain objects
+ */
+public interface Codec<T> {
+
+    /**
+     * @param value the object to store
+     * @return the content of the message to store
+     */
+    byte[] encode(T value);
+
+    /**
+     * @param bytes the content of a stored message
+     * @return the decoded object
+     * @throws IllegalArgumentException if the content cannot be decoded
+     */
+    T decode(byte[] bytes);
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.typed;
+
+/**
+ * How a {@link TypedStoredBundle} remembers the objects decoded from its items.
+ *
+ */
+public enum Memoization {
+    /**
+     * Decode each item at most once and keep the decoded object as long as the item
+     */
+    STRONG,
+    /**
+     * Keep the decoded object through a soft reference; it is decoded again if the garbage collector cleared it
+     * under memory pressure
+     */
+    SOFT,
+    /**
+     * Decode the item on every read, keeping nothing
+     */
+    NONE
+}
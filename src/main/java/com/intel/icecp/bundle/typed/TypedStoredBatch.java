@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.typed;
+
+import com.intel.icecp.bundle.ItemQuery;
+import com.intel.icecp.bundle.StoredBatch;
+import com.intel.icecp.bundle.StoredItem;
+import com.intel.icecp.core.messages.BytesMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+
+/**
+ * A batch of a {@link TypedStoredBundle}; finishing, committing and scans (queries, timestamp windows) are delegated
+ * to the raw batch, which keeps the state of its items and may push the scans down to its storage.
+ *
+ */
+class TypedStoredBatch<T> implements StoredBatch<T> {
+    private final StoredBatch<BytesMessage> raw;
+    private final Codec<T> codec;
+    private final Memoization memoization;
+    private final Map<StoredItem<BytesMessage>, TypedStoredItem<T>> items = new IdentityHashMap<>();
+
+    TypedStoredBatch(StoredBatch<BytesMessage> raw, Codec<T> codec, Memoization memoization) {
+        this.raw = raw;
+        this.codec = codec;
+        this.memoization = memoization;
+    }
+
+    @Override
+    public long id() {
+        return raw.id();
+    }
+
+    @Override
+    public boolean hasChildren() {
+        return raw.hasChildren();
+    }
+
+    @Override
+    public Iterable<StoredItem<T>> children() {
+        return wrap();
+    }
+
+    /**
+     * @return the typed items, sharing the values already decoded through {@link #children()}
+     */
+    @Override
+    public Spliterator<StoredItem<T>> spliterator() {
+        return Spliterators.spliterator(wrap().toArray(), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    /**
+     * @return the typed items of the raw batch, reusing the ones already created so that decoded values are kept
+     */
+    private synchronized List<StoredItem<T>> wrap() {
+        List<StoredItem<T>> wrapped = new ArrayList<>();
+        for (StoredItem<BytesMessage> item : raw.children()) {
+            wrapped.add(wrap(item));
+        }
+        return wrapped;
+    }
+
+    private synchronized StoredItem<T> wrap(StoredItem<BytesMessage> item) {
+        return items.computeIfAbsent(item, i -> new TypedStoredItem<>(i, codec, memoization));
+    }
+
+    @Override
+    public void markFinished() {
+        raw.markFinished();
+    }
+
+    @Override
+    public void markFinishedInParallel() {
+        raw.markFinishedInParallel();
+    }
+
+    @Override
+    public boolean isFinished() {
+        return raw.isFinished();
+    }
+
+    @Override
+    public boolean isFinishedInParallel() {
+        return raw.isFinishedInParallel();
+    }
+
+    @Override
+    public void commit() {
+        raw.commit();
+    }
+
+    @Override
+    public void commit(Collection<Long> itemIds) {
+        raw.commit(itemIds);
+    }
+
+    @Override
+    public void commitRange(long firstItemId, long lastItemId) {
+        raw.commitRange(firstItemId, lastItemId);
+    }
+
+    @Override
+    public Stream<StoredItem<T>> query(ItemQuery query) {
+        return raw.query(query).map(this::wrap);
+    }
+
+    @Override
+    public Stream<StoredItem<T>> between(long fromTimestamp, long toTimestamp) {
+        return raw.between(fromTimestamp, toTimestamp).map(this::wrap);
+    }
+}
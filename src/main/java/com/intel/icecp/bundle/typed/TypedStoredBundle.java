@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.typed;
+
+import com.intel.icecp.bundle.StoredBatch;
+import com.intel.icecp.bundle.StoredBundle;
+import com.intel.icecp.core.messages.BytesMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+/**
+ * A typed view of a bundle of raw messages: items are decoded with a {@link Codec} the first time their value is read
+ * and, depending on the {@link Memoization}, the decoded object is kept with the item so that it is decoded at most
+ * once. Added items are encoded with the same codec. Finishing and committing are delegated to the raw bundle;
+ * queries and timestamp scans go through the typed batches to the raw batches, so their indexes and push-downs apply.
+ *
+ * @param <T> the type of the domain objects
+ */
+public class TypedStoredBundle<T> implements StoredBundle<T>, AutoCloseable {
+    private final StoredBundle<BytesMessage> raw;
+    private final Codec<T> codec;
+    private final Memoization memoization;
+    private final Map<StoredBatch<BytesMessage>, TypedStoredBatch<T>> batches = new IdentityHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param raw the bundle of raw messages
+     * @param codec the codec of the message contents
+     * @param memoization how to remember decoded objects
+     */
+    public TypedStoredBundle(StoredBundle<BytesMessage> raw, Codec<T> codec, Memoization memoization) {
+        this.raw = raw;
+        this.codec = codec;
+        this.memoization = memoization;
+    }
+
+    @Override
+    public StoredBatch<T> newBatch() {
+        StoredBatch<BytesMessage> batch = raw.newBatch();
+        return batch == null ? null : wrap(batch);
+    }
+
+    @Override
+    public void addItem(T item) {
+        raw.addItem(new BytesMessage(codec.encode(item)));
+    }
+
+    @Override
+    public void commit(Collection<Long> itemIds) {
+        raw.commit(itemIds);
+    }
+
+    @Override
+    public void commitRange(long firstItemId, long lastItemId) {
+        raw.commitRange(firstItemId, lastItemId);
+    }
+
+    @Override
+    public boolean hasChildren() {
+        return raw.hasChildren();
+    }
+
+    @Override
+    public Iterable<StoredBatch<T>> children() {
+        return wrap();
+    }
+
+    @Override
+    public Spliterator<StoredBatch<T>> spliterator() {
+        return Spliterators.spliterator(wrap().toArray(), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    /**
+     * Close the raw bundle if it needs closing
+     *
+     * @throws Exception if the raw bundle cannot be closed
+     */
+    @Override
+    public void close() throws Exception {
+        if (raw instanceof AutoCloseable) {
+            ((AutoCloseable) raw).close();
+        }
+    }
+
+    /**
+     * @return the typed batches of the raw bundle; batches no longer listed by the raw bundle are forgotten along
+     * with their decoded items
+     */
+    private synchronized List<StoredBatch<T>> wrap() {
+        Map<StoredBatch<BytesMessage>, TypedStoredBatch<T>> live = new IdentityHashMap<>();
+        List<StoredBatch<T>> wrapped = new ArrayList<>();
+        for (StoredBatch<BytesMessage> batch : raw.children()) {
+            TypedStoredBatch<T> typed = wrap(batch);
+            live.put(batch, typed);
+            wrapped.add(typed);
+        }
+        batches.keySet().retainAll(live.keySet());
+        return wrapped;
+    }
+
+    private synchronized TypedStoredBatch<T> wrap(StoredBatch<BytesMessage> batch) {
+        return batches.computeIfAbsent(batch, b -> new TypedStoredBatch<>(b, codec, memoization));
+    }
+}
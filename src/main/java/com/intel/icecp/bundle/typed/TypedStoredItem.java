@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.typed;
+
+import com.intel.icecp.bundle.StoredItem;
+import com.intel.icecp.core.messages.BytesMessage;
+
+import java.lang.ref.SoftReference;
+
+/**
+ * An item of a {@link TypedStoredBundle}; the raw item is only decoded when its value is first read.
+ *
+ */
+class TypedStoredItem<T> implements StoredItem<T> {
+    private final StoredItem<BytesMessage> raw;
+    private final Codec<T> codec;
+    private final Memoization memoization;
+    private volatile T value;
+    private volatile SoftReference<T> softValue;
+
+    TypedStoredItem(StoredItem<BytesMessage> raw, Codec<T> codec, Memoization memoization) {
+        this.raw = raw;
+        this.codec = codec;
+        this.memoization = memoization;
+    }
+
+    @Override
+    public long id() {
+        return raw.id();
+    }
+
+    @Override
+    public long timestamp() {
+        return raw.timestamp();
+    }
+
+    @Override
+    public T value() {
+        switch (memoization) {
+            case STRONG:
+                if (value == null) {
+                    synchronized (this) {
+                        if (value == null) {
+                            value = decode();
+                        }
+                    }
+                }
+                return value;
+            case SOFT:
+                T remembered = softValue == null ? null : softValue.get();
+                if (remembered == null) {
+                    synchronized (this) {
+                        remembered = softValue == null ? null : softValue.get();
+                        if (remembered == null) {
+                            remembered = decode();
+                            softValue = new SoftReference<>(remembered);
+                        }
+                    }
+                }
+                return remembered;
+            default:
+                return decode();
+        }
+    }
+
+    private T decode() {
+        return codec.decode(raw.value().getBytes());
+    }
+
+    @Override
+    public void markFinished() {
+        raw.markFinished();
+    }
+
+    @Override
+    public boolean isFinished() {
+        return raw.isFinished();
+    }
+}
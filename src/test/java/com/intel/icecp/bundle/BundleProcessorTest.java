@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle;
+
+import com.intel.icecp.bundle.mock.MockStoredBundle;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class BundleProcessorTest {
+    private MockStoredBundle<Integer> bundle;
+    private BundleProcessor<Integer> instance;
+
+    @Before
+    public void before() {
+        bundle = new MockStoredBundle<>();
+        for (int i = 0; i < 4; i++) {
+            bundle.newBatch();
+            for (int j = 0; j < 25; j++) {
+                bundle.addItem(i * 25 + j);
+            }
+        }
+        instance = new BundleProcessor<>(4, 10);
+    }
+
+    @After
+    public void after() {
+        instance.close();
+    }
+
+    @Test
+    public void processAllItems() throws Exception {
+        Set<Integer> seen = ConcurrentHashMap.newKeySet();
+
+        ProcessingStats stats = instance.process(bundle, item -> seen.add(item.value()));
+
+        assertEquals(100, seen.size());
+        assertEquals(100, stats.processed());
+        assertEquals(0, stats.failed());
+        assertEquals(4 * 3, stats.commits()); // two interval commits and one final commit per batch
+        assertTrue(bundle.isFinished());
+    }
+
+    @Test
+    public void failedItemsAreLeftUnfinished() throws Exception {
+        ProcessingStats stats = instance.process(bundle, item -> {
+            if (item.value() % 2 == 0) throw new IllegalArgumentException("even");
+        });
+
+        assertEquals(50, stats.processed());
+        assertEquals(50, stats.failed());
+        assertFalse(bundle.isFinished());
+
+        stats = instance.process(bundle, item -> {
+        });
+        assertEquals(50, stats.processed());
+        assertTrue(bundle.isFinished());
+    }
+}
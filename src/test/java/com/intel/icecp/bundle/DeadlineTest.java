@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class DeadlineTest {
+
+    @Test
+    public void expire() throws Exception {
+        Deadline deadline = Deadline.after(0, TimeUnit.MILLISECONDS);
+
+        assertTrue(deadline.isExpired());
+        assertTrue(deadline.isDone());
+        assertFalse(deadline.isCancelled());
+        assertEquals(0, deadline.remaining(TimeUnit.MILLISECONDS));
+        assertEquals(0, deadline.clamp(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void neverExpire() throws Exception {
+        Deadline deadline = Deadline.never();
+
+        assertFalse(deadline.isDone());
+        assertEquals(Long.MAX_VALUE, deadline.remaining(TimeUnit.MILLISECONDS));
+        assertEquals(100, deadline.clamp(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void enterRestoresPreviousDeadline() throws Exception {
+        Deadline outer = Deadline.never();
+        Deadline inner = Deadline.after(1, TimeUnit.MINUTES);
+
+        assertNull(Deadline.current());
+        outer.run(() -> {
+            assertSame(inner, inner.call(Deadline::current));
+            assertSame(outer, Deadline.current());
+        });
+        assertNull(Deadline.current());
+    }
+
+    @Test
+    public void cancelRunsListenersOnce() throws Exception {
+        Deadline deadline = Deadline.never();
+        AtomicInteger runs = new AtomicInteger();
+        deadline.onCancel(runs::incrementAndGet);
+        deadline.onCancel(runs::incrementAndGet).close();
+
+        deadline.cancel();
+        deadline.cancel();
+
+        assertEquals(1, runs.get());
+        assertTrue(deadline.isDone());
+        assertTrue(deadline.awaitCancellation(1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void listenerAddedAfterCancelRunsRightAway() throws Exception {
+        Deadline deadline = Deadline.never();
+        deadline.cancel();
+        AtomicInteger runs = new AtomicInteger();
+
+        deadline.onCancel(runs::incrementAndGet);
+
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void awaitCancellationStopsAtDeadline() throws Exception {
+        Deadline deadline = Deadline.after(50, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        assertFalse(deadline.awaitCancellation(1, TimeUnit.MINUTES));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle;
+
+import com.intel.icecp.bundle.mock.MockStoredBundle;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class ItemQueryTest {
+
+    @Test
+    public void narrowDown() throws Exception {
+        ItemQuery all = ItemQuery.all();
+        ItemQuery query = all.between(10, 20).idRange(1, 5).withAnyTag(Collections.singleton("a"))
+                .withoutTags(Arrays.asList("inactive", "b")).limit(3);
+
+        assertTrue(all.isUnrestricted());
+        assertFalse(query.isUnrestricted());
+        assertEquals(10, query.fromTimestamp());
+        assertEquals(5, query.toId());
+        assertEquals(Collections.singleton("a"), query.includedTags());
+        assertEquals(2, query.excludedTags().size());
+        assertEquals(3, query.limit());
+        assertEquals(Long.MAX_VALUE, all.limit()); // queries are immutable
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLimit() throws Exception {
+        ItemQuery.all().limit(-1);
+    }
+
+    @Test
+    public void filterLocallyByDefault() throws Exception {
+        MockStoredBundle<String> bundle = new MockStoredBundle<>();
+        bundle.newBatch();
+        bundle.addItem("a");
+        bundle.addItem("b");
+        bundle.newBatch();
+        bundle.addItem("c");
+        List<StoredItem<String>> items = bundle.stream().flatMap(StoredBatch::stream).collect(Collectors.toList());
+
+        List<String> matching = bundle.query(ItemQuery.all().idRange(items.get(1).id(), items.get(2).id()))
+                .map(StoredItem::value).collect(Collectors.toList());
+        assertEquals(Arrays.asList("b", "c"), matching);
+
+        assertEquals(1, bundle.query(ItemQuery.all().limit(1)).count());
+        assertEquals(0, bundle.query(ItemQuery.all().between(0, 1)).count());
+    }
+}
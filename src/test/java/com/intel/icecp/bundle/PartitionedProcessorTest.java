@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle;
+
+import com.intel.icecp.bundle.mock.MockStoredBundle;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class PartitionedProcessorTest {
+    private static final int DEVICES = 5;
+    private MockStoredBundle<String> bundle;
+    private PartitionedProcessor<String> instance;
+
+    @Before
+    public void before() {
+        bundle = new MockStoredBundle<>();
+        for (int i = 0; i < 3; i++) {
+            bundle.newBatch();
+            for (int j = 0; j < 20; j++) {
+                bundle.addItem("device-" + j % DEVICES);
+            }
+        }
+        instance = new PartitionedProcessor<>(3, StoredItem::value, 4);
+    }
+
+    @After
+    public void after() {
+        instance.close();
+    }
+
+    @Test
+    public void preserveOrderPerKey() throws Exception {
+        Map<String, List<Long>> processed = new ConcurrentHashMap<>();
+
+        ProcessingStats stats = instance.process(bundle, item -> processed.computeIfAbsent(item.value(), k -> new ArrayList<>()).add(item.id()));
+
+        assertEquals(60, stats.processed());
+        assertEquals(DEVICES, processed.size());
+        for (List<Long> ids : processed.values()) {
+            assertEquals(12, ids.size());
+            List<Long> sorted = new ArrayList<>(ids);
+            sorted.sort(Long::compare);
+            assertEquals(sorted, ids);
+        }
+        assertTrue(bundle.isFinished());
+    }
+
+    @Test
+    public void commitOnlyFinishedPrefix() throws Exception {
+        List<Long> failed = new ArrayList<>();
+
+        instance.process(bundle, item -> {
+            if (item.value().equals("device-0") && failed.isEmpty()) {
+                failed.add(item.id());
+                throw new IllegalStateException("first device-0 item fails");
+            }
+        });
+
+        assertFalse(bundle.isFinished());
+        int failedLane = lane("device-0");
+        Set<Long> expected = new TreeSet<>();
+        Set<Long> finished = new TreeSet<>();
+        for (StoredBatch<String> batch : bundle.children()) {
+            for (StoredItem<String> item : batch.children()) {
+                // the items behind the failed one in its lane (including other keys hashed to it) stay unfinished
+                if (lane(item.value()) != failedLane || item.id() < failed.get(0)) {
+                    expected.add(item.id());
+                }
+                if (item.isFinished()) {
+                    finished.add(item.id());
+                }
+            }
+        }
+        assertTrue(expected.size() <= 60 - 12); // the failed device-0 item and the 11 behind it
+        assertEquals(expected, finished);
+    }
+
+    @Test
+    public void skipItemsBehindFailure() throws Exception {
+        List<Long> handled = Collections.synchronizedList(new ArrayList<>());
+        List<Long> failed = new ArrayList<>();
+
+        ProcessingStats stats = instance.process(bundle, item -> {
+            if (item.value().equals("device-0")) {
+                if (failed.isEmpty()) {
+                    failed.add(item.id());
+                    throw new IllegalStateException("first device-0 item fails");
+                }
+                handled.add(item.id());
+            }
+        });
+
+        assertTrue(handled.isEmpty()); // the later device-0 items were not handled before the failed one
+        assertEquals(1, stats.failed());
+        assertTrue(stats.skipped() >= 11);
+    }
+
+    private static int lane(String key) {
+        return Math.floorMod(key.hashCode(), 3);
+    }
+}
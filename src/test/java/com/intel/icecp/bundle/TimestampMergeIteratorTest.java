@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle;
+
+import com.intel.icecp.bundle.mock.MockStoredBundle;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+/**
+ */
+public class TimestampMergeIteratorTest {
+
+    @Test
+    public void mergeInTimestampOrder() throws Exception {
+        List<Iterator<StoredItem<String>>> sources = Arrays.asList(
+                Arrays.asList(item(1, 10, "a"), item(4, 40, "d"), item(6, 60, "f")).iterator(),
+                Collections.<StoredItem<String>>emptyList().iterator(),
+                Arrays.asList(item(2, 20, "b"), item(3, 30, "c")).iterator(),
+                Arrays.asList(item(5, 50, "e")).iterator());
+
+        List<String> merged = new ArrayList<>();
+        new TimestampMergeIterator<>(sources).forEachRemaining(i -> merged.add(i.value()));
+
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f"), merged);
+    }
+
+    @Test
+    public void breakTiesById() throws Exception {
+        List<Iterator<StoredItem<String>>> sources = Arrays.asList(
+                Arrays.asList(item(9, 10, "b")).iterator(),
+                Arrays.asList(item(2, 10, "a")).iterator());
+
+        TimestampMergeIterator<String> iterator = new TimestampMergeIterator<>(sources);
+
+        assertEquals("a", iterator.next().value());
+        assertEquals("b", iterator.next().value());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void pullLazily() throws Exception {
+        Iterator<StoredItem<String>> source = Arrays.asList(item(1, 10, "a"), item(2, 20, "b"), item(3, 30, "c")).iterator();
+        int[] pulled = {0};
+        Iterator<StoredItem<String>> counting = new Iterator<StoredItem<String>>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public StoredItem<String> next() {
+                pulled[0]++;
+                return source.next();
+            }
+        };
+
+        TimestampMergeIterator<String> iterator = new TimestampMergeIterator<>(Collections.singletonList(counting));
+        assertEquals(0, pulled[0]);
+
+        iterator.next();
+        assertEquals(2, pulled[0]);
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void exhausted() throws Exception {
+        new TimestampMergeIterator<String>(Collections.emptyList()).next();
+    }
+
+    @Test
+    public void bundleInTimestampOrder() throws Exception {
+        MockStoredBundle<String> bundle = new MockStoredBundle<>();
+        bundle.newBatch();
+        bundle.addItem("a");
+        bundle.newBatch();
+        bundle.addItem("b");
+        bundle.addItem("c");
+
+        List<String> values = bundle.inTimestampOrder().map(StoredItem::value).collect(Collectors.toList());
+
+        assertEquals(Arrays.asList("a", "b", "c"), values);
+    }
+
+    @Test
+    public void openBatchScansOnConsumption() throws Exception {
+        MockStoredBundle<String> bundle = spy(new MockStoredBundle<>());
+        bundle.newBatch();
+        bundle.addItem("a");
+
+        Stream<StoredItem<String>> scan = bundle.between(Long.MIN_VALUE, Long.MAX_VALUE);
+        verify(bundle, never()).stream();
+
+        assertEquals(1, scan.count());
+        verify(bundle).stream();
+    }
+
+    private static StoredItem<String> item(long id, long timestamp, String value) {
+        return new StoredItem<String>() {
+            @Override
+            public long id() {
+                return id;
+            }
+
+            @Override
+            public long timestamp() {
+                return timestamp;
+            }
+
+            @Override
+            public String value() {
+                return value;
+            }
+        };
+    }
+}
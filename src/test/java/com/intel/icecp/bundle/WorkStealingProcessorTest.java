@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle;
+
+import com.intel.icecp.bundle.mock.MockStoredBatch;
+import com.intel.icecp.bundle.mock.MockStoredBundle;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class WorkStealingProcessorTest {
+    private CommitCheckingBatch huge;
+    private MockStoredBundle<Integer> bundle;
+    private WorkStealingProcessor<Integer> instance;
+
+    @Before
+    public void before() {
+        huge = new CommitCheckingBatch();
+        for (int i = 0; i < 200; i++) {
+            huge.add(i);
+        }
+        bundle = new MockStoredBundle<Integer>() {
+            {
+                lists.add(huge);
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            bundle.newBatch();
+            bundle.addItem(1000 + i);
+        }
+        instance = new WorkStealingProcessor<>(4, 8);
+    }
+
+    @After
+    public void after() {
+        instance.close();
+    }
+
+    @Test
+    public void spreadHugeBatchOverWorkers() throws Exception {
+        Set<Integer> seen = ConcurrentHashMap.newKeySet();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        ProcessingStats stats = instance.process(bundle, item -> {
+            seen.add(item.value());
+            if (item.value() < 1000) {
+                threads.add(Thread.currentThread().getName());
+                Thread.sleep(1);
+            }
+        });
+
+        assertEquals(203, seen.size());
+        assertEquals(203, stats.processed());
+        assertEquals(4, stats.commits()); // once per batch
+        assertTrue(threads.size() > 1);
+        assertTrue(huge.finishedAtCommit);
+        assertTrue(bundle.isFinished());
+    }
+
+    @Test
+    public void failedItemsAreLeftUnfinished() throws Exception {
+        ProcessingStats stats = instance.process(bundle, item -> {
+            if (item.value() % 2 == 0) throw new IllegalArgumentException("even");
+        });
+
+        assertEquals(101, stats.processed());
+        assertEquals(102, stats.failed());
+        assertFalse(bundle.isFinished());
+
+        stats = instance.process(bundle, item -> {
+        });
+        assertEquals(102, stats.processed());
+        assertTrue(bundle.isFinished());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectEmptyRanges() throws Exception {
+        new WorkStealingProcessor<Integer>(1, 0);
+    }
+
+    private static class CommitCheckingBatch extends MockStoredBatch<Integer> {
+        private volatile boolean finishedAtCommit = false;
+
+        @Override
+        public void commit() {
+            finishedAtCommit = isFinished();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.lease;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ */
+public class FileLeaseStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final AtomicLong now = new AtomicLong(1000);
+    private FileLeaseStore instance;
+
+    @Before
+    public void before() throws Exception {
+        instance = new FileLeaseStore(folder.getRoot().toPath(), now::get);
+    }
+
+    @Test
+    public void claimExclusively() throws Exception {
+        Lease lease = instance.claim(7, "a", 100);
+
+        assertEquals(1, lease.token());
+        assertEquals(1100, lease.expiresAt());
+        assertNull(instance.claim(7, "b", 100));
+        assertEquals(1, instance.claim(7, "a", 100).token());
+        assertEquals("a", instance.current(7).owner());
+    }
+
+    @Test
+    public void claimExpiredLease() throws Exception {
+        Lease lease = instance.claim(7, "a", 100);
+        now.addAndGet(100);
+
+        Lease claimed = instance.claim(7, "b", 100);
+
+        assertEquals(2, claimed.token());
+        assertNull(instance.renew(lease, 100));
+    }
+
+    @Test
+    public void renewExpiredLeaseNotClaimed() throws Exception {
+        Lease lease = instance.claim(7, "a", 100);
+        now.addAndGet(500);
+
+        Lease renewed = instance.renew(lease, 100);
+
+        assertEquals(1, renewed.token());
+        assertEquals(1600, renewed.expiresAt());
+    }
+
+    @Test
+    public void stealValidLease() throws Exception {
+        Lease lease = instance.claim(7, "a", 100);
+
+        Lease stolen = instance.steal(7, "b", 100);
+
+        assertEquals(2, stolen.token());
+        assertNull(instance.renew(lease, 100));
+        assertNull(instance.claim(7, "a", 100));
+    }
+
+    @Test
+    public void releaseKeepsToken() throws Exception {
+        Lease lease = instance.claim(7, "a", 100);
+        instance.release(lease);
+
+        assertNull(instance.current(7));
+        assertEquals(2, instance.claim(7, "b", 100).token());
+    }
+
+    @Test
+    public void remove() throws Exception {
+        instance.claim(7, "a", 100);
+        instance.remove(7);
+
+        assertNull(instance.current(7));
+        assertEquals(1, instance.claim(7, "b", 100).token());
+    }
+
+    @Test
+    public void shareDirectory() throws Exception {
+        FileLeaseStore other = new FileLeaseStore(folder.getRoot().toPath(), now::get);
+        instance.claim(7, "a", 100);
+
+        assertNull(other.claim(7, "b", 100));
+        assertNotNull(other.claim(8, "b", 100));
+        assertEquals("b", instance.current(8).owner());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.lease;
+
+import com.intel.icecp.bundle.StoredBatch;
+import com.intel.icecp.bundle.StoredItem;
+import com.intel.icecp.bundle.mock.MockStoredBundle;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ */
+public class LeasedStoredBundleTest {
+    private static final long LEASE_DURATION_MS = 60000;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private MockStoredBundle<String> shared;
+    private LeasedStoredBundle<String> first;
+    private LeasedStoredBundle<String> second;
+    private LeaseStore store;
+
+    @Before
+    public void before() throws Exception {
+        shared = new MockStoredBundle<>();
+        shared.newBatch();
+        shared.addItem("a");
+        shared.addItem("b");
+        store = new FileLeaseStore(folder.getRoot().toPath());
+        first = new LeasedStoredBundle<>(shared, store, "first", LEASE_DURATION_MS);
+        second = new LeasedStoredBundle<>(shared, new FileLeaseStore(folder.getRoot().toPath()), "second",
+                LEASE_DURATION_MS);
+    }
+
+    @After
+    public void after() throws Exception {
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void processBatchesOnce() throws Exception {
+        StoredBatch<String> created = second.newBatch();
+        second.addItem("c");
+
+        assertEquals(1, first.stream().count());
+        assertEquals(Collections.singleton(created.id()), second.leasedBatches());
+        assertEquals(1, second.stream().count());
+    }
+
+    @Test
+    public void releaseOnClose() throws Exception {
+        assertTrue(first.hasChildren());
+        assertFalse(second.hasChildren());
+
+        first.close();
+
+        assertTrue(second.hasChildren());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failToCommitStolenBatch() throws Exception {
+        StoredBatch<String> batch = first.stream().findFirst().get();
+        second.steal(batch.id());
+
+        batch.commit(Collections.singletonList(batch.stream().findFirst().get().id()));
+    }
+
+    @Test
+    public void failToFinishStolenBatch() throws Exception {
+        StoredBatch<String> batch = first.stream().findFirst().get();
+        second.steal(batch.id());
+
+        try {
+            batch.markFinished();
+            fail("the batch was stolen");
+        } catch (IllegalStateException e) {
+            assertFalse(batch.isFinished());
+        }
+    }
+
+    @Test
+    public void removeLeaseOfFinishedBatch() throws Exception {
+        StoredBatch<String> batch = first.stream().findFirst().get();
+        List<Long> ids = batch.stream().map(StoredItem::id).collect(Collectors.toList());
+
+        first.commit(ids);
+
+        assertTrue(batch.isFinished());
+        assertNull(store.current(batch.id()));
+        assertTrue(first.leasedBatches().isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failToCommitItemsNotLeased() throws Exception {
+        List<Long> ids = shared.stream().flatMap(StoredBatch::stream).map(StoredItem::id).collect(Collectors.toList());
+
+        second.commit(ids);
+    }
+}
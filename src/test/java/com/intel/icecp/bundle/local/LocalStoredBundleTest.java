@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.local;
+
+import com.intel.icecp.bundle.StoredBatch;
+import com.intel.icecp.bundle.StoredItem;
+import com.intel.icecp.core.messages.BytesMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class LocalStoredBundleTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void addAndRead() throws Exception {
+        try (LocalStoredBundle instance = new LocalStoredBundle(folder.getRoot().toPath())) {
+            assertFalse(instance.hasChildren());
+
+            instance.addItem(new BytesMessage("a".getBytes()));
+            instance.addItem(new BytesMessage("b".getBytes()));
+
+            assertTrue(instance.hasChildren());
+            List<StoredItem<BytesMessage>> items = items(instance.children().iterator().next());
+            assertEquals(2, items.size());
+            assertArrayEquals("a".getBytes(), items.get(0).value().getBytes());
+            assertArrayEquals("b".getBytes(), items.get(1).value().getBytes());
+        }
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (LocalStoredBundle instance = new LocalStoredBundle(directory)) {
+            instance.newBatch();
+            instance.addItem(new BytesMessage("a".getBytes()));
+            instance.newBatch();
+            instance.addItem(new BytesMessage("b".getBytes()));
+            instance.addItem(new BytesMessage("c".getBytes()));
+            instance.children().iterator().next().markFinished(); // finish the first batch
+        }
+
+        try (LocalStoredBundle instance = new LocalStoredBundle(directory)) {
+            List<StoredBatch<BytesMessage>> batches = new ArrayList<>();
+            instance.children().forEach(batches::add);
+            assertEquals(1, batches.size());
+            assertEquals(2, batches.get(0).id());
+            List<StoredItem<BytesMessage>> items = items(batches.get(0));
+            assertEquals(3, items.get(1).id());
+            assertArrayEquals("c".getBytes(), items.get(1).value().getBytes());
+
+            instance.addItem(new BytesMessage("d".getBytes()));
+            assertEquals(4, items(batches.get(0)).get(2).id());
+        }
+    }
+
+    @Test
+    public void readWhileBundleIsBusy() throws Exception {
+        try (LocalStoredBundle instance = new LocalStoredBundle(folder.getRoot().toPath())) {
+            instance.addItem(new BytesMessage("a".getBytes()));
+            instance.flush();
+            StoredItem<BytesMessage> item = items(instance.children().iterator().next()).get(0);
+
+            synchronized (instance) { // e.g. an addItem() or commit() in progress
+                CompletableFuture<BytesMessage> read = CompletableFuture.supplyAsync(item::value);
+                assertArrayEquals("a".getBytes(), read.get(5, TimeUnit.SECONDS).getBytes());
+            }
+        }
+    }
+
+    @Test
+    public void compactCommittedSegments() throws Exception {
+        try (LocalStoredBundle instance = new LocalStoredBundle(folder.getRoot().toPath(), 256)) {
+            StoredBatch<BytesMessage> batch = instance.newBatch();
+            for (int i = 0; i < 50; i++) {
+                instance.addItem(new BytesMessage(new byte[32]));
+            }
+            int segments = instance.segmentCount();
+            assertTrue(segments > 1);
+
+            instance.commitRange(1, 25);
+            assertTrue(instance.segmentCount() < segments);
+            assertFalse(batch.isFinished());
+
+            batch.markFinished();
+            assertEquals(1, instance.segmentCount()); // the active segment is never compacted
+            assertTrue(batch.isFinished());
+        }
+    }
+
+    @Test
+    public void keepIdsUniqueAfterCompaction() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (LocalStoredBundle instance = new LocalStoredBundle(directory, 256)) {
+            instance.addItem(new BytesMessage(new byte[230])); // one item per segment
+            instance.addItem(new BytesMessage(new byte[230]));
+            instance.newBatch(); // seals the segment of the last item
+            instance.commitRange(1, 2);
+            assertEquals(1, instance.segmentCount()); // only the segment of the new batch is left
+        }
+
+        try (LocalStoredBundle instance = new LocalStoredBundle(directory, 256)) {
+            instance.addItem(new BytesMessage("c".getBytes()));
+            List<StoredItem<BytesMessage>> items = items(instance.children().iterator().next());
+            assertEquals(1, items.size());
+            assertEquals(3, items.get(0).id());
+        }
+
+        try (LocalStoredBundle instance = new LocalStoredBundle(directory, 256)) {
+            List<StoredItem<BytesMessage>> items = items(instance.children().iterator().next());
+            assertEquals(1, items.size());
+            assertFalse(items.get(0).isFinished()); // not mistaken for a committed item of the compacted segments
+            assertTrue(instance.newBatch().id() > 2);
+        }
+    }
+
+    @Test
+    public void discardTornItem() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (LocalStoredBundle instance = new LocalStoredBundle(directory)) {
+            instance.addItem(new BytesMessage("a".getBytes()));
+        }
+        Path segment = Files.list(directory).filter(p -> p.toString().endsWith(".segment")).findFirst().get();
+        Files.write(segment, new byte[]{2, 0, 0, 0}, StandardOpenOption.APPEND);
+
+        try (LocalStoredBundle instance = new LocalStoredBundle(directory)) {
+            assertEquals(1, items(instance.children().iterator().next()).size());
+            instance.addItem(new BytesMessage("b".getBytes()));
+        }
+
+        try (LocalStoredBundle instance = new LocalStoredBundle(directory)) {
+            List<StoredItem<BytesMessage>> items = items(instance.children().iterator().next());
+            assertEquals(2, items.size());
+            assertArrayEquals("b".getBytes(), items.get(1).value().getBytes());
+        }
+    }
+
+    private List<StoredItem<BytesMessage>> items(StoredBatch<BytesMessage> batch) {
+        List<StoredItem<BytesMessage>> items = new ArrayList<>();
+        batch.children().forEach(items::add);
+        return items;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class CatalogSnapshotTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Path path;
+
+    @Before
+    public void before() throws Exception {
+        path = folder.getRoot().toPath().resolve("catalog.snapshot");
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        CatalogSnapshot instance = new CatalogSnapshot(path);
+        instance.setCurrentSession(42);
+        instance.recordSize(41, 3, 30);
+        instance.recordCommitted(41, 3, Arrays.asList(10L, 20L, 30L));
+        instance.recordSize(42, 10, 110);
+        instance.recordCommitted(42, 2, Arrays.asList(101L, 102L, 105L, 106L, 104L));
+        instance.save();
+
+        CatalogSnapshot loaded = new CatalogSnapshot(path);
+        assertEquals(Long.valueOf(42), loaded.currentSession());
+        assertTrue(loaded.isFullyCommitted(41));
+        assertFalse(loaded.isFullyCommitted(42));
+        assertEquals(2, loaded.committedPrefix(42));
+        assertTrue(loaded.isCommitted(42, 104));
+        assertTrue(loaded.isCommitted(42, 106));
+        assertFalse(loaded.isCommitted(42, 103));
+        assertFalse(loaded.isCommitted(42, 107));
+        assertTrue(loaded.hasUncommitted());
+    }
+
+    @Test
+    public void detectChangedSessions() throws Exception {
+        CatalogSnapshot instance = new CatalogSnapshot(path);
+        instance.recordSize(42, 3, 30);
+
+        assertFalse(instance.hasChanged(42, 5, 2, Arrays.asList(30L, 40L, 50L)));
+        assertFalse(instance.hasChanged(42, 5, 3, Arrays.asList(40L, 50L)));
+        assertFalse(instance.hasChanged(41, 5, 0, Arrays.asList(1L, 2L))); // unknown
+        assertTrue(instance.hasChanged(42, 2, 2, Collections.singletonList(30L))); // truncated
+        assertTrue(instance.hasChanged(42, 5, 2, Arrays.asList(3L, 4L, 5L))); // renumbered
+        assertTrue(instance.hasChanged(42, 5, 3, Arrays.asList(4L, 5L)));
+
+        instance.forget(42);
+        assertFalse(instance.hasChanged(42, 2, 2, Collections.singletonList(30L)));
+    }
+
+    @Test
+    public void forgetDeletedSessions() throws Exception {
+        CatalogSnapshot instance = new CatalogSnapshot(path);
+        instance.recordSize(41, 3, 30);
+        instance.recordSize(42, 3, 60);
+        instance.retain(Collections.singletonList(42L));
+
+        assertFalse(instance.isFullyCommitted(41));
+        assertEquals(0, instance.committedPrefix(41));
+        assertTrue(instance.hasUncommitted());
+    }
+
+    @Test
+    public void ignoreCorruptSnapshot() throws Exception {
+        CatalogSnapshot instance = new CatalogSnapshot(path);
+        instance.setCurrentSession(42);
+        instance.recordSize(42, 3, 60);
+        instance.save();
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length / 2] ^= 0xFF;
+        Files.write(path, bytes);
+
+        CatalogSnapshot loaded = new CatalogSnapshot(path);
+        assertNull(loaded.currentSession());
+        assertFalse(loaded.hasUncommitted());
+    }
+}
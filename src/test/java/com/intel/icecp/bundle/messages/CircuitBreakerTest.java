@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+import com.intel.icecp.bundle.messages.CircuitBreaker.State;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class CircuitBreakerTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(200);
+    private final AtomicLong now = new AtomicLong();
+    private CircuitBreaker instance;
+
+    @Before
+    public void before() {
+        instance = new CircuitBreaker(4, 2, 0.5, 0.75, 100, 1000, 1, now::get);
+    }
+
+    @Test
+    public void openOnFailureRate() throws Exception {
+        record(FAST, true);
+        assertEquals(State.CLOSED, instance.state());
+
+        record(FAST, false);
+
+        assertEquals(State.OPEN, instance.state());
+        assertFalse(instance.tryAcquire());
+        assertEquals(1, instance.rejectedCount());
+    }
+
+    @Test
+    public void openOnSlowCallRate() throws Exception {
+        record(FAST, true);
+        record(SLOW, true);
+        record(SLOW, true);
+        assertEquals(State.CLOSED, instance.state());
+
+        record(SLOW, true);
+
+        assertEquals(State.OPEN, instance.state());
+    }
+
+    @Test
+    public void forgetOutcomesOutsideWindow() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            record(FAST, true);
+        }
+        record(FAST, false);
+        for (int i = 0; i < 4; i++) {
+            record(FAST, true);
+        }
+
+        assertEquals(0, instance.failureRate(), 0);
+        assertEquals(State.CLOSED, instance.state());
+    }
+
+    @Test
+    public void closeAfterSuccessfulProbe() throws Exception {
+        record(FAST, false);
+        record(FAST, false);
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        assertTrue(instance.tryAcquire());
+        assertEquals(State.HALF_OPEN, instance.state());
+        assertFalse(instance.tryAcquire()); // a single probe at a time
+        instance.record(FAST, true);
+
+        assertEquals(State.CLOSED, instance.state());
+        assertEquals(0, instance.failureRate(), 0);
+    }
+
+    @Test
+    public void reopenAfterFailedProbe() throws Exception {
+        record(FAST, false);
+        record(FAST, false);
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        record(FAST, false);
+
+        assertEquals(State.OPEN, instance.state());
+        assertFalse(instance.tryAcquire());
+    }
+
+    @Test
+    public void abandonProbe() throws Exception {
+        record(FAST, false);
+        record(FAST, false);
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        assertTrue(instance.tryAcquire());
+        instance.abandon();
+
+        assertTrue(instance.tryAcquire());
+    }
+
+    private void record(long latencyNanos, boolean succeeded) {
+        assertTrue(instance.tryAcquire());
+        instance.record(latencyNanos, succeeded);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ */
+public class CommitJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private StorageClient storage;
+    private Path path;
+
+    @Before
+    public void before() throws Exception {
+        storage = mock(StorageClient.class);
+        path = folder.getRoot().toPath().resolve("commits.journal");
+    }
+
+    @Test
+    public void appendThenFlushInBulk() throws Exception {
+        try (CommitJournal instance = new CommitJournal(storage, path, 1000)) {
+            instance.append(Arrays.asList(1L, 2L));
+            instance.append(Arrays.asList(3L));
+            verify(storage, never()).tag(any(), any());
+            assertEquals(3, instance.unflushedCount());
+            assertTrue(instance.contains(2));
+
+            instance.flush();
+
+            verify(storage).tag(Arrays.asList(1L, 2L, 3L), MessageBatch.INACTIVE_TAGS);
+            assertEquals(0, instance.unflushedCount());
+        }
+    }
+
+    @Test
+    public void replayUnflushedAfterRestart() throws Exception {
+        StorageClient unavailable = mock(StorageClient.class);
+        doThrow(new StorageClientException("unavailable")).when(unavailable).tag(any(), any());
+        try (CommitJournal instance = new CommitJournal(unavailable, path, 1000)) {
+            instance.append(Arrays.asList(1L, 2L));
+        }
+
+        try (CommitJournal instance = new CommitJournal(storage, path, 1000)) {
+            assertEquals(2, instance.unflushedCount());
+            assertTrue(instance.contains(1));
+            instance.flush();
+        }
+        verify(storage).tag(Arrays.asList(1L, 2L), MessageBatch.INACTIVE_TAGS);
+
+        try (CommitJournal instance = new CommitJournal(storage, path, 1000)) {
+            assertEquals(0, instance.unflushedCount());
+        }
+    }
+
+    @Test
+    public void discardTornRecord() throws Exception {
+        doThrow(new StorageClientException("unavailable")).when(storage).tag(any(), any());
+        try (CommitJournal instance = new CommitJournal(storage, path, 1000)) {
+            instance.append(Arrays.asList(1L, 2L));
+        }
+        Files.write(path, new byte[]{1, 0, 0, 0, 9, 42}, StandardOpenOption.APPEND);
+
+        try (CommitJournal instance = new CommitJournal(storage, path, 1000)) {
+            assertEquals(2, instance.unflushedCount());
+            assertFalse(instance.contains(42));
+            instance.append(Arrays.asList(3L));
+        }
+
+        try (CommitJournal instance = new CommitJournal(storage, path, 1000)) {
+            assertEquals(3, instance.unflushedCount());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class CompressedIdsTest {
+
+    @Test
+    public void roundTripSortsIds() throws Exception {
+        List<Long> ids = new ArrayList<>();
+        for (long id = 2000; id > 0; id -= 2) {
+            ids.add(id);
+        }
+        CompressionStats stats = new CompressionStats();
+
+        byte[] encoded = CompressedIds.encode(ids, stats);
+
+        assertNotNull(encoded);
+        List<Long> decoded = CompressedIds.decode(encoded);
+        assertEquals(1000, decoded.size());
+        assertEquals(Long.valueOf(2), decoded.get(0));
+        assertEquals(Long.valueOf(2000), decoded.get(999));
+        assertTrue(encoded.length < 100);
+        assertEquals(1, stats.compressedBlocks());
+    }
+
+    @Test
+    public void bypassSmallOrSparseIds() throws Exception {
+        CompressionStats stats = new CompressionStats();
+        assertNull(CompressedIds.encode(Arrays.asList(1L, 2L, 3L), stats));
+
+        Random random = new Random(42);
+        List<Long> sparse = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            sparse.add(random.nextLong());
+        }
+        assertNull(CompressedIds.encode(sparse, stats));
+        assertEquals(1, stats.bypassedBlocks());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class ConcurrencyLimiterTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+    @Test
+    public void rejectBeyondLimitAndQueue() throws Exception {
+        ConcurrencyLimiter instance = new ConcurrencyLimiter(2, 1, 10, 0, 100);
+
+        assertTrue(instance.acquire(0, TimeUnit.MILLISECONDS));
+        assertTrue(instance.acquire(0, TimeUnit.MILLISECONDS));
+        assertFalse(instance.acquire(1, TimeUnit.SECONDS));
+
+        assertEquals(2, instance.inFlight());
+        assertEquals(1, instance.rejectedCount());
+    }
+
+    @Test
+    public void queueUntilReleased() throws Exception {
+        ConcurrencyLimiter instance = new ConcurrencyLimiter(1, 1, 10, 1, 100);
+        instance.acquire(0, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return instance.acquire(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (instance.queueDepth() == 0) {
+            Thread.sleep(1);
+        }
+        assertFalse(instance.acquire(0, TimeUnit.MILLISECONDS)); // queue full
+
+        instance.release(FAST, true);
+        assertTrue(waiting.get(10, TimeUnit.SECONDS));
+        assertEquals(0, instance.queueDepth());
+        assertEquals(1, instance.inFlight());
+    }
+
+    @Test
+    public void increaseAdditivelyWhenSaturated() throws Exception {
+        ConcurrencyLimiter instance = new ConcurrencyLimiter(2, 1, 3, 0, 100);
+
+        for (int i = 0; i < 10; i++) {
+            instance.acquire(0, TimeUnit.MILLISECONDS);
+            instance.acquire(0, TimeUnit.MILLISECONDS);
+            instance.release(FAST, true);
+            instance.release(FAST, true);
+        }
+
+        assertEquals(3, instance.limit());
+    }
+
+    @Test
+    public void doNotIncreaseWhenIdle() throws Exception {
+        ConcurrencyLimiter instance = new ConcurrencyLimiter(2, 1, 10, 0, 100);
+
+        for (int i = 0; i < 10; i++) {
+            instance.acquire(0, TimeUnit.MILLISECONDS);
+            instance.release(FAST, true);
+        }
+
+        assertEquals(2, instance.limit());
+    }
+
+    @Test
+    public void decreaseMultiplicativelyOnSlowOrFailedCommands() throws Exception {
+        ConcurrencyLimiter instance = new ConcurrencyLimiter(10, 2, 10, 0, 100);
+
+        instance.acquire(0, TimeUnit.MILLISECONDS);
+        instance.release(SLOW, true);
+        assertEquals(9, instance.limit());
+
+        for (int i = 0; i < 50; i++) {
+            instance.acquire(0, TimeUnit.MILLISECONDS);
+            instance.release(FAST, false);
+        }
+        assertEquals(2, instance.limit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectInconsistentLimits() throws Exception {
+        new ConcurrencyLimiter(1, 2, 3, 0, 100);
+    }
+}
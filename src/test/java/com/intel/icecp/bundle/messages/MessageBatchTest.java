@@ -16,6 +16,9 @@
 
 package com.intel.icecp.bundle.messages;
 
+import com.intel.icecp.bundle.ItemQuery;
+import com.intel.icecp.bundle.StoredItem;
+import com.intel.icecp.core.messages.BytesMessage;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -25,14 +28,21 @@ import org.mockito.MockitoAnnotations;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -138,4 +148,204 @@ public class MessageBatchTest {
         verify(storage, times(1)).tag(idsCaptor.capture(), tagsCaptor.capture());
         assertArrayEquals(new Object[]{1L}, idsCaptor.getValue().toArray());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void lazyRetrievalOnlyRetrievesHeaders() throws Exception {
+        instance = new MessageBatch(storage, SESSION_ID, RetrievalMode.LAZY);
+        List<PersistentMessage> headers = Arrays.asList(new PersistentMessage(1, 1, null), new PersistentMessage(2, 2, null));
+        when(storage.retrieveHeaders(SESSION_ID, 30)).thenReturn(headers);
+
+        assertTrue(instance.hasChildren());
+        assertEquals(1, instance.children().iterator().next().timestamp());
+
+        verify(storage, never()).retrieveMessages(anyLong(), anyInt());
+        verify(storage, never()).retrievePage(anyLong(), anyInt(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void lazyRetrievalRetrievesContentByPage() throws Exception {
+        instance = new MessageBatch(storage, SESSION_ID, RetrievalMode.LAZY);
+        List<PersistentMessage> headers = Arrays.asList(new PersistentMessage(1, 1, null), new PersistentMessage(2, 2, null));
+        List<PersistentMessage> page = Arrays.asList(new PersistentMessage(1, 1, "a".getBytes()), new PersistentMessage(2, 2, "b".getBytes()));
+        when(storage.retrieveHeaders(SESSION_ID, 30)).thenReturn(headers);
+        when(storage.retrievePage(SESSION_ID, 0, 2, 30)).thenReturn(page);
+
+        Iterator<StoredItem<BytesMessage>> items = instance.children().iterator();
+        assertArrayEquals("a".getBytes(), items.next().value().getBytes());
+        assertArrayEquals("b".getBytes(), items.next().value().getBytes());
+
+        verify(storage, times(1)).retrievePage(SESSION_ID, 0, 2, 30);
+    }
+
+    @Test
+    public void commitByIdWithoutRetrieval() throws Exception {
+        instance.commit(Arrays.asList(1L, 2L));
+
+        verify(storage, times(1)).tag(idsCaptor.capture(), tagsCaptor.capture());
+        assertArrayEquals(new Object[]{1L, 2L}, idsCaptor.getValue().toArray());
+        verify(storage, never()).retrieveMessages(anyLong(), anyInt());
+    }
+
+    @Test
+    public void commitByIdUpdatesRetrievedItems() throws Exception {
+        PersistentMessage message1 = new PersistentMessage(1, 1, "".getBytes());
+        PersistentMessage message2 = new PersistentMessage(2, 2, "".getBytes());
+        when(storage.retrieveMessages(any(Long.class), any(Integer.class))).thenReturn(Arrays.asList(message1, message2));
+        instance.commit(Collections.singletonList(1L)); // before retrieval
+
+        assertFalse(instance.isFinished());
+        instance.commitRange(2, 2);
+
+        assertTrue(instance.isFinished());
+        verify(storage, times(2)).tag(any(), any());
+    }
+
+    @Test
+    public void commitRangeOfSparseIds() throws Exception {
+        when(storage.retrieveHeaders(any(Long.class), any(Integer.class))).thenReturn(Arrays.asList(
+                new PersistentMessage(10, 1, null), new PersistentMessage(500000000, 2, null),
+                new PersistentMessage(2000000000, 3, null)));
+
+        instance.commitRange(1, 1000000000);
+
+        verify(storage, times(1)).tag(idsCaptor.capture(), tagsCaptor.capture());
+        assertArrayEquals(new Object[]{10L, 500000000L}, idsCaptor.getValue().toArray());
+        verify(storage, never()).retrieveMessages(anyLong(), anyInt());
+    }
+
+    @Test
+    public void commitRangeOfRetrievedBatch() throws Exception {
+        when(storage.retrieveMessages(any(Long.class), any(Integer.class))).thenReturn(Arrays.asList(
+                new PersistentMessage(1, 1, "".getBytes()), new PersistentMessage(2, 2, "".getBytes()),
+                new PersistentMessage(3, 3, "".getBytes())));
+        assertEquals(3, instance.stream().count());
+        instance.commit(Collections.singletonList(1L));
+
+        instance.commitRange(1, 2);
+
+        verify(storage, times(2)).tag(idsCaptor.capture(), tagsCaptor.capture());
+        assertArrayEquals(new Object[]{2L}, idsCaptor.getValue().toArray()); // 1 is already committed
+        verify(storage, never()).retrieveHeaders(anyLong(), anyInt());
+    }
+
+    @Test
+    public void sizedSpliterator() throws Exception {
+        List<PersistentMessage> messages = Arrays.asList(new PersistentMessage(1, 1, "".getBytes()), new PersistentMessage(2, 2, "".getBytes()));
+        when(storage.retrieveMessages(any(Long.class), any(Integer.class))).thenReturn(messages);
+
+        Spliterator<StoredItem<BytesMessage>> spliterator = instance.spliterator();
+
+        assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED));
+        assertEquals(2, spliterator.getExactSizeIfKnown());
+        assertEquals(2, instance.parallelStream().count());
+    }
+
+    @Test
+    public void markFinishedInParallel() throws Exception {
+        PersistentMessage message1 = new PersistentMessage(1, 1, "".getBytes());
+        PersistentMessage message2 = new PersistentMessage(2, 2, "".getBytes());
+        when(storage.retrieveMessages(any(Long.class), any(Integer.class))).thenReturn(Arrays.asList(message1, message2));
+
+        instance.markFinishedInParallel();
+
+        verify(storage, times(1)).tag(idsCaptor.capture(), tagsCaptor.capture());
+        assertEquals(2, idsCaptor.getValue().size());
+        assertTrue(instance.isFinishedInParallel());
+    }
+
+    @Test
+    public void journaledMessagesAreFiltered() throws Exception {
+        CommitJournal journal = mock(CommitJournal.class);
+        when(journal.contains(1L)).thenReturn(true);
+        instance = new MessageBatch(storage, SESSION_ID, RetrievalMode.EAGER, journal);
+        PersistentMessage message1 = new PersistentMessage(1, 1, "".getBytes());
+        PersistentMessage message2 = new PersistentMessage(2, 2, "".getBytes());
+        when(storage.retrieveMessages(any(Long.class), any(Integer.class))).thenReturn(Arrays.asList(message1, message2));
+
+        assertEquals(1, instance.stream().count());
+        instance.markFinished();
+
+        verify(journal).append(Collections.singletonList(2L));
+        verify(storage, never()).tag(any(), any());
+        assertTrue(instance.isFinished());
+    }
+
+    @Test
+    public void catalogLimitsRetrievalToUncommittedMessages() throws Exception {
+        CatalogSnapshot catalog = mock(CatalogSnapshot.class);
+        when(catalog.committedPrefix(SESSION_ID)).thenReturn(2);
+        when(catalog.isCommitted(SESSION_ID, 4L)).thenReturn(true);
+        instance = new MessageBatch(storage, SESSION_ID, RetrievalMode.EAGER, null, catalog);
+        when(storage.sessionSize(SESSION_ID)).thenReturn(5);
+        when(storage.retrievePage(SESSION_ID, 2, 3, 30)).thenReturn(Arrays.asList(new PersistentMessage(3, 3, "".getBytes()),
+                new PersistentMessage(4, 4, "".getBytes()), new PersistentMessage(5, 5, "".getBytes())));
+
+        assertEquals(2, instance.stream().count());
+        verify(storage, never()).retrieveMessages(anyLong(), anyInt());
+        verify(catalog).recordSize(SESSION_ID, 5, 5L);
+
+        instance.commit(Collections.singletonList(3L));
+        verify(catalog).recordCommitted(SESSION_ID, 4, Collections.singletonList(3L));
+        instance.commit(Collections.singletonList(5L));
+        verify(catalog).recordCommitted(SESSION_ID, 5, Collections.singletonList(5L));
+    }
+
+    @Test
+    public void iterateChildrenWhileRefreshing() throws Exception {
+        when(storage.retrieveMessages(SESSION_ID, 30)).thenReturn(Arrays.asList(new PersistentMessage(1, 1, "".getBytes()),
+                new PersistentMessage(2, 2, "".getBytes())));
+        Iterator<StoredItem<BytesMessage>> children = instance.children().iterator();
+        children.next();
+
+        when(storage.sessionSize(SESSION_ID)).thenReturn(3);
+        when(storage.retrievePage(SESSION_ID, 2, 1, 30)).thenReturn(Collections.singletonList(
+                new PersistentMessage(3, 3, "".getBytes())));
+        instance.published();
+        assertEquals(3, instance.stream().count());
+
+        assertEquals(2, children.next().id());
+        assertFalse(children.hasNext());
+    }
+
+    @Test
+    public void retrieveChangedSessionInFull() throws Exception {
+        CatalogSnapshot catalog = mock(CatalogSnapshot.class);
+        when(catalog.committedPrefix(SESSION_ID)).thenReturn(2);
+        when(catalog.hasChanged(eq((long) SESSION_ID), eq(3), eq(2), any())).thenReturn(true);
+        instance = new MessageBatch(storage, SESSION_ID, RetrievalMode.EAGER, null, catalog);
+        when(storage.sessionSize(SESSION_ID)).thenReturn(3);
+        when(storage.retrievePage(SESSION_ID, 2, 1, 30)).thenReturn(Collections.singletonList(
+                new PersistentMessage(9, 9, "".getBytes())));
+        when(storage.retrievePage(SESSION_ID, 0, 3, 30)).thenReturn(Arrays.asList(new PersistentMessage(7, 7, "".getBytes()),
+                new PersistentMessage(8, 8, "".getBytes()), new PersistentMessage(9, 9, "".getBytes())));
+
+        assertEquals(3, instance.stream().count());
+        verify(catalog).forget(SESSION_ID);
+        verify(catalog).recordSize(SESSION_ID, 3, 9L);
+    }
+
+    @Test
+    public void queryIsPushedDownAndCheckedLocally() throws Exception {
+        ItemQuery query = ItemQuery.all().between(2, 3);
+        when(storage.retrieveQuery(SESSION_ID, query, 30)).thenReturn(Arrays.asList(new PersistentMessage(1, 1, "".getBytes()),
+                new PersistentMessage(2, 2, "".getBytes()), new PersistentMessage(3, 3, "".getBytes())));
+
+        List<Long> ids = instance.query(query).map(StoredItem::id).collect(Collectors.toList());
+
+        assertEquals(Arrays.asList(2L, 3L), ids);
+        verify(storage, never()).retrieveMessages(anyLong(), anyInt());
+    }
+
+    @Test
+    public void timestampRangeScan() throws Exception {
+        when(storage.retrieveMessages(SESSION_ID, 30)).thenReturn(Arrays.asList(new PersistentMessage(1, 30, "".getBytes()),
+                new PersistentMessage(2, 10, "".getBytes()), new PersistentMessage(3, 20, "".getBytes()),
+                new PersistentMessage(4, 20, "".getBytes()), new PersistentMessage(5, 40, "".getBytes())));
+
+        List<Long> ids = instance.between(15, 30).map(StoredItem::id).collect(Collectors.toList());
+
+        assertEquals(Arrays.asList(3L, 4L, 1L), ids);
+        assertEquals(0, instance.between(41, 50).count());
+        assertEquals(0, instance.between(30, 15).count());
+    }
+}
@@ -17,18 +17,39 @@
 package com.intel.icecp.bundle.messages;
 
 import com.intel.icecp.bundle.StoredBatch;
+import com.intel.icecp.bundle.StoredItem;
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.management.Channels;
 import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.metadata.Persistence;
+import com.intel.icecp.core.misc.ChannelIOException;
+import com.intel.icecp.core.misc.OnPublish;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import java.net.URI;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -66,6 +87,18 @@ public class MessageBundleTest {
         assertEquals(42L, firstBatch.id());  // empty ones are cleansed during sync() except the current session
     }
 
+    @Test
+    public void commitRangeWithoutRetrievingContent() throws Exception {
+        assertTrue(instanceWithSession.hasChildren());
+        when(storage.retrieveHeaders(INITIAL_SESSION_ID, 30)).thenReturn(Arrays.asList(new PersistentMessage(7, 7, null),
+                new PersistentMessage(8, 8, null)));
+
+        instanceWithSession.commitRange(8, 9);
+
+        verify(storage).tag(Collections.singleton(8L), MessageBatch.INACTIVE_TAGS);
+        verify(storage, never()).retrieveMessages(eq(INITIAL_SESSION_ID), anyInt());
+    }
+
     @Test
     public void newBatchFromEmptyBundle() throws Exception {
         long newId = 101L;
@@ -83,4 +116,212 @@ public class MessageBundleTest {
         StoredBatch<BytesMessage> batch = instanceWithSession.newBatch();
         assertEquals(newId, batch.id());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void serveCachedBatchesWhileStorageUnavailable() throws Exception {
+        when(storage.sessionSize(anyLong())).thenReturn(1);
+        when(storage.retrieveMessages(anyLong(), anyInt()))
+                .thenReturn(Collections.singletonList(new PersistentMessage(7, 0, new byte[0])));
+        assertTrue(instanceWithSession.hasChildren());
+        when(storage.renameSession(INITIAL_SESSION_ID)).thenReturn(101L);
+        instanceWithSession.newBatch();
+        when(storage.retrieveSessions(101L)).thenThrow(new StorageUnavailableException("open"));
+
+        assertTrue(instanceWithSession.hasChildren());
+        assertEquals(Arrays.asList(40L, 41L, 42L), instanceWithSession.stream().map(StoredBatch::id).sorted()
+                .collect(Collectors.toList()));
+        verify(storage, atLeastOnce()).retrieveSessions(101L); // retried on every call, failing fast
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failWhileStorageUnavailableBeforeFirstSync() throws Exception {
+        when(storage.retrieveSessions(INITIAL_SESSION_ID)).thenThrow(new StorageUnavailableException("open"));
+
+        instanceWithSession.hasChildren();
+    }
+
+    @Test
+    public void commitById() throws Exception {
+        instanceWithSession.commit(Collections.singletonList(7L));
+
+        verify(storage).tag(Collections.singletonList(7L), MessageBatch.INACTIVE_TAGS);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addItemWithoutChannels() throws Exception {
+        instance.addItem(new BytesMessage("...".getBytes()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addItemFailsWhenNotPublished() throws Exception {
+        Channel<BytesMessage> channel = mockChannels();
+        doThrow(new ChannelIOException("unavailable")).when(channel).publish(any());
+
+        instance.addItem(new BytesMessage("...".getBytes()));
+    }
+
+    @Test
+    public void warmStartFromCatalog() throws Exception {
+        CatalogSnapshot catalog = mock(CatalogSnapshot.class);
+        when(catalog.currentSession()).thenReturn(INITIAL_SESSION_ID);
+        when(catalog.hasUncommitted()).thenReturn(true);
+        when(catalog.isFullyCommitted(41L)).thenReturn(true);
+        instance = new MessageBundle(storage, URI.create("icecp:/stored/messages"), RetrievalMode.EAGER, null, catalog);
+
+        assertTrue(instance.hasChildren());
+        verify(storage, never()).retrieveSessions(anyLong());
+
+        List<Long> ids = instance.stream().map(StoredBatch::id).collect(Collectors.toList());
+        assertEquals(Collections.singletonList(42L), ids); // 40 is empty and 41 is skipped
+        verify(storage).sessionSize(40L);
+        verify(storage, never()).sessionSize(41L);
+        verify(storage, never()).startSession(any());
+        verify(catalog).save();
+    }
+
+    @Test
+    public void rangeScanAcrossBatches() throws Exception {
+        when(storage.retrieveMessages(40L, 30)).thenReturn(Arrays.asList(message(1, 10), message(2, 40)));
+        when(storage.retrieveMessages(41L, 30)).thenReturn(Arrays.asList(message(3, 20), message(4, 50)));
+        when(storage.retrieveMessages(42L, 30)).thenReturn(Arrays.asList(message(5, 30), message(6, 60)));
+
+        List<Long> ids = instanceWithSession.between(20, 50).map(StoredItem::id).collect(Collectors.toList());
+
+        assertEquals(Arrays.asList(3L, 5L, 2L, 4L), ids);
+    }
+
+    @Test
+    public void retrievePublishedItemsIncrementally() throws Exception {
+        OnPublish<BytesMessage> listener = subscribe();
+        when(storage.retrieveMessages(42L, 30)).thenReturn(Collections.singletonList(message(7, 10)));
+        assertEquals(Collections.singletonList(7L), itemIds(currentSession()));
+        assertEquals(Collections.singletonList(7L), itemIds(currentSession()));
+        verify(storage, never()).sessionSize(anyLong()); // nothing published, nothing retrieved
+
+        when(storage.sessionSize(42L)).thenReturn(2);
+        when(storage.retrievePage(42L, 1, 1, 30)).thenReturn(Collections.singletonList(message(8, 20)));
+        listener.onPublish(new BytesMessage(new byte[0]));
+
+        assertTrue(instance.awaitNewItems(0, TimeUnit.MILLISECONDS));
+        assertFalse(instance.awaitNewItems(0, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList(7L, 8L), itemIds(currentSession()));
+        assertEquals(Arrays.asList(7L, 8L), itemIds(currentSession()));
+        verify(storage).retrieveMessages(42L, 30);
+        verify(storage).retrievePage(42L, 1, 1, 30);
+    }
+
+    @Test
+    public void stopRefreshingWhenPublishedItemsDoNotShowUp() throws Exception {
+        OnPublish<BytesMessage> listener = subscribe();
+        when(storage.sessionSize(42L)).thenReturn(0);
+        currentSession().hasChildren();
+
+        listener.onPublish(new BytesMessage(new byte[0]));
+        for (int i = 0; i < 5; i++) {
+            currentSession().hasChildren();
+        }
+
+        verify(storage, times(3)).sessionSize(42L);
+    }
+
+    @Test
+    public void rotateWithoutBlocking() throws Exception {
+        CountDownLatch renamed = new CountDownLatch(1);
+        when(storage.renameSession(INITIAL_SESSION_ID)).thenAnswer(invocation -> {
+            renamed.await();
+            return 101L;
+        });
+
+        CompletableFuture<StoredBatch<BytesMessage>> rotation = instanceWithSession.newBatchAsync();
+        assertSame(rotation, instanceWithSession.newBatchAsync()); // shares the rotation in progress
+        assertFalse(rotation.isDone());
+        renamed.countDown();
+
+        assertEquals(101L, rotation.get(5, TimeUnit.SECONDS).id());
+        verify(storage).renameSession(INITIAL_SESSION_ID);
+    }
+
+    @Test
+    public void newBatchWaitsForRotationInProgress() throws Exception {
+        CountDownLatch renamed = new CountDownLatch(1);
+        when(storage.renameSession(INITIAL_SESSION_ID)).thenAnswer(invocation -> {
+            renamed.await();
+            return 101L;
+        });
+
+        CompletableFuture<StoredBatch<BytesMessage>> rotation = instanceWithSession.newBatchAsync();
+        CompletableFuture<StoredBatch<BytesMessage>> blocking = new CompletableFuture<>();
+        Thread thread = new Thread(() -> blocking.complete(instanceWithSession.newBatch()));
+        thread.start();
+        while (thread.getState() != Thread.State.WAITING) { // joined the rotation in progress
+            Thread.sleep(1);
+        }
+        renamed.countDown();
+
+        assertSame(rotation.get(5, TimeUnit.SECONDS), blocking.get(5, TimeUnit.SECONDS));
+        verify(storage, times(1)).renameSession(INITIAL_SESSION_ID);
+    }
+
+    @Test
+    public void failRotation() throws Exception {
+        when(storage.renameSession(INITIAL_SESSION_ID)).thenThrow(new StorageClientException("unavailable"));
+
+        try {
+            instanceWithSession.newBatchAsync().get(5, TimeUnit.SECONDS);
+            fail("the rotation should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertNull(instanceWithSession.newBatch());
+    }
+
+    @Test
+    public void rotateAfterItems() throws Exception {
+        mockChannels();
+        when(storage.startSession(any())).thenReturn(INITIAL_SESSION_ID);
+        when(storage.renameSession(INITIAL_SESSION_ID)).thenReturn(101L);
+        instance.newBatch();
+        instance.setRotationPolicy(RotationPolicy.never().afterItems(2));
+
+        for (int i = 0; i < 3; i++) {
+            instance.addItem(new BytesMessage(new byte[]{(byte) i}));
+        }
+        instance.close();
+
+        verify(storage, times(1)).renameSession(INITIAL_SESSION_ID);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Channel<BytesMessage> mockChannels() throws Exception {
+        Channels channels = mock(Channels.class);
+        Channel<BytesMessage> channel = mock(Channel.class);
+        when(channels.openChannel(any(URI.class), eq(BytesMessage.class), any(Persistence.class))).thenReturn(channel);
+        when(storage.getChannels()).thenReturn(channels);
+        return channel;
+    }
+
+    @SuppressWarnings("unchecked")
+    private OnPublish<BytesMessage> subscribe() throws Exception {
+        Channel<BytesMessage> channel = mockChannels();
+        when(storage.startSession(any())).thenReturn(INITIAL_SESSION_ID);
+        instance.newBatch();
+
+        instance.subscribe();
+
+        ArgumentCaptor<OnPublish<BytesMessage>> listener = ArgumentCaptor.forClass((Class) OnPublish.class);
+        verify(channel).subscribe(listener.capture());
+        return listener.getValue();
+    }
+
+    private StoredBatch<BytesMessage> currentSession() {
+        return instance.stream().filter(b -> b.id() == INITIAL_SESSION_ID).findFirst().orElseThrow(AssertionError::new);
+    }
+
+    private static List<Long> itemIds(StoredBatch<BytesMessage> batch) {
+        return batch.stream().map(StoredItem::id).collect(Collectors.toList());
+    }
+
+    private static PersistentMessage message(long id, long timestamp) {
+        return new PersistentMessage(id, timestamp, "".getBytes());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class PersistentMessageFrameTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        List<PersistentMessage> messages = Arrays.asList(new PersistentMessage(1000, 1500000000000L, "a".getBytes()),
+                new PersistentMessage(1001, 1500000000005L, new byte[0]),
+                new PersistentMessage(999, 1499999999999L, null),
+                new PersistentMessage(Long.MAX_VALUE, -1, "z".getBytes()));
+
+        List<PersistentMessage> decoded = PersistentMessageFrame.decode(PersistentMessageFrame.encode(messages));
+
+        assertEquals(messages.size(), decoded.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(messages.get(i).getId(), decoded.get(i).getId());
+            assertEquals(messages.get(i).getTimestamp(), decoded.get(i).getTimestamp());
+        }
+        assertArrayEquals("a".getBytes(), decoded.get(0).getMessageContent());
+        assertEquals(0, decoded.get(1).getMessageContent().length);
+        assertNull(decoded.get(2).getMessageContent());
+    }
+
+    @Test
+    public void compactHeaders() throws Exception {
+        List<PersistentMessage> messages = Arrays.asList(new PersistentMessage(1000, 1500000000000L, null),
+                new PersistentMessage(1001, 1500000000010L, null));
+
+        byte[] frame = PersistentMessageFrame.encode(messages);
+
+        assertTrue(frame.length < 20); // only the first message pays for absolute values
+    }
+
+    @Test
+    public void emptyFrame() throws Exception {
+        assertEquals(0, PersistentMessageFrame.decode(PersistentMessageFrame.encode(Collections.emptyList())).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedFrame() throws Exception {
+        byte[] frame = PersistentMessageFrame.encode(Collections.singletonList(new PersistentMessage(1, 1, "abc".getBytes())));
+        PersistentMessageFrame.decode(Arrays.copyOf(frame, frame.length - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeContentLength() throws Exception {
+        byte[] frame = {PersistentMessageFrame.MAGIC, PersistentMessageFrame.VERSION, 1, 2, 2,
+                -1, -1, -1, -1, -1, -1, -1, -1, -1, 1, 'a', 'b', 'c'};
+        PersistentMessageFrame.decode(frame);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notAFrame() throws Exception {
+        PersistentMessageFrame.decode("{\"id\":1}".getBytes());
+    }
+
+    @Test
+    public void compressRepetitivePayloads() throws Exception {
+        List<PersistentMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            messages.add(new PersistentMessage(i, i, ("{\"sensor\":\"temperature\",\"value\":" + (20 + i % 3) + "}").getBytes()));
+        }
+        CompressionStats encoding = new CompressionStats();
+        CompressionStats decoding = new CompressionStats();
+
+        byte[] frame = PersistentMessageFrame.encode(messages, encoding);
+        List<PersistentMessage> decoded = PersistentMessageFrame.decode(frame, decoding);
+
+        assertEquals(PersistentMessageFrame.COMPRESSED_VERSION, frame[1]);
+        assertEquals(100, decoded.size());
+        assertArrayEquals(messages.get(42).getMessageContent(), decoded.get(42).getMessageContent());
+        assertEquals(1, encoding.compressedBlocks());
+        assertTrue(encoding.ratio() < 0.5);
+        assertEquals(0, encoding.decompressedBlocks());
+        assertEquals(0, decoding.compressedBlocks());
+        assertEquals(1, decoding.decompressedBlocks());
+        assertEquals(encoding.rawBytes(), decoding.decompressedBytes());
+    }
+
+    @Test
+    public void bypassIncompressiblePayloads() throws Exception {
+        byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+        CompressionStats stats = new CompressionStats();
+
+        byte[] frame = PersistentMessageFrame.encode(Collections.singletonList(new PersistentMessage(1, 1, random)), stats);
+
+        assertEquals(PersistentMessageFrame.VERSION, frame[1]);
+        assertEquals(1, stats.bypassedBlocks());
+        assertEquals(0, stats.compressedBlocks());
+        assertArrayEquals(random, PersistentMessageFrame.decode(frame).get(0).getMessageContent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void impossibleUncompressedLength() throws Exception {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(PersistentMessageFrame.MAGIC);
+        frame.write(PersistentMessageFrame.COMPRESSED_VERSION);
+        PersistentMessageFrame.writeVarint(frame, Integer.MAX_VALUE - 1);
+        frame.write(new byte[16], 0, 16);
+
+        PersistentMessageFrame.decode(frame.toByteArray(), new CompressionStats());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void corruptCompressedFrame() throws Exception {
+        List<PersistentMessage> messages = Collections.nCopies(50, new PersistentMessage(1, 1, "repeated".getBytes()));
+        byte[] frame = PersistentMessageFrame.encode(messages, new CompressionStats());
+        frame[frame.length - 3] ^= 0xFF;
+        PersistentMessageFrame.decode(frame);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import com.intel.icecp.core.Channel;
+import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.misc.ChannelIOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ */
+public class PublishPipelineTest {
+    private Channel<BytesMessage> channel;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void before() {
+        channel = mock(Channel.class);
+        when(channel.getName()).thenReturn(URI.create("icecp:/stored/messages"));
+    }
+
+    @Test
+    public void publishInOrder() throws Exception {
+        PublishPipeline instance = new PublishPipeline(channel, 100);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(instance.submit(new BytesMessage(new byte[]{(byte) i})));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).get(5, TimeUnit.SECONDS);
+        instance.close();
+
+        ArgumentCaptor<BytesMessage> published = ArgumentCaptor.forClass(BytesMessage.class);
+        verify(channel, times(50)).publish(published.capture());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, published.getAllValues().get(i).getBytes()[0]);
+        }
+        verify(channel).close();
+    }
+
+    @Test
+    public void failedPublishCompletesExceptionally() throws Exception {
+        doThrow(new ChannelIOException("unavailable")).when(channel).publish(any());
+        PublishPipeline instance = new PublishPipeline(channel, 100);
+
+        try {
+            instance.submit(new BytesMessage(new byte[0])).get(5, TimeUnit.SECONDS);
+            fail("publishing should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ChannelIOException);
+        } finally {
+            instance.close();
+        }
+    }
+
+    @Test
+    public void backpressureWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await();
+            return null;
+        }).when(channel).publish(any());
+        PublishPipeline instance = new PublishPipeline(channel, 1);
+
+        instance.submit(new BytesMessage(new byte[0])); // taken by the blocked publisher
+        instance.submit(new BytesMessage(new byte[0])); // fills the queue
+        Thread producer = new Thread(() -> {
+            try {
+                instance.submit(new BytesMessage(new byte[0]));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive()); // blocked on the full queue
+
+        release.countDown();
+        producer.join(5000);
+        instance.close();
+        verify(channel, times(3)).publish(any());
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class RotationPolicyTest {
+
+    @Test
+    public void never() throws Exception {
+        assertFalse(RotationPolicy.never().shouldRotate(Long.MAX_VALUE - 1, Long.MAX_VALUE - 1, Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void rotateOnFirstLimitReached() throws Exception {
+        RotationPolicy policy = RotationPolicy.never().afterItems(10).afterBytes(1024).afterAge(1, TimeUnit.SECONDS);
+
+        assertFalse(policy.shouldRotate(9, 1023, TimeUnit.MILLISECONDS.toNanos(999)));
+        assertTrue(policy.shouldRotate(10, 0, 0));
+        assertTrue(policy.shouldRotate(0, 1024, 0));
+        assertTrue(policy.shouldRotate(0, 0, TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectNonPositiveLimits() throws Exception {
+        RotationPolicy.never().afterItems(0);
+    }
+}
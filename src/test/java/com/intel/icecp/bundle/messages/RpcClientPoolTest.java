@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+import com.intel.icecp.rpc.CommandRequest;
+import com.intel.icecp.rpc.CommandResponse;
+import com.intel.icecp.rpc.RpcClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ */
+public class RpcClientPoolTest {
+    private FakeClient first;
+    private FakeClient second;
+    private RpcClientPool instance;
+
+    @Before
+    public void before() {
+        first = new FakeClient();
+        second = new FakeClient();
+        instance = new RpcClientPool(Arrays.asList(first, second), 2, 50);
+    }
+
+    @Test
+    public void sendToLeastOutstanding() throws Exception {
+        instance.call(CommandRequest.from("size"));
+        instance.call(CommandRequest.from("size"));
+        assertEquals(1, instance.outstandingCount(0));
+        assertEquals(1, instance.outstandingCount(1));
+
+        first.pending.get(0).complete(new CommandResponse());
+        instance.call(CommandRequest.from("size"));
+
+        assertEquals(2, first.pending.size());
+        assertEquals(1, second.pending.size());
+        assertEquals(2, instance.outstandingCount());
+    }
+
+    @Test
+    public void skipUnhealthyClients() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            instance.call(CommandRequest.from("size"));
+        }
+        first.pending.forEach(f -> f.completeExceptionally(new IllegalStateException("down")));
+        assertEquals(1, instance.healthyCount());
+
+        instance.call(CommandRequest.from("size"));
+        instance.call(CommandRequest.from("size"));
+        assertEquals(2, first.pending.size());
+        assertEquals(4, second.pending.size());
+
+        Thread.sleep(60);
+        assertEquals(2, instance.healthyCount());
+        instance.call(CommandRequest.from("size"));
+        assertEquals(3, first.pending.size());
+    }
+
+    @Test
+    public void countCancellationsAsFailures() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            instance.call(CommandRequest.from("size")).cancel(true);
+        }
+
+        assertEquals(0, instance.healthyCount());
+        assertEquals(0, instance.outstandingCount());
+        instance.call(CommandRequest.from("size")); // still sent somewhere when all clients are unhealthy
+        assertEquals(1, instance.outstandingCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectEmptyPool() throws Exception {
+        new RpcClientPool(Collections.<RpcClient>emptyList(), 1, 1);
+    }
+
+    private static class FakeClient implements RpcClient {
+        private final List<CompletableFuture<CommandResponse>> pending = new ArrayList<>();
+
+        @Override
+        public CompletableFuture<CommandResponse> call(CommandRequest request) {
+            CompletableFuture<CommandResponse> response = new CompletableFuture<>();
+            pending.add(response);
+            return response;
+        }
+    }
+}
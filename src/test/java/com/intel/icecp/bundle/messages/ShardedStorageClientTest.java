@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intel.icecp.bundle.messages;
+
+import com.intel.icecp.bundle.Deadline;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ */
+public class ShardedStorageClientTest {
+    private static final URI CHANNEL = URI.create("ndn:/test/sharded");
+    private final Map<String, StorageClient> shards = new LinkedHashMap<>();
+    private ShardedStorageClient instance;
+
+    @Before
+    public void before() throws Exception {
+        for (long i = 1; i <= 3; i++) {
+            StorageClient shard = mock(StorageClient.class);
+            when(shard.startSession(any())).thenReturn(i);
+            when(shard.sessionSize(anyLong())).thenReturn((int) i);
+            when(shard.retrieveSessions(anyLong())).thenReturn(Collections.emptyList());
+            when(shard.retrieveSessions(any(URI.class))).thenReturn(Collections.emptyList());
+            when(shard.tag(any(), any())).thenReturn(0);
+            shards.put("shard-" + i, shard);
+        }
+        instance = new ShardedStorageClient(null, shards, 1000);
+    }
+
+    @Test
+    public void startSessionsOnOwningShard() throws Exception {
+        long sessionId = instance.startSession(CHANNEL);
+
+        assertEquals(sessionId, instance.startSession(CHANNEL));
+        assertEquals(sessionId, (long) instance.sessionSize(sessionId));
+    }
+
+    @Test
+    public void keepRoutingSessionsAfterRebalance() throws Exception {
+        long sessionId = instance.startSession(CHANNEL);
+        for (int i = 4; i <= 20; i++) {
+            StorageClient shard = mock(StorageClient.class);
+            instance.addShard("shard-" + i, shard);
+        }
+
+        assertEquals(sessionId, (long) instance.sessionSize(sessionId));
+    }
+
+    @Test
+    public void fanOutSessionQueries() throws Exception {
+        when(shards.get("shard-1").retrieveSessions(CHANNEL)).thenReturn(Arrays.asList(10L, 50L));
+        when(shards.get("shard-2").retrieveSessions(CHANNEL)).thenReturn(Collections.singletonList(20L));
+
+        assertEquals(Arrays.asList(10L, 20L, 50L), instance.retrieveSessions(CHANNEL));
+        assertEquals(2, (long) instance.sessionSize(20));
+        verify(shards.get("shard-2")).sessionSize(20);
+    }
+
+    @Test
+    public void fanOutConnectedSessionQueries() throws Exception {
+        when(shards.get("shard-1").retrieveSessions(10L)).thenReturn(Collections.singletonList(Arrays.asList(5L, 10L)));
+        when(shards.get("shard-3").retrieveSessions(10L)).thenReturn(Collections.singletonList(Arrays.asList(30L)));
+
+        List<Long> connected = new ArrayList<>();
+        instance.retrieveSessions(10L).forEach(connected::addAll);
+        Collections.sort(connected);
+
+        assertEquals(Arrays.asList(5L, 10L, 30L), connected);
+        assertEquals(3, (long) instance.sessionSize(30));
+    }
+
+    @Test
+    public void shareLimiterAndBreakerWithShards() throws Exception {
+        assertNull(instance.concurrencyLimiter());
+        assertNull(instance.circuitBreaker());
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8, 16, 500);
+        CircuitBreaker breaker = new CircuitBreaker(10, 5, 0.5, 0.8, 500, 1000, 1);
+
+        instance.setConcurrencyLimiter(limiter);
+        instance.setCircuitBreaker(breaker);
+
+        assertSame(limiter, instance.concurrencyLimiter());
+        assertSame(breaker, instance.circuitBreaker());
+        for (StorageClient shard : shards.values()) {
+            verify(shard).setConcurrencyLimiter(limiter);
+            verify(shard).setCircuitBreaker(breaker);
+        }
+    }
+
+    @Test(expected = StorageClientException.class)
+    public void failIfAnyShardFails() throws Exception {
+        when(shards.get("shard-3").retrieveSessions(CHANNEL)).thenThrow(new StorageClientException("unavailable"));
+
+        instance.retrieveSessions(CHANNEL);
+    }
+
+    @Test
+    public void fanOutUnderCallerDeadline() throws Exception {
+        List<Deadline> seen = Collections.synchronizedList(new ArrayList<>());
+        for (StorageClient shard : shards.values()) {
+            when(shard.retrieveSessions(CHANNEL)).thenAnswer(invocation -> {
+                seen.add(Deadline.current());
+                return Collections.emptyList();
+            });
+        }
+        Deadline deadline = Deadline.after(5, TimeUnit.SECONDS);
+
+        Deadline.Scope scope = deadline.enter();
+        try {
+            instance.retrieveSessions(CHANNEL);
+        } finally {
+            scope.close();
+        }
+
+        assertEquals(Collections.nCopies(3, deadline), seen);
+    }
+
+    @Test(expected = DeadlineExceededException.class)
+    public void stopWaitingForShardsPastDeadline() throws Exception {
+        when(shards.get("shard-2").retrieveSessions(CHANNEL)).thenAnswer(invocation -> {
+            Thread.sleep(5000);
+            return Collections.emptyList();
+        });
+
+        Deadline.Scope scope = Deadline.after(100, TimeUnit.MILLISECONDS).enter();
+        try {
+            instance.retrieveSessions(CHANNEL);
+        } finally {
+            scope.close();
+        }
+    }
+
+    @Test
+    public void lookUpUnknownSessions() throws Exception {
+        when(shards.get("shard-3").retrieveSessions(30L)).thenReturn(Collections.singletonList(Arrays.asList(30L)));
+
+        assertEquals(3, (long) instance.sessionSize(30));
+        verify(shards.get("shard-1"), never()).sessionSize(anyLong());
+    }
+
+    @Test(expected = StorageClientException.class)
+    public void failOnSessionsOfNoShard() throws Exception {
+        instance.sessionSize(99);
+    }
+
+    @Test
+    public void tagOnRetrievingShard() throws Exception {
+        when(shards.get("shard-1").retrieveSessions(CHANNEL)).thenReturn(Collections.singletonList(10L));
+        List<PersistentMessage> page = Collections.singletonList(new PersistentMessage(100, 0, new byte[0]));
+        when(shards.get("shard-1").retrievePage(10L, 0, 1, 30)).thenReturn(page);
+        instance.retrieveSessions(CHANNEL);
+        instance.retrievePage(10, 0, 1, 30);
+
+        instance.tag(Arrays.asList(100L, 999L), MessageBatch.INACTIVE_TAGS);
+
+        verify(shards.get("shard-1")).tag(Arrays.asList(100L, 999L), MessageBatch.INACTIVE_TAGS);
+        verify(shards.get("shard-2")).tag(Collections.singletonList(999L), MessageBatch.INACTIVE_TAGS);
+        verify(shards.get("shard-3")).tag(Collections.singletonList(999L), MessageBatch.INACTIVE_TAGS);
+        verify(shards.get("shard-1"), never()).retrieveMessages(anyLong(), anyInt());
+    }
+}
@@ -16,9 +16,13 @@
 
 package com.intel.icecp.bundle.messages;
 
+import com.intel.icecp.bundle.Deadline;
+import com.intel.icecp.bundle.ItemQuery;
 import com.intel.icecp.bundle.messages.StorageClient.Commands;
+import com.intel.icecp.core.Channel;
 import com.intel.icecp.core.channels.Token;
 import com.intel.icecp.core.messages.BytesMessage;
+import com.intel.icecp.core.metadata.Persistence;
 import com.intel.icecp.core.mock.MockChannels;
 import com.intel.icecp.rpc.CommandResponse;
 import com.intel.icecp.rpc.RpcClient;
@@ -26,23 +30,33 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -98,6 +112,74 @@ public class StorageClientTest {
 
         instance.executeRemoteCommand(client, StorageClient.Commands.queryBySessionId, Token.of(String.class), 99);
     }
+
+    @Test
+    public void failFastWhileCircuitOpen() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1, 0.5, 1, 1000, 60000, 1);
+        instance.setCircuitBreaker(breaker);
+        breaker.tryAcquire();
+        breaker.record(0, false);
+
+        long start = System.nanoTime();
+        exception.expect(StorageUnavailableException.class);
+        try {
+            instance.executeRemoteCommand(client, StorageClient.Commands.size, Token.of(Integer.class), 99);
+        } finally {
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1)); // no RPC workaround sleep
+            verify(client, times(0)).call(any());
+        }
+    }
+
+    @Test
+    public void failFastPastDeadline() throws Exception {
+        Deadline deadline = Deadline.after(0, TimeUnit.MILLISECONDS);
+
+        exception.expect(DeadlineExceededException.class);
+        Deadline.Scope scope = deadline.enter();
+        try {
+            instance.executeRemoteCommand(client, StorageClient.Commands.size, Token.of(Integer.class), 99);
+        } finally {
+            scope.close();
+            verify(client, times(0)).call(any());
+        }
+    }
+
+    @Test
+    public void cancelOutstandingCommand() throws Exception {
+        CompletableFuture<CommandResponse> response = new CompletableFuture<>();
+        when(client.call(any())).thenReturn(response);
+        instance = Mockito.spy(new StorageClient(new MockChannels(), 60000));
+        Deadline deadline = Deadline.never();
+        cancelAfter(deadline, 3500);
+
+        long start = System.nanoTime();
+        exception.expect(DeadlineExceededException.class);
+        Deadline.Scope scope = deadline.enter();
+        try {
+            instance.executeRemoteCommand(client, StorageClient.Commands.size, Token.of(Integer.class), 99);
+        } finally {
+            scope.close();
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+            assertTrue(response.isCancelled());
+            assertEquals(0, instance.concurrencyLimiter().inFlight());
+            assertEquals(CircuitBreaker.State.CLOSED, instance.circuitBreaker().state());
+        }
+    }
+
+    @Test
+    public void rejectCommandsBeyondConcurrencyLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0, 100);
+        instance.setConcurrencyLimiter(limiter);
+        limiter.acquire(0, TimeUnit.MILLISECONDS);
+
+        exception.expect(StorageClientException.class);
+        try {
+            instance.executeRemoteCommand(client, StorageClient.Commands.size, Token.of(Integer.class), 99);
+        } finally {
+            verify(client, times(0)).call(any());
+            assertEquals(1, limiter.rejectedCount());
+        }
+    }
     
     @Test
     public void startSession() throws Exception {
@@ -184,4 +266,130 @@ public class StorageClientTest {
         exception.expect(StorageClientException.class);
         assertEquals(instance.retrieveMessages(123L, 50000), expected);
     }
-}
\ No newline at end of file
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void retrieveFramedMessages() throws Exception {
+        MockChannels channels = new MockChannels();
+        StorageClient framed = Mockito.spy(new StorageClient(channels, 100));
+        framed.setFramedReplay(true);
+        List<PersistentMessage> stored = Arrays.asList(new PersistentMessage(2, 20, "b".getBytes()),
+                new PersistentMessage(1, 10, "a".getBytes()));
+        doAnswer(invocation -> {
+            for (Object argument : invocation.getArguments()) {
+                if (argument instanceof Map) {
+                    URI uri = URI.create((String) ((Map<String, Object>) argument).get(StorageCommandMap.FRAMED_REPLAY_CHANNEL_KEY_NAME));
+                    try (Channel<BytesMessage> channel = channels.openChannel(uri, BytesMessage.class, Persistence.DEFAULT)) {
+                        channel.publish(new BytesMessage(PersistentMessageFrame.encode(stored)));
+                    }
+                }
+            }
+            return null;
+        }).when(framed).executeRemoteCommand(any(), eq(Commands.get), any(), any());
+
+        List<PersistentMessage> retrieved = framed.retrievePage(123L, 0, 2, 5);
+
+        assertEquals(2, retrieved.size());
+        assertEquals(1L, retrieved.get(0).getId());
+        assertArrayEquals("b".getBytes(), retrieved.get(1).getMessageContent());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void tagWithCompressedIds() throws Exception {
+        List<Long> ids = new ArrayList<>();
+        for (long id = 5000; id < 7000; id++) {
+            ids.add(id);
+        }
+        ArgumentCaptor<Object> inputs = ArgumentCaptor.forClass(Object.class);
+        doReturn(ids.size()).when(instance).executeRemoteCommand(any(), eq(Commands.tag), any(), inputs.capture());
+        instance.setTagCompression(true);
+
+        instance.tag(ids, Collections.singletonList("inactive"));
+
+        Map<String, Object> map = (Map<String, Object>) inputs.getValue();
+        byte[] compressed = (byte[]) map.get(StorageCommandMap.COMPRESSED_IDS_KEY_NAME);
+        assertEquals(ids, CompressedIds.decode(compressed));
+        assertEquals(null, map.get(StorageCommandMap.IDS_KEY_NAME));
+        assertEquals(1, instance.compressionStats().compressedBlocks());
+    }
+
+    @Test
+    public void queryPushedDown() throws Exception {
+        StorageClient storage = replayingStorage(true);
+
+        List<PersistentMessage> retrieved = storage.retrieveQuery(123L, ItemQuery.all().between(2, 3).limit(5), 5);
+
+        assertEquals(2, retrieved.size());
+        verify(storage, times(1)).executeRemoteCommand(any(), eq(Commands.get), any(), any());
+    }
+
+    @Test
+    public void queryIgnoredByStorage() throws Exception {
+        StorageClient storage = replayingStorage(false);
+
+        List<PersistentMessage> retrieved = storage.retrieveQuery(123L, ItemQuery.all().between(9, 10).limit(2), 5);
+
+        assertEquals(10, retrieved.size()); // the limit applied to unfiltered messages, so all were retrieved
+        verify(storage, times(2)).executeRemoteCommand(any(), eq(Commands.get), any(), any());
+    }
+
+    @Test(expected = StorageClientException.class)
+    public void rejectUnacknowledgedTagFilters() throws Exception {
+        StorageClient storage = replayingStorage(true);
+
+        storage.retrieveQuery(123L, ItemQuery.all().between(2, 3).withAnyTag(Collections.singleton("a")), 5);
+    }
+
+    /**
+     * @return a client whose storage module has 10 messages with timestamps 1 to 10, replayed in frames, and applies
+     * the timestamp filters (acknowledging them) if told to
+     */
+    @SuppressWarnings("unchecked")
+    private static StorageClient replayingStorage(boolean applyFilters) throws Exception {
+        MockChannels channels = new MockChannels();
+        StorageClient storage = Mockito.spy(new StorageClient(channels, 100));
+        storage.setFramedReplay(true);
+        doReturn(10).when(storage).sessionSize(123L);
+        doAnswer(invocation -> {
+            for (Object argument : invocation.getArguments()) {
+                if (argument instanceof Map) {
+                    Map<String, Object> inputs = (Map<String, Object>) argument;
+                    long from = applyFilters ? (Long) inputs.getOrDefault(StorageCommandMap.FROM_TIMESTAMP_KEY_NAME, 1L) : 1;
+                    long to = applyFilters ? (Long) inputs.getOrDefault(StorageCommandMap.TO_TIMESTAMP_KEY_NAME, 10L) : 10;
+                    int limit = (Integer) inputs.get(StorageCommandMap.LIMIT_KEY_NAME);
+                    List<PersistentMessage> replayed = new ArrayList<>();
+                    for (long i = from; i <= to && replayed.size() < limit; i++) {
+                        replayed.add(new PersistentMessage(i, i, new byte[0]));
+                    }
+                    URI uri = URI.create((String) inputs.get(StorageCommandMap.FRAMED_REPLAY_CHANNEL_KEY_NAME));
+                    try (Channel<BytesMessage> channel = channels.openChannel(uri, BytesMessage.class, Persistence.DEFAULT)) {
+                        channel.publish(new BytesMessage(PersistentMessageFrame.encode(replayed)));
+                    }
+                    if (!applyFilters)
+                        return replayed.size(); // a count alone does not acknowledge the filters
+                    Map<String, Object> acknowledgement = new HashMap<>();
+                    acknowledgement.put(StorageCommandMap.APPLIED_FILTERS_KEY_NAME, Arrays.asList(
+                            StorageCommandMap.FROM_TIMESTAMP_KEY_NAME, StorageCommandMap.TO_TIMESTAMP_KEY_NAME));
+                    acknowledgement.put(StorageCommandMap.MATCHED_COUNT_KEY_NAME, (long) replayed.size());
+                    return acknowledgement;
+                }
+            }
+            return null;
+        }).when(storage).executeRemoteCommand(any(), eq(Commands.get), any(), any());
+        return storage;
+    }
+
+    private static void cancelAfter(Deadline deadline, long delayMs) {
+        Thread canceller = new Thread(() -> {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            deadline.cancel();
+        });
+        canceller.setDaemon(true);
+        canceller.start();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.messages;
+
+import com.intel.icecp.bundle.StoredBatch;
+import com.intel.icecp.bundle.StoredItem;
+import com.intel.icecp.core.messages.BytesMessage;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ */
+public class TieredStoredBundleTest {
+    private static final long SESSION_ID = 42L;
+    private static final URI LISTEN_CHANNEL = URI.create("icecp:/stored/messages");
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private StorageClient storage;
+    private StorageClient unavailable;
+    private Path directory;
+
+    @Before
+    public void before() throws Exception {
+        storage = mock(StorageClient.class);
+        when(storage.startSession(any())).thenReturn(SESSION_ID);
+        when(storage.retrieveSessions(SESSION_ID)).thenReturn(Collections.singletonList(Collections.singletonList(SESSION_ID)));
+        when(storage.retrieveMessages(SESSION_ID, 30)).thenReturn(Arrays.asList(
+                new PersistentMessage(1, 100, "a".getBytes()), new PersistentMessage(2, 200, "b".getBytes())));
+        unavailable = mock(StorageClient.class);
+        when(unavailable.startSession(any())).thenThrow(new StorageClientException("unavailable"));
+        when(unavailable.retrieveSessions(anyLong())).thenThrow(new StorageClientException("unavailable"));
+        when(unavailable.retrieveMessages(anyLong(), anyInt())).thenThrow(new StorageClientException("unavailable"));
+        directory = folder.getRoot().toPath();
+    }
+
+    @Test
+    public void importSessionsIntoLocalTier() throws Exception {
+        try (TieredStoredBundle instance = new TieredStoredBundle(storage, LISTEN_CHANNEL, directory, 60000)) {
+            instance.newBatch();
+            instance.replicate();
+            instance.replicate();
+
+            List<StoredItem<BytesMessage>> items = items(instance);
+            assertEquals(Arrays.asList(1L, 2L), items.stream().map(StoredItem::id).collect(Collectors.toList()));
+            assertEquals(200, items.get(1).timestamp());
+            assertArrayEquals("a".getBytes(), items.get(0).value().getBytes());
+            assertEquals(SESSION_ID, instance.children().iterator().next().id());
+        }
+    }
+
+    @Test
+    public void serveLocalTierWhileStorageIsUnavailable() throws Exception {
+        try (TieredStoredBundle instance = new TieredStoredBundle(storage, LISTEN_CHANNEL, directory, 60000)) {
+            instance.newBatch();
+            instance.replicate();
+        }
+
+        try (TieredStoredBundle instance = new TieredStoredBundle(unavailable, LISTEN_CHANNEL, directory, 60000)) {
+            assertEquals(null, instance.newBatch());
+            instance.replicate();
+
+            List<StoredItem<BytesMessage>> items = items(instance);
+            assertEquals(2, items.size());
+            assertArrayEquals("b".getBytes(), items.get(1).value().getBytes());
+        }
+    }
+
+    @Test
+    public void commitLocallyThenInStorage() throws Exception {
+        try (TieredStoredBundle instance = new TieredStoredBundle(storage, LISTEN_CHANNEL, directory, 60000)) {
+            instance.newBatch();
+            instance.replicate();
+            instance.commit(Collections.singletonList(1L));
+        }
+        verify(storage).tag(Collections.singletonList(1L), MessageBatch.INACTIVE_TAGS);
+
+        try (TieredStoredBundle instance = new TieredStoredBundle(unavailable, LISTEN_CHANNEL, directory, 60000)) {
+            assertEquals(Collections.singletonList(2L), items(instance).stream().map(StoredItem::id)
+                    .collect(Collectors.toList()));
+            instance.children().iterator().next().markFinished();
+            assertFalse(instance.hasChildren());
+        }
+    }
+
+    @Test
+    public void keepAddedItemsUntilPublished() throws Exception {
+        try (TieredStoredBundle instance = new TieredStoredBundle(storage, LISTEN_CHANNEL, directory, 60000)) {
+            instance.addItem(new BytesMessage("c".getBytes()));
+            instance.replicate();
+            assertEquals(1, instance.pendingCount()); // no channels to publish to
+        }
+
+        try (TieredStoredBundle instance = new TieredStoredBundle(storage, LISTEN_CHANNEL, directory, 60000)) {
+            assertEquals(1, instance.pendingCount());
+        }
+    }
+
+    private static List<StoredItem<BytesMessage>> items(TieredStoredBundle bundle) {
+        return bundle.stream().flatMap(StoredBatch::stream).collect(Collectors.toList());
+    }
+}
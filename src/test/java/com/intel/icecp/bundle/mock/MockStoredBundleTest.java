@@ -21,6 +21,7 @@ import com.intel.icecp.bundle.StoredBatch;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Collections;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -71,6 +72,30 @@ public class MockStoredBundleTest {
         assertTrue(instance.isFinished());
     }
 
+    @Test
+    public void markingInParallel() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            instance.newBatch();
+            instance.addItem("...");
+            instance.addItem("...");
+        }
+        assertFalse(instance.isFinishedInParallel());
+
+        instance.markFinishedInParallel();
+        assertTrue(instance.isFinishedInParallel());
+        assertEquals(10, instance.parallelStream().count());
+    }
+
+    @Test
+    public void commitById() throws Exception {
+        StoredBatch<String> newBatch = instance.newBatch();
+        instance.addItem("...");
+        long id = newBatch.children().iterator().next().id();
+
+        instance.commit(Collections.singletonList(id));
+        assertTrue(instance.isFinished());
+    }
+
     private <T extends Bundle> Stream<T> stream(Iterable<T> iterable) {
         return StreamSupport.stream(iterable.spliterator(), false);
     }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016 Intel Corporation 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.icecp.bundle.typed;
+
+import com.intel.icecp.bundle.ItemQuery;
+import com.intel.icecp.bundle.StoredBatch;
+import com.intel.icecp.bundle.StoredItem;
+import com.intel.icecp.bundle.mock.MockStoredBundle;
+import com.intel.icecp.core.messages.BytesMessage;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+/**
+ */
+public class TypedStoredBundleTest {
+    private MockStoredBundle<BytesMessage> raw;
+    private CountingCodec codec;
+
+    @Before
+    public void before() {
+        raw = new MockStoredBundle<>();
+        raw.newBatch();
+        raw.addItem(new BytesMessage("a".getBytes(StandardCharsets.UTF_8)));
+        raw.addItem(new BytesMessage("b".getBytes(StandardCharsets.UTF_8)));
+        codec = new CountingCodec();
+    }
+
+    @Test
+    public void decodeLazilyAndOnce() throws Exception {
+        TypedStoredBundle<String> instance = new TypedStoredBundle<>(raw, codec, Memoization.STRONG);
+
+        StoredItem<String> first = instance.stream().flatMap(StoredBatch::stream).findFirst().get();
+        assertEquals(0, codec.decoded.get());
+
+        assertEquals("a", first.value());
+        String decoded = first.value();
+        StoredItem<String> again = instance.stream().flatMap(StoredBatch::stream).findFirst().get();
+        assertSame(decoded, again.value());
+        assertEquals(1, codec.decoded.get());
+    }
+
+    @Test
+    public void softMemoization() throws Exception {
+        TypedStoredBundle<String> instance = new TypedStoredBundle<>(raw, codec, Memoization.SOFT);
+
+        StoredItem<String> first = instance.stream().flatMap(StoredBatch::stream).findFirst().get();
+        first.value();
+        first.value();
+
+        assertTrue(codec.decoded.get() <= 2); // only more than once if the collector cleared the reference
+    }
+
+    @Test
+    public void decodeEveryTimeWithoutMemoization() throws Exception {
+        TypedStoredBundle<String> instance = new TypedStoredBundle<>(raw, codec, Memoization.NONE);
+
+        instance.stream().flatMap(StoredBatch::stream).forEach(StoredItem::value);
+        instance.stream().flatMap(StoredBatch::stream).forEach(StoredItem::value);
+
+        assertEquals(4, codec.decoded.get());
+    }
+
+    @Test
+    public void encodeAddedItemsAndDelegateFinishing() throws Exception {
+        TypedStoredBundle<String> instance = new TypedStoredBundle<>(raw, codec, Memoization.STRONG);
+        instance.addItem("c");
+
+        StoredBatch<String> batch = instance.children().iterator().next();
+        assertEquals(3, batch.stream().count());
+        StoredItem<String> last = batch.stream().skip(2).findFirst().get();
+        assertEquals("c", last.value());
+
+        instance.commit(Collections.singletonList(last.id()));
+        assertTrue(raw.stream().flatMap(StoredBatch::stream).skip(2).findFirst().get().isFinished());
+        batch.markFinished();
+        assertTrue(instance.stream().allMatch(StoredBatch::isFinished));
+    }
+
+    @Test
+    public void delegateScansToRawBatch() throws Exception {
+        StoredBatch<BytesMessage> rawBatch = spy(raw.stream().findFirst().get());
+        TypedStoredBatch<String> batch = new TypedStoredBatch<>(rawBatch, codec, Memoization.STRONG);
+        StoredItem<String> first = batch.stream().findFirst().get();
+
+        assertSame(first, batch.between(Long.MIN_VALUE, Long.MAX_VALUE).findFirst().get());
+        assertSame(first, batch.query(ItemQuery.all().idRange(first.id(), first.id())).findFirst().get());
+        verify(rawBatch).between(Long.MIN_VALUE, Long.MAX_VALUE);
+        verify(rawBatch).query(any(ItemQuery.class));
+    }
+
+    private static class CountingCodec implements Codec<String> {
+        private final AtomicInteger decoded = new AtomicInteger();
+
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+            decoded.incrementAndGet();
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}